@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.api;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.dropwizard.jackson.Jackson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deserializing the step invocation that Dataverse posts to the service, with an object mapper configured as in the application.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepInvocationJsonBenchmark {
+    private static final byte[] JSON = ("{\"invocationId\":\"78a0b3c1-5c2b-4d5e-9f01-23456789abcd\",\"globalId\":\"doi:10.5072/FK2/BENCHMARK\","
+        + "\"datasetId\":\"12345\",\"majorVersion\":\"2\",\"minorVersion\":\"0\"}").getBytes(StandardCharsets.UTF_8);
+
+    private ObjectMapper objectMapper;
+    private ObjectReader reader;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        objectMapper = Jackson.newObjectMapper().enable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        reader = objectMapper.readerFor(StepInvocation.class);
+    }
+
+    @Benchmark
+    public StepInvocation readWithObjectMapper() throws IOException {
+        return objectMapper.readValue(JSON, StepInvocation.class);
+    }
+
+    @Benchmark
+    public StepInvocation readWithObjectReader() throws IOException {
+        return reader.readValue(JSON);
+    }
+}
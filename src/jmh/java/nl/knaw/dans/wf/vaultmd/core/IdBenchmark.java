@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures validating and minting identifiers with {@link IdValidatorImpl} and {@link IdMintingServiceImpl}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdBenchmark {
+    private static final String VALID_NBN = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+    private static final String VALID_UUID = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+    private static final String INVALID_UUID = "urn:uuid:530dc968-4430-4186-bf58-08d98d71788x";
+
+    private final IdValidator idValidator = new IdValidatorImpl();
+    private final IdMintingService idMintingService = new IdMintingServiceImpl();
+
+    @Benchmark
+    public boolean validateUrnNbn() {
+        return idValidator.isValidUrnNbn(VALID_NBN);
+    }
+
+    @Benchmark
+    public boolean validateUrnUuid() {
+        return idValidator.isValidUrnUuid(VALID_UUID);
+    }
+
+    @Benchmark
+    public boolean validateInvalidUrnUuid() {
+        return idValidator.isValidUrnUuid(INVALID_UUID);
+    }
+
+    @Benchmark
+    public String mintUrnNbn() {
+        return idMintingService.mintUrnNbn();
+    }
+
+    @Benchmark
+    public String mintBagId() {
+        return idMintingService.mintBagId();
+    }
+}
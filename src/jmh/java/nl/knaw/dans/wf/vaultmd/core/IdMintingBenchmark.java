@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares minting identifiers directly with {@link IdMintingServiceImpl} to taking them from a {@link PooledIdMintingService}, with many threads minting at the
+ * same time. Use <code>-t</code> to try other numbers of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class IdMintingBenchmark {
+
+    @Param({ "DIRECT", "POOLED" })
+    private String mode;
+
+    @Param({ "1024" })
+    private int poolSize;
+
+    private IdMintingService idMintingService;
+    private PooledIdMintingService pooledIdMintingService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        idMintingService = new IdMintingServiceImpl();
+        if ("POOLED".equals(mode)) {
+            pooledIdMintingService = new PooledIdMintingService(idMintingService, poolSize, poolSize / 4, new MetricRegistry());
+            pooledIdMintingService.start();
+            idMintingService = pooledIdMintingService;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (pooledIdMintingService != null) {
+            pooledIdMintingService.stop();
+        }
+    }
+
+    @Benchmark
+    public String mintUrnNbn() {
+        return idMintingService.mintUrnNbn();
+    }
+
+    @Benchmark
+    public String mintBagId() {
+        return idMintingService.mintBagId();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link IdValidatorImpl} to {@link StrictIdValidator}, for single valid and invalid identifiers and for a batch of identifiers as in an audit. Run
+ * with <code>-prof gc</code> to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdValidatorBenchmark {
+    private static final String VALID_NBN = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+    private static final String VALID_UUID = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+    private static final String INVALID_UUID = "urn:uuid:530dc968-4430-4186-bf58-08d98d71788x";
+
+    @Param({ "1000" })
+    private int batchSize;
+
+    /**
+     * Percentage of invalid identifiers in the batch.
+     */
+    @Param({ "0", "50" })
+    private int invalidPercentage;
+
+    private final IdValidatorImpl idValidatorImpl = new IdValidatorImpl();
+    private final StrictIdValidator strictIdValidator = new StrictIdValidator();
+    private List<String> batch;
+
+    @Setup
+    public void setUp() {
+        batch = new ArrayList<>(batchSize);
+        for (var i = 0; i < batchSize; ++i) {
+            batch.add(i % 100 < invalidPercentage ? INVALID_UUID : VALID_UUID);
+        }
+    }
+
+    @Benchmark
+    public boolean validUrnNbnImpl() {
+        return idValidatorImpl.isValidUrnNbn(VALID_NBN);
+    }
+
+    @Benchmark
+    public boolean validUrnNbnStrict() {
+        return strictIdValidator.isValidUrnNbn(VALID_NBN);
+    }
+
+    @Benchmark
+    public boolean validUrnUuidImpl() {
+        return idValidatorImpl.isValidUrnUuid(VALID_UUID);
+    }
+
+    @Benchmark
+    public boolean validUrnUuidStrict() {
+        return strictIdValidator.isValidUrnUuid(VALID_UUID);
+    }
+
+    @Benchmark
+    public boolean invalidUrnUuidImpl() {
+        return idValidatorImpl.isValidUrnUuid(INVALID_UUID);
+    }
+
+    @Benchmark
+    public boolean invalidUrnUuidStrict() {
+        return strictIdValidator.isValidUrnUuid(INVALID_UUID);
+    }
+
+    @Benchmark
+    public void batchImpl(Blackhole blackhole) {
+        for (var id : batch) {
+            blackhole.consume(idValidatorImpl.isValidUrnUuid(id));
+        }
+    }
+
+    @Benchmark
+    public BitSet batchStrict() {
+        return strictIdValidator.validateAll(batch, StrictIdValidator.IdType.URN_UUID);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import nl.knaw.dans.wf.vaultmd.config.TaskExecutorConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the end-to-end latency of one publication with the blocking task and with the asynchronous pipeline, against a stubbed Dataverse with a fixed latency
+ * per call. The asynchronous pipeline fetches the draft and the version history at the same time, so it saves about one call's latency per publication.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({ "BLOCKING", "ASYNC" })
+    public TaskExecutorConfig.Pipeline pipeline;
+
+    @Param({ "5" })
+    public long dataverseLatencyMillis;
+
+    private StubDataverseService dataverseService;
+    private AsyncDataverseService asyncDataverseService;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService ioExecutor;
+    private RetryScheduler retryScheduler;
+    private TaskMetrics taskMetrics;
+
+    private final IdMintingService idMintingService = new IdMintingServiceImpl();
+    private final IdValidator idValidator = new IdValidatorImpl();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataverseService = new StubDataverseService(10, dataverseLatencyMillis);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        ioExecutor = Executors.newFixedThreadPool(4);
+        retryScheduler = new RetryScheduler(scheduler, Runnable::run, new MetricRegistry(), new RetryConfig());
+        taskMetrics = new TaskMetrics(new MetricRegistry());
+        asyncDataverseService = new AsyncDataverseServiceImpl(dataverseService, dataverseService::lockDataset, ioExecutor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ioExecutor.shutdown();
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    public void publish() {
+        var stepInvocation = dataverseService.createStepInvocation("invocation-1");
+
+        if (pipeline == TaskExecutorConfig.Pipeline.ASYNC) {
+            var context = new TaskContext(dataverseService, asyncDataverseService, idMintingService, idValidator, retryScheduler, null);
+            new AsyncSetVaultMetadataTask(stepInvocation, context, TaskListener.NO_OP, taskMetrics).start().join();
+        }
+        else {
+            var context = new TaskContext(dataverseService, null, idMintingService, idValidator, retryScheduler, null);
+            new SetVaultMetadataTask(stepInvocation, context, TaskListener.NO_OP, taskMetrics).runTask().join();
+        }
+    }
+}
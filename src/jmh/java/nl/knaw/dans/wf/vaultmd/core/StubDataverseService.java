@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DataverseHttpResponse;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataBlock;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataField;
+import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
+import nl.knaw.dans.lib.dataverse.model.workflow.ResumeMessage;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * In-memory DataverseService that serves a synthetic dataset with a version history of a given length. Every call waits for a fixed time to simulate the round trip
+ * to Dataverse.
+ */
+public class StubDataverseService implements DataverseService {
+    public static final String GLOBAL_ID = "doi:10.5072/FK2/BENCHMARK";
+    public static final String NBN = "urn:nbn:nl:ui:13-00000000-0000-0000-0000-000000000000";
+
+    private final long latencyMillis;
+    private final DatasetVersion draft;
+    private final List<DatasetVersion> history;
+
+    /**
+     * @param numberOfVersions the number of released versions, numbered 1.0 up to and including numberOfVersions.0
+     * @param latencyMillis    the simulated duration of each call
+     */
+    public StubDataverseService(int numberOfVersions, long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        this.history = new ArrayList<>(numberOfVersions);
+
+        for (var major = numberOfVersions; major >= 1; --major) {
+            history.add(createVersion(major, 0, "RELEASED", createBagId(major)));
+        }
+        // the draft inherited the bag id of the latest version, so a new one must be minted
+        this.draft = createVersion(numberOfVersions + 1, 0, "DRAFT", createBagId(numberOfVersions));
+    }
+
+    public StepInvocation createStepInvocation(String invocationId) {
+        return new StepInvocation(invocationId, GLOBAL_ID, "1", String.valueOf(draft.getVersionNumber()), "0");
+    }
+
+    public List<DatasetVersion> getHistory() {
+        return history;
+    }
+
+    public DatasetVersion getDraft() {
+        return draft;
+    }
+
+    private static String createBagId(int major) {
+        return String.format("urn:uuid:00000000-0000-0000-0000-%012d", major);
+    }
+
+    static DatasetVersion createVersion(int major, int minor, String state, String bagId) {
+        var version = new DatasetVersion();
+        version.setVersionNumber(major);
+        version.setVersionMinorNumber(minor);
+        version.setVersionState(state);
+
+        var fields = new ArrayList<MetadataField>();
+        fields.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_DATAVERSE_PID, GLOBAL_ID));
+        fields.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION, major + "." + minor));
+        fields.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_BAG_ID, bagId));
+        fields.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_NBN, NBN));
+
+        var block = new MetadataBlock();
+        block.setFields(fields);
+
+        var blocks = new HashMap<String, MetadataBlock>();
+        blocks.put("dansDataVaultMetadata", block);
+        version.setMetadataBlocks(blocks);
+        return version;
+    }
+
+    private void simulateLatency() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public DataverseHttpResponse<Object> resumeWorkflow(StepInvocation stepInvocation, ResumeMessage resumeMessage) {
+        simulateLatency();
+        return null;
+    }
+
+    @Override
+    public Optional<DatasetVersion> getVersion(StepInvocation stepInvocation, String name) {
+        simulateLatency();
+        return Optional.of(draft);
+    }
+
+    @Override
+    public Collection<DatasetVersion> getVaultMetadataHistory(StepInvocation stepInvocation) {
+        simulateLatency();
+        return history;
+    }
+
+    @Override
+    public void lockDataset(StepInvocation stepInvocation, String workflow) {
+        simulateLatency();
+    }
+
+    @Override
+    public void editMetadata(StepInvocation stepInvocation, FieldList fieldList) {
+        simulateLatency();
+    }
+
+    @Override
+    public void deleteMetadata(StepInvocation stepInvocation, FieldList fieldList) {
+        simulateLatency();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import nl.knaw.dans.wf.vaultmd.config.TaskExecutorConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the platform thread pool (configured as in the default config.yml) with the virtual thread executor, for bursts of invocations against a stubbed Dataverse
+ * with a fixed latency per call. The throughput mode shows the number of bursts handled per second, the sample time mode the latency percentiles (including p99) of
+ * handling a burst.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TaskExecutorBenchmark {
+
+    @Param({ "PLATFORM_POOL", "VIRTUAL_THREADS" })
+    public TaskExecutorConfig.Mode mode;
+
+    @Param({ "14", "100" })
+    public int burstSize;
+
+    @Param({ "2" })
+    public long dataverseLatencyMillis;
+
+    private StubDataverseService dataverseService;
+    private ScheduledExecutorService scheduler;
+    private RetryScheduler retryScheduler;
+    private TaskMetrics taskMetrics;
+    private ThreadPoolExecutor pool;
+    private VirtualThreadTaskExecutor virtualThreadExecutor;
+    private Executor executor;
+
+    private final IdMintingService idMintingService = new IdMintingServiceImpl();
+    private final IdValidator idValidator = new IdValidatorImpl();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataverseService = new StubDataverseService(10, dataverseLatencyMillis);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        retryScheduler = new RetryScheduler(scheduler, Runnable::run, new MetricRegistry(), new RetryConfig());
+        taskMetrics = new TaskMetrics(new MetricRegistry());
+
+        if (mode == TaskExecutorConfig.Mode.PLATFORM_POOL) {
+            // the same settings as the taskQueue in the default configuration
+            pool = new ThreadPoolExecutor(2, 10, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(4));
+            executor = pool;
+        }
+        else {
+            virtualThreadExecutor = new VirtualThreadTaskExecutor(10);
+            executor = virtualThreadExecutor;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.stop();
+        }
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    public void burst() throws InterruptedException {
+        var done = new CountDownLatch(burstSize);
+        var listener = new TaskListener() {
+
+            @Override
+            public void onResumed(StepInvocation stepInvocation) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(StepInvocation stepInvocation, Exception e) {
+                done.countDown();
+            }
+        };
+
+        var context = new TaskContext(dataverseService, null, idMintingService, idValidator, retryScheduler, null);
+        for (var i = 0; i < burstSize; ++i) {
+            var stepInvocation = dataverseService.createStepInvocation("invocation-" + i);
+            submit(new SetVaultMetadataTask(stepInvocation, context, listener, taskMetrics));
+        }
+
+        done.await();
+    }
+
+    private void submit(Runnable task) throws InterruptedException {
+        while (true) {
+            try {
+                executor.execute(task);
+                return;
+            }
+            catch (RejectedExecutionException e) {
+                // the queue is full; back off, like Dataverse would have to retry a rejected invocation
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the CPU-bound parts of {@link SetVaultMetadataTask} for version histories of increasing length, served by an in-memory Dataverse without latency. Run
+ * with {@code -prof gc} to see the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VaultMetadataBenchmark {
+
+    @Param({ "1", "10", "100", "1000", "10000" })
+    public int numberOfVersions;
+
+    private StubDataverseService dataverseService;
+    private StepInvocation stepInvocation;
+    private SetVaultMetadataTask task;
+    private VersionHistory versionHistory;
+    private FieldList metadata;
+    private Set<String> bagIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, DataverseException {
+        dataverseService = new StubDataverseService(numberOfVersions, 0);
+        stepInvocation = dataverseService.createStepInvocation("invocation-1");
+        // the resume stage is not measured, so no retry scheduler is needed
+        task = new SetVaultMetadataTask(stepInvocation, new TaskContext(dataverseService, null, new IdMintingServiceImpl(), new IdValidatorImpl(), null, null),
+            TaskListener.NO_OP, new TaskMetrics(new MetricRegistry()));
+        versionHistory = VersionHistory.fetch(dataverseService, stepInvocation);
+        metadata = task.getVaultMetadata(stepInvocation, versionHistory);
+        bagIds = dataverseService.getHistory().stream()
+            .map(v -> task.getVaultMetadataFieldValue(v, SetVaultMetadataTask.DANS_BAG_ID))
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(Collectors.toSet());
+    }
+
+    @Benchmark
+    public VersionHistory fetchVersionHistory() throws IOException, DataverseException {
+        return VersionHistory.fetch(dataverseService, stepInvocation);
+    }
+
+    @Benchmark
+    public FieldList getVaultMetadata() throws IOException, DataverseException {
+        return task.getVaultMetadata(stepInvocation, versionHistory);
+    }
+
+    @Benchmark
+    public FieldList validateBagMetadata() {
+        task.validateBagMetadata(stepInvocation, metadata, versionHistory);
+        return metadata;
+    }
+
+    @Benchmark
+    public String getBagId() {
+        return task.getBagId(dataverseService.getDraft(), bagIds);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sorting a shuffled version history with {@link VersionComparator}, in the descending order used by {@code DataverseServiceImpl}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VersionComparatorBenchmark {
+
+    @Param({ "10", "1000", "10000" })
+    public int numberOfVersions;
+
+    private final VersionComparator versionComparator = new VersionComparator();
+    private List<DatasetVersion> shuffled;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        shuffled = new ArrayList<>(numberOfVersions);
+
+        // ten minor versions per major version
+        for (var i = 0; i < numberOfVersions; ++i) {
+            shuffled.add(StubDataverseService.createVersion(i / 10 + 1, i % 10, "RELEASED", null));
+        }
+        Collections.shuffle(shuffled, new Random(42));
+    }
+
+    @Benchmark
+    public List<DatasetVersion> sortDescending() {
+        var versions = new ArrayList<>(shuffled);
+        versions.sort((a, b) -> -1 * versionComparator.compare(a, b));
+        return versions;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing a large version history response with the streaming parser of {@link VaultMetadataHistoryClient}, against building the tree model of the
+ * same response as the client library does. The versions have file listings, as sent by Dataverse versions that ignore {@code excludeFiles}. Run with
+ * {@code -prof gc} to compare the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VersionHistoryParseBenchmark {
+
+    @Param({ "100", "1000" })
+    public int numberOfVersions;
+
+    @Param({ "0", "100" })
+    public int filesPerVersion;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        body = createVersionsJson(numberOfVersions, filesPerVersion).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<DatasetVersion> streaming() throws IOException {
+        return VaultMetadataHistoryClient.readVersions(new ByteArrayInputStream(body));
+    }
+
+    @Benchmark
+    public JsonNode treeModel() throws IOException {
+        return objectMapper.readTree(new ByteArrayInputStream(body));
+    }
+
+    private static String createVersionsJson(int numberOfVersions, int filesPerVersion) {
+        var json = new StringBuilder("{\"status\":\"OK\",\"data\":[");
+        json.append("{\"id\":0,\"versionState\":\"DRAFT\",\"metadataBlocks\":{},\"files\":[]}");
+
+        for (var v = numberOfVersions - 1; v >= 0; --v) {
+            var major = 1 + v / 2;
+            var minor = v % 2;
+            json.append(",{\"id\":").append(v + 1)
+                .append(",\"datasetPersistentId\":\"doi:10.5072/FK2/ABCDEF\"")
+                .append(",\"versionNumber\":").append(major)
+                .append(",\"versionMinorNumber\":").append(minor)
+                .append(",\"versionState\":\"RELEASED\"")
+                .append(",\"metadataBlocks\":{")
+                .append("\"citation\":{\"displayName\":\"Citation Metadata\",\"fields\":[")
+                .append("{\"typeName\":\"title\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"A dataset with many files\"}]},")
+                .append("\"dansDataVaultMetadata\":{\"displayName\":\"Data Vault Metadata\",\"fields\":[")
+                .append("{\"typeName\":\"dansDataversePid\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"doi:10.5072/FK2/ABCDEF\"},")
+                .append("{\"typeName\":\"dansDataversePidVersion\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"").append(major).append('.').append(minor).append("\"},")
+                .append("{\"typeName\":\"dansBagId\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"urn:uuid:00000000-0000-0000-0000-")
+                .append(String.format("%012d", v)).append("\"},")
+                .append("{\"typeName\":\"dansNbn\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"urn:nbn:nl:ui:13-00000000-0000-0000-0000-000000000000\"}]}}")
+                .append(",\"files\":[");
+
+            for (var f = 0; f < filesPerVersion; ++f) {
+                if (f > 0) {
+                    json.append(',');
+                }
+                json.append("{\"label\":\"file-").append(f).append(".txt\",\"restricted\":false,\"version\":1,\"datasetVersionId\":").append(v + 1)
+                    .append(",\"dataFile\":{\"id\":").append(f).append(",\"filename\":\"file-").append(f)
+                    .append(".txt\",\"contentType\":\"text/plain\",\"filesize\":1024,")
+                    .append("\"checksum\":{\"type\":\"SHA-1\",\"value\":\"da39a3ee5e6b4b0d3255bfef95601890afd80709\"}}}");
+            }
+            json.append("]}");
+        }
+
+        return json.append("]}").toString();
+    }
+}
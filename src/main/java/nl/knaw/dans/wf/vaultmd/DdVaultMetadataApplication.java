@@ -15,18 +15,66 @@
  */
 package nl.knaw.dans.wf.vaultmd;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import io.dropwizard.client.HttpClientConfiguration;
 import io.dropwizard.core.Application;
 import io.dropwizard.core.setup.Bootstrap;
 import io.dropwizard.core.setup.Environment;
+import nl.knaw.dans.lib.dataverse.DataverseClient;
+import nl.knaw.dans.lib.util.DataverseClientFactory;
+import nl.knaw.dans.wf.vaultmd.cli.AuditVaultMetadataCommand;
+import nl.knaw.dans.wf.vaultmd.cli.RebuildIdRegistryCommand;
+import nl.knaw.dans.wf.vaultmd.config.AdmissionConfig;
+import nl.knaw.dans.wf.vaultmd.config.DataverseInstanceConfig;
+import nl.knaw.dans.wf.vaultmd.config.IdMintingConfig;
+import nl.knaw.dans.wf.vaultmd.config.LockWaitConfig;
+import nl.knaw.dans.wf.vaultmd.config.TaskExecutorConfig;
+import nl.knaw.dans.wf.vaultmd.core.AdaptiveLockWaitStrategy;
+import nl.knaw.dans.wf.vaultmd.core.AsyncDataverseService;
+import nl.knaw.dans.wf.vaultmd.core.AsyncDataverseServiceImpl;
+import nl.knaw.dans.wf.vaultmd.core.CircuitBreaker;
+import nl.knaw.dans.wf.vaultmd.core.ClientLibraryLockWaitStrategy;
+import nl.knaw.dans.wf.vaultmd.core.DatasetLocksClient;
+import nl.knaw.dans.wf.vaultmd.core.DataverseHttpClientBuilder;
 import nl.knaw.dans.wf.vaultmd.core.DataverseServiceImpl;
+import nl.knaw.dans.wf.vaultmd.core.IdMintingService;
 import nl.knaw.dans.wf.vaultmd.core.IdMintingServiceImpl;
-import nl.knaw.dans.wf.vaultmd.core.IdValidatorImpl;
+import nl.knaw.dans.wf.vaultmd.core.IdRegistry;
+import nl.knaw.dans.wf.vaultmd.core.IdValidator;
+import nl.knaw.dans.wf.vaultmd.core.InvocationDeduplicator;
+import nl.knaw.dans.wf.vaultmd.core.KeyedExecutor;
+import nl.knaw.dans.wf.vaultmd.core.LockWaitMetrics;
+import nl.knaw.dans.wf.vaultmd.core.LockWaitStrategy;
+import nl.knaw.dans.wf.vaultmd.core.PooledIdMintingService;
+import nl.knaw.dans.wf.vaultmd.core.QuotaExecutor;
+import nl.knaw.dans.wf.vaultmd.core.ResilientDataverseService;
+import nl.knaw.dans.wf.vaultmd.core.RetryScheduler;
+import nl.knaw.dans.wf.vaultmd.core.RollbackJournal;
+import nl.knaw.dans.wf.vaultmd.core.RollbackQueue;
+import nl.knaw.dans.wf.vaultmd.core.SharedLockPoller;
+import nl.knaw.dans.wf.vaultmd.core.StrictIdValidator;
+import nl.knaw.dans.wf.vaultmd.core.TaskContext;
+import nl.knaw.dans.wf.vaultmd.core.TaskJournal;
+import nl.knaw.dans.wf.vaultmd.core.TaskQueue;
+import nl.knaw.dans.wf.vaultmd.core.VaultMetadataHistoryClient;
+import nl.knaw.dans.wf.vaultmd.core.VersionHistoryCache;
+import nl.knaw.dans.wf.vaultmd.core.VersionHistorySource;
+import nl.knaw.dans.wf.vaultmd.core.VirtualThreadTaskExecutor;
 import nl.knaw.dans.wf.vaultmd.health.DataverseResponsiveCheck;
+import nl.knaw.dans.wf.vaultmd.resources.DataverseInstanceResource;
 import nl.knaw.dans.wf.vaultmd.resources.StepInvocationResource;
 import nl.knaw.dans.wf.vaultmd.resources.StepRollbackResource;
+import nl.knaw.dans.wf.vaultmd.resources.TaskQueueFullExceptionMapper;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 
-import java.util.concurrent.ExecutorService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class DdVaultMetadataApplication extends Application<DdVaultMetadataConfiguration> {
 
@@ -42,20 +90,273 @@ public class DdVaultMetadataApplication extends Application<DdVaultMetadataConfi
     @Override
     public void initialize(final Bootstrap<DdVaultMetadataConfiguration> bootstrap) {
         bootstrap.getObjectMapper().enable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        bootstrap.addCommand(new RebuildIdRegistryCommand());
+        bootstrap.addCommand(new AuditVaultMetadataCommand());
     }
 
     @Override
     public void run(final DdVaultMetadataConfiguration configuration, final Environment environment) {
-        final var dv = configuration.getDataverse().build(environment, "dd-vault-metadata/dataverse");
-        final var mdkey = configuration.getVaultMetadataKey();
-        final var dataverseService = new DataverseServiceImpl(dv, mdkey);
-        final var idValidator = new IdValidatorImpl();
-        final var idMintingService = new IdMintingServiceImpl();
-
-        environment.healthChecks().register("Dataverse", new DataverseResponsiveCheck(dv));
-        ExecutorService executor = configuration.getTaskQueue().build(environment);
-        environment.jersey().register(new StepInvocationResource(executor, dataverseService, idMintingService, idValidator));
-        environment.jersey().register(new StepRollbackResource(executor));
+        final var idValidator = new StrictIdValidator();
+        IdMintingService idMintingService = new IdMintingServiceImpl();
+        if (configuration.getIdMinting().getMode() == IdMintingConfig.Mode.POOLED) {
+            final var pooledIdMintingService = new PooledIdMintingService(idMintingService, configuration.getIdMinting().getPoolSize(),
+                configuration.getIdMinting().getLowWaterMark(), environment.metrics());
+            environment.lifecycle().manage(pooledIdMintingService);
+            idMintingService = pooledIdMintingService;
+        }
+
+        // the tasks record their outcome in the journals and the id registry, so these are managed before the executor, to be stopped after it
+        final var taskJournals = new HashMap<String, TaskJournal>();
+        final var defaultTaskJournal = createTaskJournal(configuration, environment, null);
+        for (final var name : configuration.getDataverseInstances().keySet()) {
+            taskJournals.put(name, createTaskJournal(configuration, environment, name));
+        }
+        final var rollbackJournals = new HashMap<String, RollbackJournal>();
+        final var defaultRollbackJournal = createRollbackJournal(configuration, environment, null);
+        for (final var name : configuration.getDataverseInstances().keySet()) {
+            rollbackJournals.put(name, createRollbackJournal(configuration, environment, name));
+        }
+
+        // shared by all instances, so that bag ids are unique across them
+        IdRegistry idRegistry = null;
+        if (configuration.getIdRegistry() != null) {
+            idRegistry = new IdRegistry(configuration.getIdRegistry().getPath(), environment.getObjectMapper());
+            environment.lifecycle().manage(idRegistry);
+        }
+
+        final Executor executor;
+        if (configuration.getTaskExecutor().getMode() == TaskExecutorConfig.Mode.VIRTUAL_THREADS) {
+            final var virtualThreadExecutor = new VirtualThreadTaskExecutor(configuration.getTaskExecutor().getMaxConcurrentTasks());
+            environment.lifecycle().manage(virtualThreadExecutor);
+            environment.metrics().register(MetricRegistry.name(VirtualThreadTaskExecutor.class, "active"), (Gauge<Integer>) virtualThreadExecutor::getActiveCount);
+            environment.metrics().register(MetricRegistry.name(VirtualThreadTaskExecutor.class, "waiting"), (Gauge<Integer>) virtualThreadExecutor::getWaitingCount);
+            executor = virtualThreadExecutor;
+        }
+        else {
+            final var pool = configuration.getTaskQueue().build(environment);
+            if (pool instanceof ThreadPoolExecutor) {
+                final var threadPool = (ThreadPoolExecutor) pool;
+                environment.metrics().register(MetricRegistry.name(ThreadPoolExecutor.class, "taskQueue", "active"), (Gauge<Integer>) threadPool::getActiveCount);
+                environment.metrics().register(MetricRegistry.name(ThreadPoolExecutor.class, "taskQueue", "queued"), (Gauge<Integer>) () -> threadPool.getQueue().size());
+                environment.metrics().register(MetricRegistry.name(ThreadPoolExecutor.class, "taskQueue", "poolSize"), (Gauge<Integer>) threadPool::getPoolSize);
+            }
+            executor = pool;
+        }
+
+        final var resumeRetryThreads = environment.lifecycle().scheduledExecutorService("resume-retry-thread-%d").threads(configuration.getResumeRetry().getThreads())
+            .build();
+
+        // the instances share the task threads and the queue of the executor, so they also share the admission budget and, unless
+        // configured otherwise, each can use a fair share of the task threads
+        final var instanceCount = 1 + configuration.getDataverseInstances().size();
+        final var admission = shareAdmission(configuration.getAdmission(), instanceCount);
+        final Integer fairShare = instanceCount == 1 ? null : Math.max(1, getTaskThreads(configuration) / instanceCount);
+
+        final var defaultInstanceConfig = new DataverseInstanceConfig();
+        defaultInstanceConfig.setDataverse(configuration.getDataverse());
+        defaultInstanceConfig.setVaultMetadataKey(configuration.getVaultMetadataKey());
+        defaultInstanceConfig.setMaxConcurrentTasks(configuration.getDataverseMaxConcurrentTasks());
+        final var defaultInstance = createInstance(configuration, environment, null, defaultInstanceConfig, environment.metrics(), executor, admission, fairShare,
+            defaultTaskJournal, defaultRollbackJournal, idMintingService, idValidator, idRegistry, resumeRetryThreads);
+        environment.jersey().register(defaultInstance.getKey());
+        environment.jersey().register(defaultInstance.getValue());
+
+        final var instances = new HashMap<String, DataverseInstanceResource.Instance>();
+        for (final var entry : configuration.getDataverseInstances().entrySet()) {
+            // the metrics of the instance are registered under dataverseInstances.<name>
+            final var metrics = new MetricRegistry();
+            environment.metrics().register(MetricRegistry.name("dataverseInstances", entry.getKey()), metrics);
+            final var instance = createInstance(configuration, environment, entry.getKey(), entry.getValue(), metrics, executor, admission, fairShare,
+                taskJournals.get(entry.getKey()), rollbackJournals.get(entry.getKey()), idMintingService, idValidator, idRegistry, resumeRetryThreads);
+            instances.put(entry.getKey(), new DataverseInstanceResource.Instance(instance.getKey(), instance.getValue()));
+        }
+        environment.jersey().register(new DataverseInstanceResource(instances));
+        environment.jersey().register(new TaskQueueFullExceptionMapper());
+    }
+
+    /**
+     * Creates the task queue, the Dataverse clients and the rollback queue of one Dataverse instance.
+     *
+     * @param name         the name of the instance, or {@code null} for the default instance
+     * @param metrics      the registry for the metrics of the instance
+     * @param admission    the admission control of the instance, with its share of the pending tasks
+     * @param defaultQuota the quota of the instance if it has none configured, or {@code null} for no quota
+     * @param taskJournal  the task journal of the instance, or {@code null} if there is none
+     * @param rollbackJournal the rollback journal of the instance
+     * @return the resources for the invocations and the rollbacks of the instance
+     */
+    private Map.Entry<StepInvocationResource, StepRollbackResource> createInstance(DdVaultMetadataConfiguration configuration, Environment environment, String name,
+        DataverseInstanceConfig instanceConfig, MetricRegistry metrics, Executor sharedExecutor, AdmissionConfig admission, Integer defaultQuota,
+        TaskJournal taskJournal, RollbackJournal rollbackJournal, IdMintingService idMintingService, IdValidator idValidator, IdRegistry idRegistry, ScheduledExecutorService resumeRetryThreads) {
+        final var suffix = name == null ? "" : "-" + name;
+        final var dataverse = instanceConfig.getDataverse();
+        final var maxConcurrentTasks = instanceConfig.getMaxConcurrentTasks() == null ? defaultQuota : instanceConfig.getMaxConcurrentTasks();
+
+        configureDataverseConnectionPool(configuration, dataverse.getHttpClient(), maxConcurrentTasks);
+        final var dv = dataverse.build(environment, "dd-vault-metadata/dataverse" + suffix);
+        final var historyHttpClient = new DataverseHttpClientBuilder(environment, configuration.getDataversePool().getEvictIdleAfter())
+            .using(dataverse.getHttpClient())
+            .build("dd-vault-metadata/dataverse-history" + suffix);
+        final var historyClient = new VaultMetadataHistoryClient(historyHttpClient, dataverse.getBaseUrl(), dataverse.getApiKey());
+        final var lockWaitStrategy = createLockWaitStrategy(configuration, environment, metrics, suffix, dataverse, dv, historyHttpClient);
+        VersionHistorySource historySource = historyClient;
+        if (configuration.getVersionHistoryCache() != null) {
+            final var cacheConfig = configuration.getVersionHistoryCache();
+            historySource = new VersionHistoryCache(historyClient, cacheConfig.getMaxVersions(), cacheConfig.getPageSize(), cacheConfig.getExpireAfter().toMilliseconds(),
+                metrics);
+        }
+        final var circuitBreakerConfig = configuration.getCircuitBreaker();
+        final var circuitBreaker = new CircuitBreaker(circuitBreakerConfig.getFailureThreshold(), circuitBreakerConfig.getOpenDuration().toMilliseconds(),
+            circuitBreakerConfig.getHalfOpenCalls());
+        final var dataverseService = new ResilientDataverseService(new DataverseServiceImpl(dv, instanceConfig.getVaultMetadataKey(), historySource, lockWaitStrategy),
+            circuitBreaker, circuitBreakerConfig.getMaxConcurrentCalls(), circuitBreakerConfig.getMaxWait().toMilliseconds(), metrics);
+
+        final var healthCheckConfig = configuration.getDataverseHealthCheck();
+        final var dataverseCheck = new DataverseResponsiveCheck(dv, circuitBreaker, dataverseService::getSuccessRate,
+            environment.lifecycle().scheduledExecutorService("dataverse-health-check" + suffix + "-%d").threads(1).build(),
+            healthCheckConfig.getInterval().toMilliseconds(), healthCheckConfig.getMaxStaleness().toMilliseconds(), healthCheckConfig.getMinTrafficSuccessRate(),
+            metrics);
+        environment.lifecycle().manage(dataverseCheck);
+        environment.healthChecks().register("Dataverse" + suffix, dataverseCheck);
+
+        Executor executor = sharedExecutor;
+        if (maxConcurrentTasks != null) {
+            final var quotaExecutor = new QuotaExecutor(sharedExecutor, maxConcurrentTasks);
+            metrics.register(MetricRegistry.name(QuotaExecutor.class, "running"), (Gauge<Integer>) quotaExecutor::getRunningCount);
+            metrics.register(MetricRegistry.name(QuotaExecutor.class, "waiting"), (Gauge<Integer>) quotaExecutor::getWaitingCount);
+            executor = quotaExecutor;
+        }
+
+        final var attemptThreads = configuration.getResumeRetry().getAttemptThreads();
+        final var resumeAttemptExecutor = environment.lifecycle().executorService("resume-attempt" + suffix + "-%d").minThreads(attemptThreads)
+            .maxThreads(attemptThreads).build();
+        final var retryScheduler = new RetryScheduler(resumeRetryThreads, resumeAttemptExecutor, metrics, configuration.getResumeRetry());
+
+        // managed after the journal, so that incomplete invocations can be replayed when the queue is started
+        final var deduplicator = new InvocationDeduplicator(configuration.getDeduplication().getMaxEntries(),
+            configuration.getDeduplication().getExpireAfter().toMilliseconds());
+
+        AsyncDataverseService asyncDataverseService = null;
+        if (configuration.getTaskExecutor().getPipeline() == TaskExecutorConfig.Pipeline.ASYNC) {
+            final var dataverseCalls = configuration.getTaskExecutor().getMaxConcurrentDataverseCalls();
+            final var ioExecutor = environment.lifecycle().executorService("dataverse-io" + suffix + "-%d").minThreads(dataverseCalls).maxThreads(dataverseCalls).build();
+            asyncDataverseService = new AsyncDataverseServiceImpl(dataverseService, dataverseService.guard(lockWaitStrategy), ioExecutor);
+        }
+
+        final var rollback = configuration.getRollback();
+        final var rollbackExecutor = environment.lifecycle().executorService("rollback" + suffix + "-%d").minThreads(rollback.getThreads())
+            .maxThreads(rollback.getThreads()).workQueue(new ArrayBlockingQueue<>(rollback.getMaxQueuedDatasets())).build();
+        // the tasks and the rollbacks for a dataset are executed one after the other
+        final var datasetExecutor = new KeyedExecutor(executor);
+        final var rollbackQueue = new RollbackQueue(dataverseService, rollbackJournal, datasetExecutor, rollbackExecutor, admission.getMinRetryAfter().toSeconds(),
+            metrics);
+
+        final var taskContext = new TaskContext(dataverseService, asyncDataverseService, idMintingService, idValidator, retryScheduler, idRegistry);
+        final var taskQueue = new TaskQueue(datasetExecutor, taskContext, admission, circuitBreaker, deduplicator, taskJournal, rollbackJournal, metrics);
+        environment.lifecycle().manage(taskQueue);
+
+        return Map.entry(new StepInvocationResource(taskQueue, environment.getObjectMapper(), environment.getValidator(), admission.getMaxBatchSize()),
+            new StepRollbackResource(rollbackQueue));
+    }
+
+    /**
+     * @param name the name of the instance, or {@code null} for the default instance
+     * @return the task journal of the instance, or {@code null} if the journal is disabled
+     */
+    private TaskJournal createTaskJournal(DdVaultMetadataConfiguration configuration, Environment environment, String name) {
+        final var journalConfig = configuration.getTaskJournal();
+        if (journalConfig == null) {
+            return null;
+        }
+        final var journalPath = journalConfig.getPath();
+        final var taskJournal = new TaskJournal(name == null ? journalPath : journalPath.resolveSibling(name + "-" + journalPath.getFileName()),
+            journalConfig.getMaxBatchSize(), journalConfig.getCompactAfter(), environment.getObjectMapper());
+        environment.lifecycle().manage(taskJournal);
+        return taskJournal;
+    }
+
+    /**
+     * @param name the name of the instance, or {@code null} for the default instance
+     * @return the rollback journal of the instance, kept in a file if a path is configured and in memory otherwise
+     */
+    private RollbackJournal createRollbackJournal(DdVaultMetadataConfiguration configuration, Environment environment, String name) {
+        final var rollback = configuration.getRollback();
+        final var journalPath = rollback.getPath();
+        if (journalPath == null) {
+            return new RollbackJournal(rollback.getMaxEntries(), rollback.getExpireAfter().toMilliseconds());
+        }
+        final var rollbackJournal = new RollbackJournal(name == null ? journalPath : journalPath.resolveSibling(name + "-" + journalPath.getFileName()),
+            environment.getObjectMapper(), rollback.getMaxEntries(), rollback.getExpireAfter().toMilliseconds());
+        environment.lifecycle().manage(rollbackJournal);
+        return rollbackJournal;
+    }
+
+    /**
+     * Divides the pending tasks that the executor can hold over the instances, so that the executor does not reject the tasks of one instance while the
+     * others are within their budget.
+     */
+    private AdmissionConfig shareAdmission(AdmissionConfig admission, int instanceCount) {
+        final var share = new AdmissionConfig();
+        share.setMaxPendingTasks(Math.max(1, admission.getMaxPendingTasks() / instanceCount));
+        share.setMaxBatchSize(admission.getMaxBatchSize());
+        share.setMinRetryAfter(admission.getMinRetryAfter());
+        share.setMaxRetryAfter(admission.getMaxRetryAfter());
+        return share;
+    }
+
+    private int getTaskThreads(DdVaultMetadataConfiguration configuration) {
+        final var taskExecutor = configuration.getTaskExecutor();
+        if (taskExecutor.getMode() == TaskExecutorConfig.Mode.VIRTUAL_THREADS) {
+            return taskExecutor.getMaxConcurrentTasks();
+        }
+        return configuration.getTaskQueue().getMaxThreads();
+    }
+
+    /**
+     * Sizes the connection pools of the Dataverse clients to the number of tasks that can call Dataverse at the same time, so that adding threads does not
+     * just move the waiting from the task queue to the connection pool.
+     *
+     * @param maxConcurrentTasks the quota of the instance, or {@code null} if it has none
+     */
+    private void configureDataverseConnectionPool(DdVaultMetadataConfiguration configuration, HttpClientConfiguration httpClient, Integer maxConcurrentTasks) {
+        final var pool = configuration.getDataversePool();
+        final var taskExecutor = configuration.getTaskExecutor();
+        int concurrency;
+        if (taskExecutor.getPipeline() == TaskExecutorConfig.Pipeline.ASYNC) {
+            concurrency = taskExecutor.getMaxConcurrentDataverseCalls();
+        }
+        else {
+            concurrency = getTaskThreads(configuration);
+            if (maxConcurrentTasks != null) {
+                concurrency = Math.min(concurrency, maxConcurrentTasks);
+            }
+        }
+        final var maxConnections = concurrency * pool.getConnectionsPerTask() + pool.getExtraConnections();
+        // all requests go to the same host, so the pool has a single route
+        httpClient.setMaxConnections(maxConnections);
+        httpClient.setMaxConnectionsPerRoute(maxConnections);
+        httpClient.setKeepAlive(pool.getKeepAlive());
+        httpClient.setValidateAfterInactivityPeriod(pool.getValidateAfterInactivity());
+        httpClient.setConnectionRequestTimeout(pool.getLeaseTimeout());
+    }
+
+    private LockWaitStrategy createLockWaitStrategy(DdVaultMetadataConfiguration configuration, Environment environment, MetricRegistry metricRegistry, String suffix,
+        DataverseClientFactory dataverse, DataverseClient dv, CloseableHttpClient httpClient) {
+        final var lockWait = configuration.getLockWait();
+        final var metrics = new LockWaitMetrics(metricRegistry);
+
+        if (lockWait.getMode() == LockWaitConfig.Mode.SHARED) {
+            final var locksClient = new DatasetLocksClient(httpClient, dataverse.getBaseUrl(), dataverse.getApiKey());
+            final var poller = new SharedLockPoller(locksClient, environment.lifecycle().scheduledExecutorService("lock-poller-thread" + suffix + "-%d").threads(1).build(),
+                lockWait.getPollInterval().toMilliseconds(), lockWait.getTimeout().toMilliseconds(), metrics);
+            environment.lifecycle().manage(poller);
+            return poller;
+        }
+        else if (lockWait.getMode() == LockWaitConfig.Mode.CLIENT_LIBRARY) {
+            return new ClientLibraryLockWaitStrategy(dv, metrics);
+        }
+        return new AdaptiveLockWaitStrategy(dv, lockWait, metrics,
+            environment.lifecycle().scheduledExecutorService("lock-wait-thread" + suffix + "-%d").threads(1).build());
     }
 
 }
@@ -15,12 +15,32 @@
  */
 package nl.knaw.dans.wf.vaultmd;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.dropwizard.core.Configuration;
+import io.dropwizard.validation.ValidationMethod;
 import nl.knaw.dans.lib.util.DataverseClientFactory;
 import nl.knaw.dans.lib.util.ExecutorServiceFactory;
+import nl.knaw.dans.wf.vaultmd.config.AdmissionConfig;
+import nl.knaw.dans.wf.vaultmd.config.CircuitBreakerConfig;
+import nl.knaw.dans.wf.vaultmd.config.DataverseHealthCheckConfig;
+import nl.knaw.dans.wf.vaultmd.config.DataverseInstanceConfig;
+import nl.knaw.dans.wf.vaultmd.config.DataversePoolConfig;
+import nl.knaw.dans.wf.vaultmd.config.DeduplicationConfig;
+import nl.knaw.dans.wf.vaultmd.config.IdMintingConfig;
+import nl.knaw.dans.wf.vaultmd.config.IdRegistryConfig;
+import nl.knaw.dans.wf.vaultmd.config.LockWaitConfig;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import nl.knaw.dans.wf.vaultmd.config.RollbackConfig;
+import nl.knaw.dans.wf.vaultmd.config.TaskExecutorConfig;
+import nl.knaw.dans.wf.vaultmd.config.TaskJournalConfig;
+import nl.knaw.dans.wf.vaultmd.config.VersionHistoryCacheConfig;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class DdVaultMetadataConfiguration extends Configuration {
 
@@ -28,10 +48,66 @@ public class DdVaultMetadataConfiguration extends Configuration {
     @NotNull
     private ExecutorServiceFactory taskQueue;
 
+    @Valid
+    @NotNull
+    private TaskExecutorConfig taskExecutor = new TaskExecutorConfig();
+
+    @Valid
+    @NotNull
+    private AdmissionConfig admission = new AdmissionConfig();
+
+    @Valid
+    @NotNull
+    private DeduplicationConfig deduplication = new DeduplicationConfig();
+
+    @Valid
+    private TaskJournalConfig taskJournal;
+
+    @Valid
+    @NotNull
+    private RetryConfig resumeRetry = new RetryConfig();
+
+    @Valid
+    @NotNull
+    private LockWaitConfig lockWait = new LockWaitConfig();
+
+    @Valid
+    @NotNull
+    private RollbackConfig rollback = new RollbackConfig();
+
+    @Valid
+    private VersionHistoryCacheConfig versionHistoryCache;
+
+    @Valid
+    private IdRegistryConfig idRegistry;
+
+    @Valid
+    @NotNull
+    private IdMintingConfig idMinting = new IdMintingConfig();
+
     @Valid
     @NotNull
     private DataverseClientFactory dataverse;
 
+    @Min(1)
+    private Integer dataverseMaxConcurrentTasks;
+
+    @Valid
+    @NotNull
+    private Map<@Pattern(regexp = "[a-zA-Z0-9_-]+") String, @Valid DataverseInstanceConfig> dataverseInstances = new LinkedHashMap<>();
+
+    @Valid
+    @NotNull
+    private DataversePoolConfig dataversePool = new DataversePoolConfig();
+
+    @Valid
+    @NotNull
+    private CircuitBreakerConfig circuitBreaker = new CircuitBreakerConfig();
+
+    @Valid
+    @NotNull
+    private DataverseHealthCheckConfig dataverseHealthCheck = new DataverseHealthCheckConfig();
+
     @Valid
     private String vaultMetadataKey;
     
@@ -43,6 +119,86 @@ public class DdVaultMetadataConfiguration extends Configuration {
         return taskQueue;
     }
 
+    public TaskExecutorConfig getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    public void setTaskExecutor(TaskExecutorConfig taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    public AdmissionConfig getAdmission() {
+        return admission;
+    }
+
+    public void setAdmission(AdmissionConfig admission) {
+        this.admission = admission;
+    }
+
+    public DeduplicationConfig getDeduplication() {
+        return deduplication;
+    }
+
+    public void setDeduplication(DeduplicationConfig deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    public TaskJournalConfig getTaskJournal() {
+        return taskJournal;
+    }
+
+    public void setTaskJournal(TaskJournalConfig taskJournal) {
+        this.taskJournal = taskJournal;
+    }
+
+    public RetryConfig getResumeRetry() {
+        return resumeRetry;
+    }
+
+    public void setResumeRetry(RetryConfig resumeRetry) {
+        this.resumeRetry = resumeRetry;
+    }
+
+    public LockWaitConfig getLockWait() {
+        return lockWait;
+    }
+
+    public void setLockWait(LockWaitConfig lockWait) {
+        this.lockWait = lockWait;
+    }
+
+    public RollbackConfig getRollback() {
+        return rollback;
+    }
+
+    public void setRollback(RollbackConfig rollback) {
+        this.rollback = rollback;
+    }
+
+    public VersionHistoryCacheConfig getVersionHistoryCache() {
+        return versionHistoryCache;
+    }
+
+    public void setVersionHistoryCache(VersionHistoryCacheConfig versionHistoryCache) {
+        this.versionHistoryCache = versionHistoryCache;
+    }
+
+    public IdRegistryConfig getIdRegistry() {
+        return idRegistry;
+    }
+
+    public void setIdRegistry(IdRegistryConfig idRegistry) {
+        this.idRegistry = idRegistry;
+    }
+
+    public IdMintingConfig getIdMinting() {
+        return idMinting;
+    }
+
+    public void setIdMinting(IdMintingConfig idMinting) {
+        this.idMinting = idMinting;
+    }
+
     public DataverseClientFactory getDataverse() {
         return dataverse;
     }
@@ -51,6 +207,46 @@ public class DdVaultMetadataConfiguration extends Configuration {
         this.dataverse = dataverse;
     }
 
+    public Integer getDataverseMaxConcurrentTasks() {
+        return dataverseMaxConcurrentTasks;
+    }
+
+    public void setDataverseMaxConcurrentTasks(Integer dataverseMaxConcurrentTasks) {
+        this.dataverseMaxConcurrentTasks = dataverseMaxConcurrentTasks;
+    }
+
+    public Map<String, DataverseInstanceConfig> getDataverseInstances() {
+        return dataverseInstances;
+    }
+
+    public void setDataverseInstances(Map<String, DataverseInstanceConfig> dataverseInstances) {
+        this.dataverseInstances = dataverseInstances;
+    }
+
+    public DataversePoolConfig getDataversePool() {
+        return dataversePool;
+    }
+
+    public void setDataversePool(DataversePoolConfig dataversePool) {
+        this.dataversePool = dataversePool;
+    }
+
+    public CircuitBreakerConfig getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerConfig circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public DataverseHealthCheckConfig getDataverseHealthCheck() {
+        return dataverseHealthCheck;
+    }
+
+    public void setDataverseHealthCheck(DataverseHealthCheckConfig dataverseHealthCheck) {
+        this.dataverseHealthCheck = dataverseHealthCheck;
+    }
+
     public String getVaultMetadataKey() {
         return vaultMetadataKey;
     }
@@ -58,4 +254,13 @@ public class DdVaultMetadataConfiguration extends Configuration {
     public void setVaultMetadataKey(String vaultMetadataKey) {
         this.vaultMetadataKey = vaultMetadataKey;
     }
+
+    /**
+     * The client library polls for the lock on the calling thread, so with the ASYNC pipeline every waiting task would hold one of the Dataverse threads.
+     */
+    @JsonIgnore
+    @ValidationMethod(message = "taskExecutor.pipeline ASYNC requires lockWait.mode ADAPTIVE or SHARED")
+    public boolean isLockWaitSupportedByPipeline() {
+        return taskExecutor.getPipeline() != TaskExecutorConfig.Pipeline.ASYNC || lockWait.getMode() != LockWaitConfig.Mode.CLIENT_LIBRARY;
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The outcome for one step invocation posted to the batch endpoint. The results are returned in the order of the invocations in the request.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+
+    public enum Status {
+        ACCEPTED,
+        DUPLICATE,
+        INVALID,
+        REJECTED
+    }
+
+    private final String invocationId;
+
+    private final Status status;
+
+    private final String message;
+
+    @JsonCreator
+    public BatchItemResult(@JsonProperty("invocationId") String invocationId, @JsonProperty("status") Status status, @JsonProperty("message") String message) {
+        this.invocationId = invocationId;
+        this.status = status;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchItemResult{" + "invocationId='" + invocationId + '\'' + ", status=" + status + ", message='" + message + '\'' + '}';
+    }
+
+    @JsonProperty
+    public String getInvocationId() {
+        return invocationId;
+    }
+
+    @JsonProperty
+    public Status getStatus() {
+        return status;
+    }
+
+    @JsonProperty
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.cli;
+
+import io.dropwizard.client.HttpClientBuilder;
+import io.dropwizard.core.cli.ConfiguredCommand;
+import io.dropwizard.core.setup.Bootstrap;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import nl.knaw.dans.wf.vaultmd.DdVaultMetadataConfiguration;
+import nl.knaw.dans.wf.vaultmd.core.BulkAudit;
+import nl.knaw.dans.wf.vaultmd.core.DatasetSearchClient;
+import nl.knaw.dans.wf.vaultmd.core.StrictIdValidator;
+import nl.knaw.dans.wf.vaultmd.core.VaultMetadataAuditor;
+import nl.knaw.dans.wf.vaultmd.core.VaultMetadataHistoryClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the vault metadata of all released and deaccessioned versions of all datasets in Dataverse, or of the datasets listed in a file, and writes the results
+ * to an NDJSON report. The audit can be interrupted and resumed; it continues from the checkpoint file next to the report.
+ */
+public class AuditVaultMetadataCommand extends ConfiguredCommand<DdVaultMetadataConfiguration> {
+    private static final Logger log = LoggerFactory.getLogger(AuditVaultMetadataCommand.class);
+    private static final int SEARCH_PAGE_SIZE = 1000;
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    public AuditVaultMetadataCommand() {
+        super("audit-vault-metadata", "Checks the vault metadata of existing datasets in Dataverse");
+    }
+
+    @Override
+    public void configure(Subparser subparser) {
+        super.configure(subparser);
+        subparser.addArgument("report")
+            .metavar("REPORT")
+            .type(Path.class)
+            .help("NDJSON file to append the results to; the checkpoint is kept in REPORT.checkpoint");
+        subparser.addArgument("--pids")
+            .metavar("PID-FILE")
+            .type(Path.class)
+            .help("File with the persistent identifiers of the datasets to audit, one per line; by default all datasets are found with the search API");
+        subparser.addArgument("--concurrency")
+            .type(Integer.class)
+            .setDefault(4)
+            .help("Maximum number of datasets to audit at the same time (default: 4)");
+    }
+
+    @Override
+    protected void run(Bootstrap<DdVaultMetadataConfiguration> bootstrap, Namespace namespace, DdVaultMetadataConfiguration configuration) throws Exception {
+        Path report = namespace.get("report");
+        Path pids = namespace.get("pids");
+        int concurrency = namespace.getInt("concurrency");
+        var checkpoint = report.resolveSibling(report.getFileName() + ".checkpoint");
+        var start = BulkAudit.readCheckpoint(checkpoint);
+
+        if (start > 0) {
+            log.info("Resuming audit at position {} from checkpoint {}", start, checkpoint);
+        }
+
+        var dataverse = configuration.getDataverse();
+        var executor = Executors.newFixedThreadPool(concurrency);
+
+        try (var httpClient = new HttpClientBuilder(bootstrap.getMetricRegistry()).using(dataverse.getHttpClient()).build("dd-vault-metadata/audit")) {
+            var historyClient = new VaultMetadataHistoryClient(httpClient, dataverse.getBaseUrl(), dataverse.getApiKey());
+            var auditor = new VaultMetadataAuditor(historyClient, new StrictIdValidator());
+            var audit = new BulkAudit(auditor, executor, concurrency, report, checkpoint, CHECKPOINT_INTERVAL, bootstrap.getObjectMapper());
+
+            if (pids == null) {
+                var searchClient = new DatasetSearchClient(httpClient, dataverse.getBaseUrl(), dataverse.getApiKey());
+                log.info("Audit finished: {}", audit.run(searchClient.iterator(start, SEARCH_PAGE_SIZE), start));
+            }
+            else {
+                try (var lines = Files.lines(pids, StandardCharsets.UTF_8)) {
+                    var globalIds = lines.map(String::trim).filter(l -> !l.isEmpty()).skip(start).iterator();
+                    log.info("Audit finished: {}", audit.run(globalIds, start));
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.cli;
+
+import io.dropwizard.client.HttpClientBuilder;
+import io.dropwizard.core.cli.ConfiguredCommand;
+import io.dropwizard.core.setup.Bootstrap;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.DdVaultMetadataConfiguration;
+import nl.knaw.dans.wf.vaultmd.core.DatasetSearchClient;
+import nl.knaw.dans.wf.vaultmd.core.IdRegistry;
+import nl.knaw.dans.wf.vaultmd.core.IdRegistryEntry;
+import nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask;
+import nl.knaw.dans.wf.vaultmd.core.VaultFields;
+import nl.knaw.dans.wf.vaultmd.core.VaultMetadataHistoryClient;
+import nl.knaw.dans.wf.vaultmd.core.VersionComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Rebuilds the id registry from the released and deaccessioned versions in Dataverse of all datasets, or of the datasets listed in a file, one persistent
+ * identifier per line. The entries of each dataset are written to the new registry as soon as its versions are read. The service must not be running while the
+ * registry is rebuilt.
+ */
+public class RebuildIdRegistryCommand extends ConfiguredCommand<DdVaultMetadataConfiguration> {
+    private static final Logger log = LoggerFactory.getLogger(RebuildIdRegistryCommand.class);
+    private static final Set<String> PUBLISHED_STATES = Set.of("RELEASED", "DEACCESSIONED");
+    private static final int SEARCH_PAGE_SIZE = 1000;
+
+    private final VersionComparator versionComparator = new VersionComparator();
+
+    public RebuildIdRegistryCommand() {
+        super("rebuild-id-registry", "Rebuilds the id registry from the version histories in Dataverse");
+    }
+
+    @Override
+    public void configure(Subparser subparser) {
+        super.configure(subparser);
+        subparser.addArgument("--pids")
+            .metavar("PID-FILE")
+            .type(Path.class)
+            .help("File with the persistent identifiers of the datasets to register, one per line; by default all datasets are found with the search API");
+    }
+
+    @Override
+    protected void run(Bootstrap<DdVaultMetadataConfiguration> bootstrap, Namespace namespace, DdVaultMetadataConfiguration configuration) throws Exception {
+        if (configuration.getIdRegistry() == null) {
+            throw new IllegalStateException("No idRegistry configured");
+        }
+
+        Path pids = namespace.get("pids");
+        var dataverse = configuration.getDataverse();
+        var registry = new IdRegistry(configuration.getIdRegistry().getPath(), bootstrap.getObjectMapper());
+
+        try (var httpClient = new HttpClientBuilder(bootstrap.getMetricRegistry()).using(dataverse.getHttpClient()).build("dd-vault-metadata/rebuild-id-registry")) {
+            var historyClient = new VaultMetadataHistoryClient(httpClient, dataverse.getBaseUrl(), dataverse.getApiKey());
+
+            if (pids == null) {
+                var searchClient = new DatasetSearchClient(httpClient, dataverse.getBaseUrl(), dataverse.getApiKey());
+                rebuild(registry, historyClient, searchClient.iterator(0, SEARCH_PAGE_SIZE));
+            }
+            else {
+                try (var lines = Files.lines(pids, StandardCharsets.UTF_8)) {
+                    rebuild(registry, historyClient, lines.map(String::trim).filter(l -> !l.isEmpty()).iterator());
+                }
+            }
+        }
+
+        log.info("Rebuilt id registry {} with {} bag id(s)", configuration.getIdRegistry().getPath(), registry.getNumberOfBagIds());
+    }
+
+    private void rebuild(IdRegistry registry, VaultMetadataHistoryClient historyClient, Iterator<String> globalIds) throws IOException {
+        var datasets = new int[1];
+        var failures = new int[1];
+        // the versions of the next dataset are read when the registry has written the entries of the previous one
+        var entries = StreamSupport.stream(Spliterators.spliteratorUnknownSize(globalIds, Spliterator.ORDERED), false)
+            .flatMap(pid -> {
+                try {
+                    var datasetEntries = getEntries(historyClient, pid);
+                    datasets[0]++;
+                    return datasetEntries.stream();
+                }
+                catch (DataverseException | IOException | RuntimeException e) {
+                    log.error("Could not get versions of {}", pid, e);
+                    failures[0]++;
+                    return Stream.empty();
+                }
+            });
+
+        registry.rebuild(entries::iterator);
+        log.info("Read the versions of {} dataset(s); {} dataset(s) could not be read", datasets[0], failures[0]);
+    }
+
+    private List<IdRegistryEntry> getEntries(VaultMetadataHistoryClient historyClient, String pid) throws DataverseException, IOException {
+        // the draft has no version number, so it is left out before sorting
+        var versions = historyClient.getVersions(pid, null).stream()
+            .filter(v -> PUBLISHED_STATES.contains(v.getVersionState()))
+            .sorted(versionComparator)
+            .collect(Collectors.toList());
+        var entries = new ArrayList<IdRegistryEntry>();
+
+        for (var version : versions) {
+            var fields = VaultFields.of(version);
+
+            if (fields.getNbn() == null || fields.getBagId() == null) {
+                log.warn("Version {}.{} of {} has no {} or {}, skipping", version.getVersionNumber(), version.getVersionMinorNumber(), pid,
+                    SetVaultMetadataTask.DANS_NBN, SetVaultMetadataTask.DANS_BAG_ID);
+                continue;
+            }
+
+            entries.add(new IdRegistryEntry(pid, version.getVersionNumber() + "." + version.getVersionMinorNumber(), fields.getNbn(), fields.getBagId()));
+        }
+        return entries;
+    }
+}
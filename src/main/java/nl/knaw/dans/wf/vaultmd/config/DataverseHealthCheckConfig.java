@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.NotNull;
+
+public class DataverseHealthCheckConfig {
+
+    @NotNull
+    private Duration interval = Duration.seconds(30);
+
+    @NotNull
+    private Duration maxStaleness = Duration.minutes(2);
+
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    private double minTrafficSuccessRate = 0.5;
+
+    public Duration getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Duration interval) {
+        this.interval = interval;
+    }
+
+    public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    public void setMaxStaleness(Duration maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    public double getMinTrafficSuccessRate() {
+        return minTrafficSuccessRate;
+    }
+
+    public void setMinTrafficSuccessRate(double minTrafficSuccessRate) {
+        this.minTrafficSuccessRate = minTrafficSuccessRate;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.config;
+
+import nl.knaw.dans.lib.util.DataverseClientFactory;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class DataverseInstanceConfig {
+
+    @Valid
+    @NotNull
+    private DataverseClientFactory dataverse;
+
+    private String vaultMetadataKey;
+
+    /**
+     * The maximum number of tasks of this instance that run at the same time, or {@code null} for an equal share of the task threads.
+     */
+    @Min(1)
+    private Integer maxConcurrentTasks;
+
+    public DataverseClientFactory getDataverse() {
+        return dataverse;
+    }
+
+    public void setDataverse(DataverseClientFactory dataverse) {
+        this.dataverse = dataverse;
+    }
+
+    public String getVaultMetadataKey() {
+        return vaultMetadataKey;
+    }
+
+    public void setVaultMetadataKey(String vaultMetadataKey) {
+        this.vaultMetadataKey = vaultMetadataKey;
+    }
+
+    public Integer getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    public void setMaxConcurrentTasks(Integer maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class DataversePoolConfig {
+
+    /**
+     * The number of connections to Dataverse per task that can run at the same time.
+     */
+    @Min(1)
+    private int connectionsPerTask = 2;
+
+    /**
+     * Connections on top of those for the tasks, for the health check, the shared lock poller and the resume retries.
+     */
+    @Min(0)
+    private int extraConnections = 4;
+
+    /**
+     * How long an idle connection is kept open for reuse if Dataverse does not say otherwise.
+     */
+    @NotNull
+    private Duration keepAlive = Duration.seconds(30);
+
+    /**
+     * A connection that was idle for longer than this is checked before it is reused.
+     */
+    @NotNull
+    private Duration validateAfterInactivity = Duration.seconds(2);
+
+    /**
+     * Connections that were idle for longer than this are closed by a background thread.
+     */
+    @NotNull
+    private Duration evictIdleAfter = Duration.minutes(1);
+
+    /**
+     * How long a request waits for a connection from the pool before it fails.
+     */
+    @NotNull
+    private Duration leaseTimeout = Duration.seconds(10);
+
+    public int getConnectionsPerTask() {
+        return connectionsPerTask;
+    }
+
+    public void setConnectionsPerTask(int connectionsPerTask) {
+        this.connectionsPerTask = connectionsPerTask;
+    }
+
+    public int getExtraConnections() {
+        return extraConnections;
+    }
+
+    public void setExtraConnections(int extraConnections) {
+        this.extraConnections = extraConnections;
+    }
+
+    public Duration getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(Duration keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public Duration getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    public void setValidateAfterInactivity(Duration validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    public Duration getEvictIdleAfter() {
+        return evictIdleAfter;
+    }
+
+    public void setEvictIdleAfter(Duration evictIdleAfter) {
+        this.evictIdleAfter = evictIdleAfter;
+    }
+
+    public Duration getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    public void setLeaseTimeout(Duration leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.config;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class IdMintingConfig {
+
+    public enum Mode {
+        /**
+         * Mint every identifier when it is needed.
+         */
+        DIRECT,
+        /**
+         * Hand out identifiers that were minted in advance by a background thread.
+         */
+        POOLED
+    }
+
+    @NotNull
+    private Mode mode = Mode.DIRECT;
+
+    @Min(2)
+    private int poolSize = 1024;
+
+    @Min(0)
+    private int lowWaterMark = 256;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public void setLowWaterMark(int lowWaterMark) {
+        this.lowWaterMark = lowWaterMark;
+    }
+}
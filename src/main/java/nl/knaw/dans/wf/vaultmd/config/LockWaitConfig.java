@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.NotNull;
+
+public class LockWaitConfig {
+
+    public enum Mode {
+        /**
+         * Use {@code DatasetApi.awaitLock} of the Dataverse client library, which polls on the library's default schedule.
+         */
+        CLIENT_LIBRARY,
+        /**
+         * Poll the locks of the dataset, starting with {@code initialDelay} between polls and increasing the delay by {@code multiplier} up to {@code maxDelay},
+         * until the lock is present or {@code timeout} has passed.
+         */
+        ADAPTIVE,
+        /**
+         * Let a single poller retrieve the locks of all datasets every {@code pollInterval} and notify the tasks waiting for them. This requires the API key to
+         * belong to a superuser.
+         */
+        SHARED
+    }
+
+    @NotNull
+    private Mode mode = Mode.CLIENT_LIBRARY;
+
+    @NotNull
+    private Duration initialDelay = Duration.milliseconds(100);
+
+    @NotNull
+    private Duration maxDelay = Duration.seconds(5);
+
+    @DecimalMin("1.0")
+    private double multiplier = 2.0;
+
+    @NotNull
+    private Duration pollInterval = Duration.seconds(1);
+
+    @NotNull
+    private Duration timeout = Duration.minutes(1);
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Duration getInitialDelay() {
+        return initialDelay;
+    }
+
+    public void setInitialDelay(Duration initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(Duration maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    public Duration getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(Duration pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+}
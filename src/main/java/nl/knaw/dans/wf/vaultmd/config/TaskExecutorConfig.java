@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.config;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class TaskExecutorConfig {
+
+    public enum Mode {
+        /**
+         * Run the tasks on the bounded pool of platform threads configured in {@code taskQueue}.
+         */
+        PLATFORM_POOL,
+        /**
+         * Run every task on its own virtual thread, with at most {@code maxConcurrentTasks} tasks running at the same time.
+         */
+        VIRTUAL_THREADS
+    }
+
+    public enum Pipeline {
+        /**
+         * Each task calls Dataverse on its own thread, one call after the other.
+         */
+        BLOCKING,
+        /**
+         * Each task is a pipeline of futures: the calls to Dataverse run on a separate pool of {@code maxConcurrentDataverseCalls} threads, independent calls run
+         * at the same time, and the task does not hold a thread of the task executor while waiting.
+         */
+        ASYNC
+    }
+
+    @NotNull
+    private Mode mode = Mode.PLATFORM_POOL;
+
+    @NotNull
+    private Pipeline pipeline = Pipeline.BLOCKING;
+
+    @Min(1)
+    private int maxConcurrentDataverseCalls = 20;
+
+    @Min(1)
+    private int maxConcurrentTasks = 10;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    public void setPipeline(Pipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public int getMaxConcurrentDataverseCalls() {
+        return maxConcurrentDataverseCalls;
+    }
+
+    public void setMaxConcurrentDataverseCalls(int maxConcurrentDataverseCalls) {
+        this.maxConcurrentDataverseCalls = maxConcurrentDataverseCalls;
+    }
+
+    public int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    public void setMaxConcurrentTasks(int maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DatasetApi;
+import nl.knaw.dans.lib.dataverse.DataverseClient;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.LockWaitConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the locks of the dataset until the lock is present. The first poll is made immediately, since the workflow lock is normally already in place when the step
+ * is invoked. After that the delay between polls starts at the initial delay and grows by the multiplier up to the maximum delay, so that a dataset that stays
+ * unlocked for a while costs only a few requests. Gives up when the timeout has passed.
+ * <p>
+ * {@link #awaitLockAsync} makes each poll on the given executor and waits for the next one on the scheduler, so that no thread is held between the polls.
+ */
+public class AdaptiveLockWaitStrategy implements LockWaitStrategy {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveLockWaitStrategy.class);
+
+    private final DataverseClient dataverseClient;
+    private final LockWaitConfig config;
+    private final LockWaitMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param scheduler schedules the polls of {@link #awaitLockAsync}
+     */
+    public AdaptiveLockWaitStrategy(DataverseClient dataverseClient, LockWaitConfig config, LockWaitMetrics metrics, ScheduledExecutorService scheduler) {
+        this.dataverseClient = dataverseClient;
+        this.config = config;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void awaitLock(StepInvocation stepInvocation, String lockType) throws DataverseException, IOException {
+        var dataset = dataverseClient.dataset(stepInvocation.getGlobalId(), stepInvocation.getInvocationId());
+        var deadline = System.nanoTime() + config.getTimeout().toNanoseconds();
+        var delay = config.getInitialDelay().toMilliseconds();
+        var maxDelay = config.getMaxDelay().toMilliseconds();
+        var polls = 0;
+
+        try (var ignored = metrics.startWaiting()) {
+            while (true) {
+                metrics.polled();
+                polls++;
+
+                if (hasLock(dataset, lockType)) {
+                    log.debug("Found {} lock on {} after {} poll(s)", lockType, stepInvocation.getGlobalId(), polls);
+                    return;
+                }
+
+                var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                if (remaining <= 0) {
+                    metrics.timedOut();
+                    throw new IllegalStateException(String.format("Dataset %s did not get a %s lock within %s (%d polls)",
+                        stepInvocation.getGlobalId(), lockType, config.getTimeout(), polls));
+                }
+
+                sleep(Math.min(delay, remaining));
+                delay = Math.min((long) (delay * config.getMultiplier()), maxDelay);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> awaitLockAsync(StepInvocation stepInvocation, String lockType, Executor executor) {
+        var wait = new AsyncWait(stepInvocation, lockType, executor);
+        var timer = metrics.startWaiting();
+        wait.submitPoll();
+        return wait.result.whenComplete((v, e) -> timer.stop());
+    }
+
+    /**
+     * The state of one asynchronous wait: each poll runs on the executor and, if the lock is not there yet, schedules the next one.
+     */
+    private class AsyncWait {
+        private final StepInvocation stepInvocation;
+        private final String lockType;
+        private final Executor executor;
+        private final DatasetApi dataset;
+        private final long deadline;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private long delay = config.getInitialDelay().toMilliseconds();
+        private int polls;
+
+        private AsyncWait(StepInvocation stepInvocation, String lockType, Executor executor) {
+            this.stepInvocation = stepInvocation;
+            this.lockType = lockType;
+            this.executor = executor;
+            this.dataset = dataverseClient.dataset(stepInvocation.getGlobalId(), stepInvocation.getInvocationId());
+            this.deadline = System.nanoTime() + config.getTimeout().toNanoseconds();
+        }
+
+        private void submitPoll() {
+            try {
+                executor.execute(this::poll);
+            }
+            catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private void poll() {
+            try {
+                metrics.polled();
+                polls++;
+
+                if (hasLock(dataset, lockType)) {
+                    log.debug("Found {} lock on {} after {} poll(s)", lockType, stepInvocation.getGlobalId(), polls);
+                    result.complete(null);
+                    return;
+                }
+
+                var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                if (remaining <= 0) {
+                    metrics.timedOut();
+                    result.completeExceptionally(new IllegalStateException(String.format("Dataset %s did not get a %s lock within %s (%d polls)",
+                        stepInvocation.getGlobalId(), lockType, config.getTimeout(), polls)));
+                    return;
+                }
+
+                scheduler.schedule(this::submitPoll, Math.min(delay, remaining), TimeUnit.MILLISECONDS);
+                delay = Math.min((long) (delay * config.getMultiplier()), config.getMaxDelay().toMilliseconds());
+            }
+            catch (DataverseException | IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private boolean hasLock(DatasetApi dataset, String lockType) throws DataverseException, IOException {
+        var locks = dataset.getLocks().getData();
+        return locks != null && locks.stream().anyMatch(lock -> lockType.equals(lock.getLockType()));
+    }
+
+    void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for lock");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The calls to Dataverse made by an {@link AsyncSetVaultMetadataTask}, as futures. The futures complete exceptionally with the exceptions thrown by the
+ * corresponding methods of {@link DataverseService}, wrapped in a {@link java.util.concurrent.CompletionException}.
+ */
+public interface AsyncDataverseService {
+
+    CompletableFuture<Void> lockDataset(StepInvocation stepInvocation, String workflow);
+
+    CompletableFuture<Optional<DatasetVersion>> getVersion(StepInvocation stepInvocation, String name);
+
+    /**
+     * @see DataverseService#getVaultMetadataHistory(StepInvocation)
+     */
+    CompletableFuture<Collection<DatasetVersion>> getVaultMetadataHistory(StepInvocation stepInvocation);
+
+    CompletableFuture<Void> editMetadata(StepInvocation stepInvocation, FieldList fieldList);
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the blocking calls of a {@link DataverseService} on a separate executor for I/O, so that the threads of the task executor only compose the futures and are
+ * never blocked on Dataverse. Waiting for the workflow lock is delegated to {@link LockWaitStrategy#awaitLockAsync}, which does not need a thread at all with
+ * the shared lock poller. Since the lock wait does not go through the {@link DataverseService}, a guarded strategy (see
+ * {@link ResilientDataverseService#guard}) should be passed to keep it from waiting while Dataverse is unavailable.
+ */
+public class AsyncDataverseServiceImpl implements AsyncDataverseService {
+
+    private final DataverseService dataverseService;
+    private final LockWaitStrategy lockWaitStrategy;
+    private final Executor ioExecutor;
+
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    public AsyncDataverseServiceImpl(DataverseService dataverseService, LockWaitStrategy lockWaitStrategy, Executor ioExecutor) {
+        this.dataverseService = dataverseService;
+        this.lockWaitStrategy = lockWaitStrategy;
+        this.ioExecutor = ioExecutor;
+    }
+
+    @Override
+    public CompletableFuture<Void> lockDataset(StepInvocation stepInvocation, String workflow) {
+        return lockWaitStrategy.awaitLockAsync(stepInvocation, workflow, ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Optional<DatasetVersion>> getVersion(StepInvocation stepInvocation, String name) {
+        return supply(() -> dataverseService.getVersion(stepInvocation, name));
+    }
+
+    @Override
+    public CompletableFuture<Collection<DatasetVersion>> getVaultMetadataHistory(StepInvocation stepInvocation) {
+        return supply(() -> dataverseService.getVaultMetadataHistory(stepInvocation));
+    }
+
+    @Override
+    public CompletableFuture<Void> editMetadata(StepInvocation stepInvocation, FieldList fieldList) {
+        return supply(() -> {
+            dataverseService.editMetadata(stepInvocation, fieldList);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> supply(Call<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            }
+            catch (RuntimeException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.core.TaskMetrics.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link SetVaultMetadataTask} that runs as a pipeline of futures: lock, then fetch the draft and the version history at the same time, then generate and
+ * validate the metadata, edit, and resume. The thread that starts the task is released immediately; the stages run on the threads that complete the calls to
+ * Dataverse. The generation and validation rules are those of {@link SetVaultMetadataTask}, and as there only the fields that changed are edited.
+ */
+public class AsyncSetVaultMetadataTask extends SetVaultMetadataTask {
+    private static final Logger log = LoggerFactory.getLogger(AsyncSetVaultMetadataTask.class);
+
+    private final AsyncDataverseService asyncDataverseService;
+
+    /**
+     * @param context the context of the task; its asynchronous Dataverse service is used for all calls except resuming the workflow, which is retried by the
+     *                retry scheduler
+     */
+    public AsyncSetVaultMetadataTask(StepInvocation stepInvocation, TaskContext context, TaskListener taskListener, TaskMetrics metrics) {
+        super(stepInvocation, context, taskListener, metrics);
+        this.asyncDataverseService = context.getAsyncDataverseService();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncSetVaultMetadataTask{" + "invocationId='" + getStepInvocation().getInvocationId() + "'}";
+    }
+
+    /**
+     * Starts the task; unlike {@link SetVaultMetadataTask#start()}, no part of it runs on the current thread.
+     *
+     * @return a future that completes when the workflow has been resumed, either with success or with failure; it never completes exceptionally
+     */
+    @Override
+    public CompletableFuture<Void> start() {
+        var stepInvocation = getStepInvocation();
+        log.info("Starting task {}", this);
+        started();
+
+        CompletableFuture<Void> lock;
+        try {
+            log.info("Locking dataset {}", stepInvocation.getGlobalId());
+            lock = timed(Phase.LOCK, asyncDataverseService.lockDataset(stepInvocation, "Workflow"));
+        }
+        catch (RuntimeException e) {
+            lock = CompletableFuture.failedFuture(e);
+        }
+
+        return lock
+            .thenCompose(v -> fetchAndValidate(stepInvocation))
+            .thenCompose(edit -> {
+                if (edit.changedFields.getFields().isEmpty()) {
+                    return CompletableFuture.completedFuture(edit.metadata);
+                }
+                return timed(Phase.EDIT, asyncDataverseService.editMetadata(stepInvocation, edit.changedFields)).thenApply(v -> edit.metadata);
+            })
+            .thenCompose(metadata -> {
+                registerIds(metadata);
+                var resumeTimer = getMetrics().time(Phase.RESUME);
+                return resumeWorkflow(stepInvocation).whenComplete((v, e) -> resumeTimer.stop());
+            })
+            .handle((v, e) -> {
+                if (e == null) {
+                    completed();
+                    return CompletableFuture.<Void> completedFuture(null);
+                }
+                var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                return handleFailure(cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+            })
+            .thenCompose(f -> f)
+            .whenComplete((v, e) -> log.info("Completed running task {} ({} Dataverse round trips)", this, getDataverseRoundTrips()));
+    }
+
+    private static class Edit {
+        private final FieldList metadata;
+        private final FieldList changedFields;
+
+        private Edit(FieldList metadata, FieldList changedFields) {
+            this.metadata = metadata;
+            this.changedFields = changedFields;
+        }
+    }
+
+    private CompletableFuture<Edit> fetchAndValidate(StepInvocation stepInvocation) {
+        // the draft and the version history are independent, so they are fetched at the same time
+        var draft = timed(Phase.FETCH_DRAFT, asyncDataverseService.getVersion(stepInvocation, ":draft"))
+            .thenApply(version -> version.orElseThrow(() -> new IllegalArgumentException("No draft version found")));
+        var history = timed(Phase.FETCH_HISTORY, asyncDataverseService.getVaultMetadataHistory(stepInvocation))
+            .thenApply(VersionHistory::new);
+
+        return draft.thenCombine(history, (draftVersion, versionHistory) -> {
+            var metadata = generateVaultMetadata(stepInvocation, draftVersion, versionHistory);
+
+            log.info("Validating metadata for dataset {}", stepInvocation.getGlobalId());
+            try (var ignored = getMetrics().time(Phase.VALIDATE)) {
+                validateBagMetadata(stepInvocation, metadata, versionHistory);
+            }
+            return new Edit(metadata, prepareEdit(draftVersion, metadata));
+        });
+    }
+
+    private <T> CompletableFuture<T> timed(Phase phase, CompletableFuture<T> call) {
+        countDataverseRoundTrip();
+        var timer = getMetrics().time(phase);
+        return call.whenComplete((result, e) -> timer.stop());
+    }
+}
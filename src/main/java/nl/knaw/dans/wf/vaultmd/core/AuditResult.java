@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A single line in the report of a bulk audit: the outcome of checking the vault metadata of all released and deaccessioned versions of one dataset.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AuditResult {
+
+    public enum Status {
+        /**
+         * All versions have valid vault metadata.
+         */
+        VALID,
+        /**
+         * A version violates one of the rules of {@link VaultMetadataValidator}.
+         */
+        INVALID,
+        /**
+         * The versions could not be read from Dataverse, or could not be checked.
+         */
+        ERROR
+    }
+
+    private final String pid;
+
+    private final Status status;
+
+    private final int versions;
+
+    private final String version;
+
+    private final String message;
+
+    /**
+     * @param pid      the persistent identifier of the dataset
+     * @param status   the outcome
+     * @param versions the number of versions that were checked
+     * @param version  the version that failed validation, if any
+     * @param message  the validation or error message, if any
+     */
+    @JsonCreator
+    public AuditResult(@JsonProperty("pid") String pid, @JsonProperty("status") Status status, @JsonProperty("versions") int versions,
+        @JsonProperty("version") String version, @JsonProperty("message") String message) {
+        this.pid = pid;
+        this.status = status;
+        this.versions = versions;
+        this.version = version;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditResult{" + "pid='" + pid + '\'' + ", status=" + status + ", versions=" + versions + ", version='" + version + '\'' + ", message='" + message
+            + '\'' + '}';
+    }
+
+    @JsonProperty
+    public String getPid() {
+        return pid;
+    }
+
+    @JsonProperty
+    public Status getStatus() {
+        return status;
+    }
+
+    @JsonProperty
+    public int getVersions() {
+        return versions;
+    }
+
+    @JsonProperty
+    public String getVersion() {
+        return version;
+    }
+
+    @JsonProperty
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Audits a stream of datasets in parallel and appends one {@link AuditResult} per dataset to an NDJSON report. At most a fixed number of datasets are audited
+ * or waiting to be written at the same time, so apart from the set of identifiers already seen, memory use does not depend on the number of datasets.
+ *
+ * <p>A dataset that occurs more than once in the stream is audited only the first time. This happens with the search API, which returns both a draft and a
+ * published card for a published dataset with a draft when it is called with an API key. Later occurrences are skipped but still count as positions in the
+ * stream, so that the checkpoint stays aligned with the search offset.</p>
+ *
+ * <p>Progress is recorded in a checkpoint file: the position in the stream before which every dataset has been written to the report. A run can be resumed
+ * from that position. Because datasets complete out of order, datasets after the checkpoint may already be in the report when a run is interrupted; they are
+ * audited and reported again when the run is resumed.</p>
+ */
+public class BulkAudit {
+    private static final Logger log = LoggerFactory.getLogger(BulkAudit.class);
+
+    private final VaultMetadataAuditor auditor;
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final Path report;
+    private final Path checkpoint;
+    private final int checkpointInterval;
+    private final ObjectMapper objectMapper;
+
+    private final Object lock = new Object();
+    private final TreeSet<Long> completedOutOfOrder = new TreeSet<>();
+    private final Map<AuditResult.Status, Long> counts = new EnumMap<>(AuditResult.Status.class);
+    private long completedUpTo;
+    private int sinceCheckpoint;
+
+    /**
+     * @param auditor            audits one dataset
+     * @param executor           runs the audits; it should have at least {@code concurrency} threads
+     * @param concurrency        the maximum number of datasets that are audited at the same time
+     * @param report             the NDJSON report; results are appended
+     * @param checkpoint         the checkpoint file
+     * @param checkpointInterval the number of results after which the checkpoint is updated
+     * @param objectMapper       writes the results
+     */
+    public BulkAudit(VaultMetadataAuditor auditor, ExecutorService executor, int concurrency, Path report, Path checkpoint, int checkpointInterval,
+        ObjectMapper objectMapper) {
+        this.auditor = auditor;
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.report = report;
+        this.checkpoint = checkpoint;
+        this.checkpointInterval = checkpointInterval;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Reads the position to resume from.
+     *
+     * @param checkpoint the checkpoint file
+     * @return the position, or 0 if there is no checkpoint yet
+     * @throws IOException if the file cannot be read
+     */
+    public static long readCheckpoint(Path checkpoint) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(checkpoint, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Audits the datasets. If the stream fails, the datasets that were already started are still completed and checkpointed before the exception is rethrown.
+     *
+     * @param globalIds the persistent identifiers of the datasets to audit
+     * @param start     the position of the first dataset of {@code globalIds} in the complete stream, usually the value read from the checkpoint
+     * @return the number of datasets per status
+     * @throws IOException          if the report or the checkpoint cannot be written
+     * @throws InterruptedException if interrupted while waiting for the audits to complete
+     */
+    public Map<AuditResult.Status, Long> run(Iterator<String> globalIds, long start) throws IOException, InterruptedException {
+        var permits = new Semaphore(concurrency);
+        var seen = new HashSet<String>();
+        completedUpTo = start;
+        var position = start;
+
+        try (var channel = FileChannel.open(report, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            try {
+                while (globalIds.hasNext()) {
+                    var globalId = globalIds.next();
+                    var index = position++;
+
+                    if (!seen.add(globalId)) {
+                        log.debug("Skipping {} at position {}, it was already audited in this run", globalId, index);
+                        synchronized (lock) {
+                            markCompleted(index);
+                        }
+                        continue;
+                    }
+
+                    permits.acquire();
+
+                    try {
+                        executor.execute(() -> {
+                            try {
+                                complete(channel, index, auditor.audit(globalId));
+                            }
+                            catch (IOException e) {
+                                log.error("Could not write result for {} to report", globalId, e);
+                            }
+                            finally {
+                                permits.release();
+                            }
+                        });
+                    }
+                    catch (RuntimeException e) {
+                        permits.release();
+                        throw e;
+                    }
+                }
+            }
+            finally {
+                // wait for the audits that were started
+                permits.acquire(concurrency);
+                permits.release(concurrency);
+
+                synchronized (lock) {
+                    channel.force(false);
+                    writeCheckpoint();
+                }
+            }
+        }
+
+        log.info("Audited datasets up to position {}", completedUpTo);
+        synchronized (lock) {
+            return new EnumMap<>(counts);
+        }
+    }
+
+    private void complete(FileChannel channel, long index, AuditResult result) throws IOException {
+        var bytes = (objectMapper.writeValueAsString(result) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        synchronized (lock) {
+            var buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            counts.merge(result.getStatus(), 1L, Long::sum);
+            markCompleted(index);
+
+            if (++sinceCheckpoint >= checkpointInterval) {
+                // the checkpoint may only cover results that are on disk
+                channel.force(false);
+                writeCheckpoint();
+            }
+        }
+    }
+
+    private void markCompleted(long index) {
+        completedOutOfOrder.add(index);
+        while (!completedOutOfOrder.isEmpty() && completedOutOfOrder.first() == completedUpTo) {
+            completedOutOfOrder.pollFirst();
+            completedUpTo++;
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        var tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.writeString(tmp, Long.toString(completedUpTo), StandardCharsets.UTF_8);
+        Files.move(tmp, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        sinceCheckpoint = 0;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker for the calls to Dataverse. While the breaker is CLOSED all calls are permitted. After {@code failureThreshold} consecutive failures it
+ * OPENs, and calls are refused for {@code openMillis}. After that it is HALF_OPEN: at most {@code halfOpenCalls} probe calls are permitted at the same time; the
+ * first success closes the breaker again, a failure opens it for another period.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private int probesInFlight;
+
+    public CircuitBreaker(int failureThreshold, long openMillis, int halfOpenCalls) {
+        this(failureThreshold, openMillis, halfOpenCalls, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long openMillis, int halfOpenCalls, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = halfOpenCalls;
+        this.clock = clock;
+    }
+
+    /**
+     * Asks permission for a call. Every permitted call must be followed by exactly one of {@link #onSuccess()}, {@link #onFailure()} or {@link #onIgnored()}.
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.OPEN) {
+            if (clock.getAsLong() - openedAt < openMillis) {
+                return false;
+            }
+            log.info("Circuit breaker for Dataverse is half-open, probing");
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+        }
+
+        if (probesInFlight >= halfOpenCalls) {
+            return false;
+        }
+        ++probesInFlight;
+        return true;
+    }
+
+    /**
+     * Records that Dataverse answered the call.
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Circuit breaker for Dataverse is closed again");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probesInFlight = 0;
+    }
+
+    /**
+     * Records that Dataverse could not be reached or returned a server error.
+     */
+    public synchronized void onFailure() {
+        ++consecutiveFailures;
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn("Circuit breaker for Dataverse is open after {} consecutive failure(s); calls are refused for {} ms", consecutiveFailures, openMillis);
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+            probesInFlight = 0;
+        }
+    }
+
+    /**
+     * Records that a permitted call was not made, or that its outcome says nothing about the health of Dataverse.
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN && probesInFlight > 0) {
+            --probesInFlight;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the breaker is open and does not let a probe through yet; unlike {@link #getState()}, this becomes false as soon as the open period has
+     * passed, also when no call has asked for permission since
+     */
+    public synchronized boolean isRefusingCalls() {
+        return getRemainingOpenMillis() > 0;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the number of milliseconds before the open breaker lets a probe through, or 0 if it is not open
+     */
+    public synchronized long getRemainingOpenMillis() {
+        return state == State.OPEN ? Math.max(0, openMillis - (clock.getAsLong() - openedAt)) : 0;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DataverseClient;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.io.IOException;
+
+/**
+ * Waits for the lock with {@code DatasetApi.awaitLock}, which polls on the default schedule of the Dataverse client library. The number of polls is not known, so
+ * only the time spent waiting is recorded.
+ */
+public class ClientLibraryLockWaitStrategy implements LockWaitStrategy {
+    private final DataverseClient dataverseClient;
+    private final LockWaitMetrics metrics;
+
+    public ClientLibraryLockWaitStrategy(DataverseClient dataverseClient, LockWaitMetrics metrics) {
+        this.dataverseClient = dataverseClient;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void awaitLock(StepInvocation stepInvocation, String lockType) throws DataverseException, IOException {
+        try (var ignored = metrics.startWaiting()) {
+            dataverseClient.dataset(stepInvocation.getGlobalId(), stepInvocation.getInvocationId()).awaitLock(lockType);
+        }
+    }
+}
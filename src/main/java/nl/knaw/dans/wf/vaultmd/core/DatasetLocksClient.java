@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonToken;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lists the datasets that have a lock of a given type, using the "list locks across all datasets" endpoint of Dataverse. This endpoint is only available to
+ * superusers.
+ */
+public class DatasetLocksClient {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final CloseableHttpClient httpClient;
+    private final URI baseUrl;
+    private final String apiKey;
+
+    public DatasetLocksClient(CloseableHttpClient httpClient, URI baseUrl, String apiKey) {
+        this.httpClient = httpClient;
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Gets the persistent identifiers of all datasets that have a lock of the given type.
+     *
+     * @param lockType the lock type
+     * @return the persistent identifiers
+     * @throws DataverseException if Dataverse returns an error status
+     * @throws IOException        if the request fails or the response cannot be parsed
+     */
+    public Set<String> getLockedDatasets(String lockType) throws DataverseException, IOException {
+        var request = new HttpGet(baseUrl.resolve("api/datasets/locks?type=" + URLEncoder.encode(lockType, StandardCharsets.UTF_8)));
+
+        if (StringUtils.isNotBlank(apiKey)) {
+            request.addHeader("X-Dataverse-key", apiKey);
+        }
+
+        try {
+            return httpClient.execute(request, response -> {
+                if (response.getCode() != HttpStatus.SC_OK) {
+                    throw new HttpResponseException(response.getCode(), response.getReasonPhrase());
+                }
+
+                try (var content = response.getEntity().getContent()) {
+                    return readLockedDatasets(content);
+                }
+            });
+        }
+        catch (HttpResponseException e) {
+            throw new DataverseException(e.getStatusCode(), String.format("Could not list %s locks: %s", lockType, e.getMessage()));
+        }
+    }
+
+    static Set<String> readLockedDatasets(InputStream inputStream) throws IOException {
+        var result = new HashSet<String>();
+
+        try (var parser = jsonFactory.createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.getCurrentName();
+                var token = parser.nextToken();
+
+                if ("data".equals(name) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            var lockField = parser.getCurrentName();
+                            parser.nextToken();
+
+                            if ("dataset".equals(lockField)) {
+                                result.add(parser.getText());
+                            }
+                            else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return result;
+    }
+}
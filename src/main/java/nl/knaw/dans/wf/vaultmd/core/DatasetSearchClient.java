@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lists the persistent identifiers of all datasets in Dataverse, using the search API. The datasets are sorted by date, oldest first, so that datasets created
+ * while the list is being walked end up at the end and a walk can be resumed from an offset.
+ */
+public class DatasetSearchClient {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final CloseableHttpClient httpClient;
+    private final URI baseUrl;
+    private final String apiKey;
+
+    public DatasetSearchClient(CloseableHttpClient httpClient, URI baseUrl, String apiKey) {
+        this.httpClient = httpClient;
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Gets one page of persistent identifiers.
+     *
+     * @param start   the number of datasets to skip
+     * @param perPage the maximum number of datasets to return; Dataverse allows at most 1000
+     * @return the persistent identifiers, an empty list after the last page
+     * @throws DataverseException if Dataverse returns an error status
+     * @throws IOException        if the request fails or the response cannot be parsed
+     */
+    public List<String> getGlobalIds(long start, int perPage) throws DataverseException, IOException {
+        var request = new HttpGet(baseUrl.resolve("api/search?q=*&type=dataset&sort=date&order=asc&start=" + start + "&per_page=" + perPage));
+
+        if (StringUtils.isNotBlank(apiKey)) {
+            request.addHeader("X-Dataverse-key", apiKey);
+        }
+
+        try {
+            return httpClient.execute(request, response -> {
+                if (response.getCode() != HttpStatus.SC_OK) {
+                    throw new HttpResponseException(response.getCode(), response.getReasonPhrase());
+                }
+
+                try (var content = response.getEntity().getContent()) {
+                    return readGlobalIds(content);
+                }
+            });
+        }
+        catch (HttpResponseException e) {
+            throw new DataverseException(e.getStatusCode(), String.format("Could not search datasets: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Iterates over all persistent identifiers, fetching one page at a time, so that only one page is in memory.
+     *
+     * @param start   the number of datasets to skip
+     * @param perPage the page size
+     * @return the iterator; it throws {@link UncheckedIOException} if a page cannot be fetched
+     */
+    public Iterator<String> iterator(long start, int perPage) {
+        return new Iterator<>() {
+            private long next = start;
+            private Iterator<String> page = List.<String> of().iterator();
+            private boolean lastPage;
+
+            @Override
+            public boolean hasNext() {
+                if (!page.hasNext() && !lastPage) {
+                    List<String> globalIds;
+                    try {
+                        globalIds = getGlobalIds(next, perPage);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    catch (DataverseException e) {
+                        throw new UncheckedIOException(new IOException(e));
+                    }
+                    next += globalIds.size();
+                    lastPage = globalIds.size() < perPage;
+                    page = globalIds.iterator();
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    static List<String> readGlobalIds(InputStream inputStream) throws IOException {
+        var result = new ArrayList<String>();
+
+        try (var parser = jsonFactory.createParser(inputStream)) {
+            expectObject(parser);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.getCurrentName();
+                var token = parser.nextToken();
+
+                if ("data".equals(name) && token == JsonToken.START_OBJECT) {
+                    readItems(parser, result);
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void readItems(JsonParser parser, List<String> result) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.getCurrentName();
+            var token = parser.nextToken();
+
+            if ("items".equals(name) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        var itemField = parser.getCurrentName();
+                        parser.nextToken();
+
+                        if ("global_id".equals(itemField)) {
+                            result.add(parser.getText());
+                        }
+                        else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void expectObject(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON object");
+        }
+    }
+}
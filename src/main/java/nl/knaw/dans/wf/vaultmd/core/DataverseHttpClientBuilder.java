@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.client.HttpClientBuilder;
+import io.dropwizard.core.setup.Environment;
+import io.dropwizard.util.Duration;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.util.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds HTTP clients for Dataverse that close idle connections in the background and record how long requests wait for a connection from the pool. The wait
+ * is recorded in the timer {@code nl.knaw.dans.wf.vaultmd.core.DataverseHttpClientBuilder.<name>.lease-wait}; for a new connection it includes the time to
+ * connect.
+ */
+public class DataverseHttpClientBuilder extends HttpClientBuilder {
+    private static final String LEASE_STARTED = DataverseHttpClientBuilder.class.getName() + ".leaseStarted";
+    private final MetricRegistry metricRegistry;
+    private final Duration evictIdleAfter;
+    private Timer leaseWait;
+
+    public DataverseHttpClientBuilder(Environment environment, Duration evictIdleAfter) {
+        super(environment);
+        this.metricRegistry = environment.metrics();
+        this.evictIdleAfter = evictIdleAfter;
+    }
+
+    @Override
+    public CloseableHttpClient build(String name) {
+        leaseWait = metricRegistry.timer(MetricRegistry.name(DataverseHttpClientBuilder.class, name, "lease-wait"));
+        return super.build(name);
+    }
+
+    @Override
+    protected org.apache.hc.client5.http.impl.classic.HttpClientBuilder customizeBuilder(org.apache.hc.client5.http.impl.classic.HttpClientBuilder builder) {
+        final var timer = leaseWait;
+        return builder
+            .evictExpiredConnections()
+            .evictIdleConnections(TimeValue.ofMilliseconds(evictIdleAfter.toMilliseconds()))
+            // the connection is leased by the CONNECT element of the execution chain
+            .addExecInterceptorBefore(ChainElement.CONNECT.name(), "lease-wait-start", (request, scope, chain) -> {
+                scope.clientContext.setAttribute(LEASE_STARTED, System.nanoTime());
+                return chain.proceed(request, scope);
+            })
+            .addExecInterceptorAfter(ChainElement.CONNECT.name(), "lease-wait-stop", (request, scope, chain) -> {
+                final var started = (Long) scope.clientContext.getAttribute(LEASE_STARTED);
+                if (started != null) {
+                    timer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                }
+                return chain.proceed(request, scope);
+            });
+    }
+}
@@ -33,16 +33,27 @@ public interface DataverseService {
     Optional<DatasetVersion> getVersion(StepInvocation stepInvocation, String name) throws DataverseException, IOException;
 
     /**
-     * Gets all dataset versions from Dataverse in descending order
+     * Gets the vault metadata of all dataset versions from Dataverse in descending order. Only the version number, the version state and the vault metadata block
+     * are retrieved; all other metadata blocks and the file listings are skipped.
      *
      * @param stepInvocation
-     * @return a list of DatasetVersion objects that have status RELEASED or DEACCESSIONED sorted in descending order
+     * @return a list of projected DatasetVersion objects that have status RELEASED or DEACCESSIONED sorted in descending order
      * @throws DataverseException
      * @throws IOException
      */
-    Collection<DatasetVersion> getAllReleasedOrDeaccessionedVersion(StepInvocation stepInvocation) throws DataverseException, IOException;
+    Collection<DatasetVersion> getVaultMetadataHistory(StepInvocation stepInvocation) throws DataverseException, IOException;
 
     void lockDataset(StepInvocation stepInvocation, String workflow) throws DataverseException, IOException;
 
     void editMetadata(StepInvocation stepInvocation, FieldList fieldList) throws DataverseException, IOException;
+
+    /**
+     * Removes the given values from the draft of the dataset.
+     *
+     * @param stepInvocation
+     * @param fieldList      the fields with the values to remove
+     * @throws DataverseException
+     * @throws IOException
+     */
+    void deleteMetadata(StepInvocation stepInvocation, FieldList fieldList) throws DataverseException, IOException;
 }
@@ -38,11 +38,25 @@ public class DataverseServiceImpl implements DataverseService {
     private final DataverseClient dataverseClient;
     private final VersionComparator versionComparator = new VersionComparator();
     private static final String MDKEY_NAME = "dansDataVaultMetadata"; // the name of the metadata block
+    private static final int MAX_CACHED_DATASETS = 1024;
     private final String vaultMetadataKey;
-    
-    public DataverseServiceImpl(DataverseClient dataverseClient, String vaultMetadataKey) {
+    private final VersionHistorySource vaultMetadataHistoryClient;
+    private final LockWaitStrategy lockWaitStrategy;
+    // A task calls the dataset API several times for the same invocation; the least recently used handles are dropped.
+    private final Map<String, DatasetApi> datasets = Collections.synchronizedMap(new LinkedHashMap<String, DatasetApi>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DatasetApi> eldest) {
+            return size() > MAX_CACHED_DATASETS;
+        }
+    });
+
+    public DataverseServiceImpl(DataverseClient dataverseClient, String vaultMetadataKey, VersionHistorySource vaultMetadataHistoryClient,
+        LockWaitStrategy lockWaitStrategy) {
         this.dataverseClient = dataverseClient;
         this.vaultMetadataKey = vaultMetadataKey;
+        this.vaultMetadataHistoryClient = vaultMetadataHistoryClient;
+        this.lockWaitStrategy = lockWaitStrategy;
     }
 
     @Override
@@ -67,8 +81,12 @@ public class DataverseServiceImpl implements DataverseService {
     }
 
     @Override
-    public Collection<DatasetVersion> getAllReleasedOrDeaccessionedVersion(StepInvocation stepInvocation) throws DataverseException, IOException {
-        return getAllDatasetVersions(stepInvocation).stream()
+    public Collection<DatasetVersion> getVaultMetadataHistory(StepInvocation stepInvocation) throws DataverseException, IOException {
+        return filterReleasedOrDeaccessioned(vaultMetadataHistoryClient.getVersions(stepInvocation.getGlobalId(), stepInvocation.getInvocationId()));
+    }
+
+    private Collection<DatasetVersion> filterReleasedOrDeaccessioned(Collection<DatasetVersion> versions) {
+        return versions.stream()
             .filter(d -> Set.of("RELEASED", "DEACCESSIONED").contains(d.getVersionState()))
             .sorted((a, b) -> -1 * versionComparator.compare(a, b))
             .collect(Collectors.toList());
@@ -76,7 +94,7 @@ public class DataverseServiceImpl implements DataverseService {
 
     @Override
     public void lockDataset(StepInvocation stepInvocation, String workflow) throws DataverseException, IOException {
-        getDataset(stepInvocation).awaitLock("Workflow");
+        lockWaitStrategy.awaitLock(stepInvocation, workflow);
     }
 
     @Override
@@ -91,11 +109,18 @@ public class DataverseServiceImpl implements DataverseService {
         }
     }
 
-    DatasetApi getDataset(StepInvocation stepInvocation) {
-        return dataverseClient.dataset(stepInvocation.getGlobalId(), stepInvocation.getInvocationId());
+    @Override
+    public void deleteMetadata(StepInvocation stepInvocation, FieldList fieldList) throws DataverseException, IOException {
+        if (vaultMetadataKey != null && !vaultMetadataKey.isBlank()) {
+            getDataset(stepInvocation).deleteMetadata(fieldList, new HashMap<>(singletonMap(MDKEY_NAME, vaultMetadataKey)));
+        }
+        else {
+            getDataset(stepInvocation).deleteMetadata(fieldList);
+        }
     }
 
-    Collection<DatasetVersion> getAllDatasetVersions(StepInvocation stepInvocation) throws IOException, DataverseException {
-        return getDataset(stepInvocation).getAllVersions().getData();
+    DatasetApi getDataset(StepInvocation stepInvocation) {
+        return datasets.computeIfAbsent(stepInvocation.getInvocationId() + " " + stepInvocation.getGlobalId(),
+            k -> dataverseClient.dataset(stepInvocation.getGlobalId(), stepInvocation.getInvocationId()));
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helpers for making changes to the files of the journals durable.
+ */
+final class FileSync {
+    private static final Logger log = LoggerFactory.getLogger(FileSync.class);
+
+    private FileSync() {
+    }
+
+    /**
+     * Makes the creation, rename or removal of the file durable by forcing its parent directory to disk. Not all platforms support this; there it is skipped.
+     *
+     * @param file the file that was created, renamed or removed
+     */
+    static void syncDirectory(Path file) {
+        var directory = file.toAbsolutePath().getParent();
+
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            log.debug("Could not sync directory {}", directory, e);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Local registry of the identifiers issued by this service: the NBN of every dataset and the bag id of every dataset version. The registry is an append-only log on
+ * disk, with one {@link IdRegistryEntry} per line, and a hash index in memory that is built from the log at startup. Looking up the NBN of a dataset or the owner of
+ * a bag id therefore takes constant time, regardless of the number of versions of the dataset.
+ * <p>
+ * The first NBN registered for a dataset is the one that is returned; a later entry with a different NBN is logged as a conflict. The registry can be rebuilt from
+ * the version histories in Dataverse with the {@code rebuild-id-registry} command.
+ * <p>
+ * New entries are written by a single writer thread using group commit, as in the {@link TaskJournal}: the entries registered by concurrent tasks are made
+ * durable with a single fsync, and the tasks do not hold the lock of the registry while they wait for it. An entry is only indexed once it is durable.
+ */
+public class IdRegistry implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(IdRegistry.class);
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final PendingWrite STOP = new PendingWrite(null);
+
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    private final Map<String, String> nbnByPid = new HashMap<>();
+    private final Map<String, IdRegistryEntry> entryByBagId = new HashMap<>();
+    // the entries that are queued or being written, so that a concurrent registration of the same entry waits for it instead of writing it again
+    private final Map<String, PendingWrite> pendingByBagId = new HashMap<>();
+
+    // guards the channel, which is written by the writer thread and replaced by a rebuild
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private Thread writer;
+
+    private static class PendingWrite {
+        private final IdRegistryEntry entry;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        private PendingWrite(IdRegistryEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    public IdRegistry(Path path, ObjectMapper objectMapper) {
+        this.path = path;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        if (Files.exists(path)) {
+            load();
+            log.info("Loaded {} NBN(s) and {} bag id(s) from id registry {}", nbnByPid.size(), entryByBagId.size(), path);
+        }
+
+        synchronized (channelLock) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        writer = new Thread(this::writeLoop, "id-registry-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        Thread stopping;
+
+        // the writer takes the lock to index the entries it has written, so it is not held while waiting for the writer
+        synchronized (this) {
+            stopping = writer;
+            writer = null;
+        }
+
+        if (stopping != null) {
+            queue.put(STOP);
+            stopping.join();
+        }
+
+        synchronized (channelLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * @param pid the persistent identifier of the dataset
+     * @return the NBN registered for the dataset, if any
+     */
+    public synchronized Optional<String> getNbn(String pid) {
+        return Optional.ofNullable(nbnByPid.get(pid));
+    }
+
+    /**
+     * @param bagId the bag id
+     * @return the entry of the dataset version the bag id was issued for, if any
+     */
+    public synchronized Optional<IdRegistryEntry> findByBagId(String bagId) {
+        return Optional.ofNullable(entryByBagId.get(bagId));
+    }
+
+    /**
+     * Appends the entry to the log and waits until it is durable. Registering an entry that is already present has no effect; registering an entry that is being
+     * written waits for that write. The entry is indexed when it is durable.
+     *
+     * @param entry the entry
+     * @throws IOException if the entry could not be written
+     */
+    public void register(IdRegistryEntry entry) throws IOException {
+        PendingWrite pendingWrite;
+
+        synchronized (this) {
+            if (entry.equals(entryByBagId.get(entry.getBagId()))) {
+                return;
+            }
+
+            if (writer == null) {
+                throw new IllegalStateException("Id registry is not running");
+            }
+
+            var pending = pendingByBagId.get(entry.getBagId());
+
+            if (pending != null && pending.entry.equals(entry)) {
+                pendingWrite = pending;
+            }
+            else {
+                pendingWrite = new PendingWrite(entry);
+                pendingByBagId.put(entry.getBagId(), pendingWrite);
+                queue.add(pendingWrite);
+            }
+        }
+
+        try {
+            pendingWrite.written.get();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Could not write to id registry", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to id registry", e);
+        }
+    }
+
+    private void writeLoop() {
+        var batch = new ArrayList<PendingWrite>(MAX_BATCH_SIZE);
+        var stopped = false;
+
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                log.warn("Id registry writer interrupted");
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            stopped = batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            batch.clear();
+        }
+
+        // fail anything that was added after the stop request
+        PendingWrite remaining;
+        while ((remaining = queue.poll()) != null) {
+            remaining.written.completeExceptionally(new IllegalStateException("Id registry is stopped"));
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        try {
+            synchronized (channelLock) {
+                for (var pendingWrite : batch) {
+                    var bytes = ByteBuffer.wrap(serialize(pendingWrite.entry));
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                }
+                // one fsync for the whole batch
+                channel.force(false);
+            }
+
+            synchronized (this) {
+                for (var pendingWrite : batch) {
+                    index(pendingWrite.entry);
+                    pendingByBagId.remove(pendingWrite.entry.getBagId(), pendingWrite);
+                }
+            }
+
+            for (var pendingWrite : batch) {
+                pendingWrite.written.complete(null);
+            }
+        }
+        catch (IOException e) {
+            log.error("Could not write batch of {} entries to id registry", batch.size(), e);
+
+            synchronized (this) {
+                batch.forEach(pendingWrite -> pendingByBagId.remove(pendingWrite.entry.getBagId(), pendingWrite));
+            }
+
+            for (var pendingWrite : batch) {
+                pendingWrite.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the registry with the given entries. The entries are written as they are produced, so they need not all be in memory at once. The
+     * new log is written next to the old one and then moved into place, so that a failed rebuild leaves the old registry intact.
+     *
+     * @param entries the entries, oldest first
+     * @throws IOException if the log could not be written
+     */
+    public synchronized void rebuild(Iterable<IdRegistryEntry> entries) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        var rebuilt = new IdRegistry(path, objectMapper);
+
+        try (var tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (var entry : entries) {
+                var bytes = ByteBuffer.wrap(serialize(entry));
+                while (bytes.hasRemaining()) {
+                    tmpChannel.write(bytes);
+                }
+                rebuilt.index(entry);
+            }
+            tmpChannel.force(false);
+        }
+
+        synchronized (channelLock) {
+            var wasOpen = channel != null;
+            if (wasOpen) {
+                channel.close();
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            FileSync.syncDirectory(path);
+
+            if (wasOpen) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        }
+
+        nbnByPid.clear();
+        nbnByPid.putAll(rebuilt.nbnByPid);
+        entryByBagId.clear();
+        entryByBagId.putAll(rebuilt.entryByBagId);
+    }
+
+    public synchronized int getNumberOfBagIds() {
+        return entryByBagId.size();
+    }
+
+    private void load() throws IOException {
+        try (var lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                try {
+                    index(objectMapper.readValue(line, IdRegistryEntry.class));
+                }
+                catch (JsonProcessingException e) {
+                    // most likely the last line was only partially written before a crash
+                    log.warn("Skipping unreadable id registry entry: {}", line);
+                }
+            }
+        }
+    }
+
+    private void index(IdRegistryEntry entry) {
+        var existingNbn = nbnByPid.putIfAbsent(entry.getPid(), entry.getNbn());
+
+        if (existingNbn != null && !Objects.equals(existingNbn, entry.getNbn())) {
+            log.warn("Conflicting NBN for {}: registered '{}', ignoring '{}' of version {}", entry.getPid(), existingNbn, entry.getNbn(), entry.getVersion());
+        }
+
+        var existingOwner = entryByBagId.put(entry.getBagId(), entry);
+
+        if (existingOwner != null && !(Objects.equals(existingOwner.getPid(), entry.getPid()) && Objects.equals(existingOwner.getVersion(), entry.getVersion()))) {
+            log.warn("Bag id {} registered for both {} {} and {} {}", entry.getBagId(), existingOwner.getPid(), existingOwner.getVersion(), entry.getPid(),
+                entry.getVersion());
+        }
+    }
+
+    private byte[] serialize(IdRegistryEntry entry) throws JsonProcessingException {
+        return (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+
+/**
+ * A single line in the {@link IdRegistry}: the NBN and bag id that were issued for a version of a dataset.
+ */
+public class IdRegistryEntry {
+
+    private final String pid;
+
+    private final String version;
+
+    private final String nbn;
+
+    private final String bagId;
+
+    @JsonCreator
+    public IdRegistryEntry(@JsonProperty("pid") String pid, @JsonProperty("version") String version, @JsonProperty("nbn") String nbn,
+        @JsonProperty("bagId") String bagId) {
+        this.pid = pid; this.version = version; this.nbn = nbn; this.bagId = bagId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        var that = (IdRegistryEntry) o;
+        return Objects.equals(pid, that.pid) && Objects.equals(version, that.version) && Objects.equals(nbn, that.nbn) && Objects.equals(bagId, that.bagId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(pid, version, nbn, bagId);
+    }
+
+    @Override
+    public String toString() {
+        return "IdRegistryEntry{" + "pid='" + pid + '\'' + ", version='" + version + '\'' + ", nbn='" + nbn + '\'' + ", bagId='" + bagId + '\'' + '}';
+    }
+
+    @JsonProperty
+    public String getPid() {
+        return pid;
+    }
+
+    @JsonProperty
+    public String getVersion() {
+        return version;
+    }
+
+    @JsonProperty
+    public String getNbn() {
+        return nbn;
+    }
+
+    @JsonProperty
+    public String getBagId() {
+        return bagId;
+    }
+}
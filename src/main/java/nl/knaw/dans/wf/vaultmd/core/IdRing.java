@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer with a single producer and any number of consumers. The producer adds at the tail, consumers take from the head by advancing it with a
+ * compare-and-set. A slot is only overwritten by the producer after the head has moved past it, so a consumer that wins the compare-and-set always returns the value
+ * that was in the slot when it read it.
+ */
+class IdRing {
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity the capacity, rounded up to a power of two
+     */
+    IdRing(int capacity) {
+        var size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a value. Must only be called by the producer thread.
+     *
+     * @param value the value
+     * @return false if the ring is full
+     */
+    boolean offer(String value) {
+        var t = tail.get();
+
+        if (t - head.get() >= slots.length()) {
+            return false;
+        }
+
+        slots.set((int) (t & mask), value);
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest value.
+     *
+     * @return the value, or null if the ring is empty
+     */
+    String poll() {
+        while (true) {
+            var h = head.get();
+
+            if (h >= tail.get()) {
+                return null;
+            }
+
+            var value = slots.get((int) (h & mask));
+
+            if (head.compareAndSet(h, h + 1)) {
+                return value;
+            }
+        }
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+}
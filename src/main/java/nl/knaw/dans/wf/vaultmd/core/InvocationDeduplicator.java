@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the invocation ids that are in flight or were completed recently, so that an invocation that is delivered more than once by Dataverse is only
+ * executed once. The index holds at most {@code maxEntries} ids. Completed invocations expire after {@code expireAfterMillis}; when the index is full the
+ * invocation that completed first is evicted. In-flight invocations are never expired or evicted, since a re-delivery would run them twice; if the index is full
+ * of in-flight invocations, new invocations are refused.
+ */
+public class InvocationDeduplicator implements TaskListener {
+    private final int maxEntries;
+    private final long expireAfterMillis;
+    private final LongSupplier clock;
+
+    private final Set<String> inFlight = new HashSet<>();
+    // the completion times, ordered by completion, so that the entries that expire first are at the head
+    private final LinkedHashMap<String, Long> completed = new LinkedHashMap<>();
+
+    public InvocationDeduplicator(int maxEntries, long expireAfterMillis) {
+        this(maxEntries, expireAfterMillis, System::currentTimeMillis);
+    }
+
+    InvocationDeduplicator(int maxEntries, long expireAfterMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.expireAfterMillis = expireAfterMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Registers an invocation as in flight.
+     *
+     * @param invocationId the invocation id
+     * @return true if the invocation is new, false if it is in flight or was completed recently
+     * @throws IllegalStateException if the index is full of in-flight invocations
+     */
+    public synchronized boolean register(String invocationId) {
+        removeExpired(clock.getAsLong());
+
+        if (inFlight.contains(invocationId) || completed.containsKey(invocationId)) {
+            return false;
+        }
+
+        if (size() >= maxEntries) {
+            if (completed.isEmpty()) {
+                throw new IllegalStateException(String.format("Too many invocations in flight (%d) to detect duplicates", inFlight.size()));
+            }
+            var eldest = completed.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+
+        inFlight.add(invocationId);
+        return true;
+    }
+
+    /**
+     * Forgets an invocation, for example because it was not accepted after all, so that a new delivery of it is not treated as a duplicate.
+     *
+     * @param invocationId the invocation id
+     */
+    public synchronized void unregister(String invocationId) {
+        inFlight.remove(invocationId);
+        completed.remove(invocationId);
+    }
+
+    public synchronized int size() {
+        return inFlight.size() + completed.size();
+    }
+
+    @Override
+    public void onResumed(StepInvocation stepInvocation) {
+        markCompleted(stepInvocation.getInvocationId());
+    }
+
+    @Override
+    public void onFailed(StepInvocation stepInvocation, Exception e) {
+        markCompleted(stepInvocation.getInvocationId());
+    }
+
+    @Override
+    public void onAbandoned(StepInvocation stepInvocation, Exception e) {
+        markCompleted(stepInvocation.getInvocationId());
+    }
+
+    private synchronized void markCompleted(String invocationId) {
+        // the expiry period starts now
+        if (inFlight.remove(invocationId)) {
+            completed.put(invocationId, clock.getAsLong());
+        }
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = completed.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() < expireAfterMillis) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Executes tasks with the same key one after the other, in the order in which they were submitted, while tasks with different keys run in parallel on the underlying
+ * executor. Only the task at the head of a key is handed to the underlying executor; the others wait here without occupying a thread or a slot in the executor's
+ * queue.
+ * <p>
+ * A task is either a {@link Runnable}, which is complete when it returns, or an asynchronous task, which is complete when the stage it returns completes. The next
+ * task for the key is not started before that, but no thread is held while waiting. A task that throws an exception is complete as well; the exception is logged.
+ * <p>
+ * Tasks are only run by the underlying executor. If it rejects the next task for a key, the task stays queued for the key and is submitted again when another
+ * task completes or a new task is submitted.
+ */
+public class KeyedExecutor {
+    private static final Logger log = LoggerFactory.getLogger(KeyedExecutor.class);
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Executor executor;
+
+    // the tasks waiting behind the task that is currently scheduled or running for a key; a key is present as long as one of its tasks is scheduled or running
+    private final Map<String, ArrayDeque<Supplier<? extends CompletionStage<?>>>> waitingTasks = new HashMap<>();
+    private int waitingCount;
+    // the keys whose next task was rejected by the executor; they have no task scheduled or running until it is submitted again
+    private final ArrayDeque<String> stalledKeys = new ArrayDeque<>();
+
+    public KeyedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Executes the task after all previously submitted tasks with the same key have completed.
+     *
+     * @param key  the key, e.g. the persistent identifier of a dataset
+     * @param task the task
+     * @throws RejectedExecutionException if there is no other task for the key and the underlying executor rejects the task
+     */
+    public void execute(String key, Runnable task) {
+        executeAsync(key, () -> {
+            task.run();
+            return DONE;
+        });
+    }
+
+    /**
+     * Starts the asynchronous task after all previously submitted tasks with the same key have completed. The task is started on the underlying executor; the
+     * next task for the key is started when the returned stage completes, normally or exceptionally.
+     *
+     * @param key  the key, e.g. the persistent identifier of a dataset
+     * @param task starts the task and returns the stage that completes when it is done
+     * @throws RejectedExecutionException if there is no other task for the key and the underlying executor rejects the task
+     */
+    public void executeAsync(String key, Supplier<? extends CompletionStage<?>> task) {
+        // the tasks that were rejected earlier go first
+        retryStalled();
+
+        synchronized (waitingTasks) {
+            var waiting = waitingTasks.get(key);
+
+            if (waiting != null) {
+                log.debug("A task for {} is already scheduled, queueing task", key);
+                waiting.add(task);
+                waitingCount++;
+                return;
+            }
+            waitingTasks.put(key, new ArrayDeque<>());
+        }
+
+        try {
+            executor.execute(() -> runAndScheduleNext(key, task));
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (waitingTasks) {
+                // no other task can have been added, since they would have waited for this one
+                waitingTasks.remove(key);
+            }
+            throw e;
+        }
+    }
+
+    private void runAndScheduleNext(String key, Supplier<? extends CompletionStage<?>> task) {
+        CompletionStage<?> completion = DONE;
+
+        try {
+            completion = task.get();
+        }
+        catch (RuntimeException e) {
+            // a failed task is complete; the tasks behind it must still run
+            log.error("Task for {} failed", key, e);
+        }
+
+        if (completion == null || completion.toCompletableFuture().isDone()) {
+            scheduleNext(key);
+        }
+        else {
+            // the task continues asynchronously; the next task is scheduled when it is done
+            completion.whenComplete((result, e) -> scheduleNext(key));
+        }
+    }
+
+    /**
+     * Hands the next task for the key to the executor. This may be called on any thread that completes a task, so the tasks are never run here.
+     */
+    private void scheduleNext(String key) {
+        var next = pollNext(key);
+
+        if (next != null) {
+            submit(key, next);
+        }
+        // a task is done, so the executor may have room for the tasks it rejected earlier
+        retryStalled();
+    }
+
+    private boolean submit(String key, Supplier<? extends CompletionStage<?>> task) {
+        try {
+            executor.execute(() -> runAndScheduleNext(key, task));
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Executor rejected the next task for {}, keeping it queued until another task completes", key);
+            synchronized (waitingTasks) {
+                // the task stays at the head of its key, so the tasks submitted after it still wait for it
+                waitingTasks.get(key).addFirst(task);
+                waitingCount++;
+                stalledKeys.add(key);
+            }
+            return false;
+        }
+    }
+
+    private void retryStalled() {
+        while (true) {
+            String key;
+            Supplier<? extends CompletionStage<?>> task;
+
+            synchronized (waitingTasks) {
+                key = stalledKeys.poll();
+                if (key == null) {
+                    return;
+                }
+                task = pollNext(key);
+            }
+
+            if (!submit(key, task)) {
+                return;
+            }
+        }
+    }
+
+    private Supplier<? extends CompletionStage<?>> pollNext(String key) {
+        synchronized (waitingTasks) {
+            var next = waitingTasks.get(key).poll();
+
+            if (next == null) {
+                waitingTasks.remove(key);
+            }
+            else {
+                waitingCount--;
+            }
+            return next;
+        }
+    }
+
+    /**
+     * @return the number of keys for which a task is scheduled or running
+     */
+    public int getActiveKeyCount() {
+        synchronized (waitingTasks) {
+            return waitingTasks.size();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for an earlier task with the same key to complete
+     */
+    public int getWaitingCount() {
+        synchronized (waitingTasks) {
+            return waitingCount;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics shared by the lock-wait strategies: the time spent waiting for locks, the number of requests made to Dataverse to check locks and the number of waits
+ * that timed out.
+ */
+public class LockWaitMetrics {
+    private final Timer waiting;
+    private final Counter polls;
+    private final Counter timeouts;
+
+    public LockWaitMetrics(MetricRegistry metricRegistry) {
+        waiting = metricRegistry.timer(MetricRegistry.name(LockWaitStrategy.class, "waiting"));
+        polls = metricRegistry.counter(MetricRegistry.name(LockWaitStrategy.class, "polls"));
+        timeouts = metricRegistry.counter(MetricRegistry.name(LockWaitStrategy.class, "timeouts"));
+    }
+
+    public Timer.Context startWaiting() {
+        return waiting.time();
+    }
+
+    public void polled() {
+        polls.inc();
+    }
+
+    public void timedOut() {
+        timeouts.inc();
+    }
+
+    Timer getWaiting() {
+        return waiting;
+    }
+
+    long getPollCount() {
+        return polls.getCount();
+    }
+
+    long getTimeoutCount() {
+        return timeouts.getCount();
+    }
+}
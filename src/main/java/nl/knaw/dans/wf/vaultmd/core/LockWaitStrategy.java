@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Waits until a dataset has a lock of a given type.
+ */
+public interface LockWaitStrategy {
+
+    /**
+     * Blocks until the dataset of the step invocation has a lock of the given type.
+     *
+     * @param stepInvocation the step invocation
+     * @param lockType       the lock type, e.g. "Workflow"
+     * @throws DataverseException    if Dataverse returns an error status
+     * @throws IOException           if the request to Dataverse fails or the waiting thread is interrupted
+     * @throws IllegalStateException if the lock is not present before the deadline
+     */
+    void awaitLock(StepInvocation stepInvocation, String lockType) throws DataverseException, IOException;
+
+    /**
+     * Waits until the dataset of the step invocation has a lock of the given type, without blocking the calling thread. By default {@link #awaitLock} is called on
+     * the given executor; strategies that do not need a thread while waiting override this.
+     *
+     * @param stepInvocation the step invocation
+     * @param lockType       the lock type, e.g. "Workflow"
+     * @param executor       the executor to block on, if the strategy needs to block
+     * @return a future that completes when the lock is present, or exceptionally with the exceptions of {@link #awaitLock}
+     */
+    default CompletableFuture<Void> awaitLockAsync(StepInvocation stepInvocation, String lockType, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                awaitLock(stepInvocation, lockType);
+            }
+            catch (DataverseException | IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
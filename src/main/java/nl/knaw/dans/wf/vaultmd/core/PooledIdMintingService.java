@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Hands out identifiers that were minted in advance by a background thread, so that the cost of generating random UUIDs and formatting them is not paid on the
+ * request path. The identifiers are kept in lock-free ring buffers. When a buffer drops below the low-water mark, the producer is woken up to fill it again; if a
+ * buffer is empty, the identifier is minted directly by the underlying service, so that callers never wait.
+ */
+public class PooledIdMintingService implements IdMintingService, Managed {
+    private static final Logger log = LoggerFactory.getLogger(PooledIdMintingService.class);
+
+    private final IdMintingService delegate;
+    private final IdRing nbns;
+    private final IdRing bagIds;
+    private final int lowWaterMark;
+    private final Counter misses;
+
+    private volatile boolean running;
+    private volatile Thread producer;
+
+    public PooledIdMintingService(IdMintingService delegate, int poolSize, int lowWaterMark, MetricRegistry metricRegistry) {
+        this.delegate = delegate;
+        this.nbns = new IdRing(poolSize);
+        this.bagIds = new IdRing(poolSize);
+        this.lowWaterMark = lowWaterMark;
+        this.misses = metricRegistry.counter(MetricRegistry.name(PooledIdMintingService.class, "misses"));
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        producer = new Thread(this::produce, "id-minting-producer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        running = false;
+        var thread = producer;
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+    }
+
+    @Override
+    public String mintUrnNbn() {
+        return take(nbns, delegate::mintUrnNbn);
+    }
+
+    @Override
+    public String mintBagId() {
+        return take(bagIds, delegate::mintBagId);
+    }
+
+    private String take(IdRing ring, Supplier<String> direct) {
+        var id = ring.poll();
+
+        if (ring.size() < lowWaterMark) {
+            var thread = producer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        if (id == null) {
+            misses.inc();
+            return direct.get();
+        }
+        return id;
+    }
+
+    private void produce() {
+        log.debug("Started id minting producer");
+
+        while (running) {
+            fill(nbns, delegate::mintUrnNbn);
+            fill(bagIds, delegate::mintBagId);
+            // woken up by a consumer when a ring drops below the low-water mark; the timeout is only a safety net
+            LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private void fill(IdRing ring, Supplier<String> mint) {
+        while (running && ring.size() < ring.capacity()) {
+            if (!ring.offer(mint.get())) {
+                return;
+            }
+        }
+    }
+
+    int getAvailableNbns() {
+        return nbns.size();
+    }
+
+    int getAvailableBagIds() {
+        return bagIds.size();
+    }
+
+    long getMissCount() {
+        return misses.getCount();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits the number of tasks of one Dataverse instance that run at the same time on the shared task executor. Tasks beyond the quota wait here instead of in the
+ * shared executor, so that a busy instance cannot occupy all threads and starve the other instances. The number of waiting tasks is not bounded; the admission
+ * control of the {@link TaskQueue} of the instance limits it. Tasks are only run by the shared executor: if it rejects a waiting task, the task keeps waiting
+ * until another task of the instance finishes or is submitted.
+ * <p>
+ * The quota counts the tasks while they occupy a thread of the shared executor. With the {@link nl.knaw.dans.wf.vaultmd.config.TaskExecutorConfig.Pipeline#ASYNC}
+ * pipeline a task releases its thread while it waits for Dataverse, so there the quota only limits the task threads; the calls of an instance to Dataverse are
+ * limited by the size of its own pool of Dataverse threads.
+ */
+public class QuotaExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(QuotaExecutor.class);
+
+    private final Executor delegate;
+    private final int maxConcurrentTasks;
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+    private int running;
+
+    public QuotaExecutor(Executor delegate, int maxConcurrentTasks) {
+        this.delegate = delegate;
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        boolean queued;
+
+        synchronized (this) {
+            // tasks that the shared executor rejected earlier go first
+            queued = running >= maxConcurrentTasks || !waiting.isEmpty();
+            if (queued) {
+                waiting.add(task);
+            }
+            else {
+                ++running;
+            }
+        }
+
+        if (queued) {
+            startWaiting();
+            return;
+        }
+
+        try {
+            delegate.execute(() -> runAndStartNext(task));
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (this) {
+                --running;
+            }
+            throw e;
+        }
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private void runAndStartNext(Runnable task) {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            log.error("Task failed", e);
+        }
+
+        synchronized (this) {
+            --running;
+        }
+        startWaiting();
+    }
+
+    /**
+     * Hands waiting tasks to the shared executor while the quota allows it, so that the tasks of other instances get their turn in between.
+     */
+    private void startWaiting() {
+        while (true) {
+            Runnable next;
+
+            synchronized (this) {
+                if (running >= maxConcurrentTasks || waiting.isEmpty()) {
+                    return;
+                }
+                next = waiting.poll();
+                ++running;
+            }
+
+            try {
+                delegate.execute(() -> runAndStartNext(next));
+            }
+            catch (RejectedExecutionException e) {
+                log.debug("Executor rejected the next task, keeping it waiting until another task finishes or is submitted");
+                synchronized (this) {
+                    --running;
+                    waiting.addFirst(next);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.lib.dataverse.DataverseHttpResponse;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.lib.dataverse.model.workflow.ResumeMessage;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the calls to Dataverse with a {@link CircuitBreaker} and a bulkhead. When Dataverse keeps failing, the breaker opens and calls fail immediately with a
+ * {@link DataverseUnavailableException}, instead of each task waiting for its own timeouts and retries. The bulkhead limits the number of calls in flight; a call
+ * that cannot get a permit within {@code maxWaitMillis} fails as well.
+ * <p>
+ * Connection errors and server errors (5xx) count as failures; other responses from Dataverse, such as 404, show that it is up. Waiting for the workflow lock is
+ * refused while the breaker is open, but it is not limited by the bulkhead, because the lock wait strategy makes its own calls over a long period.
+ * <p>
+ * The state of the breaker, the available permits, the refused calls and the succeeded and failed calls are registered in the metric registry under the name of
+ * this class.
+ */
+public class ResilientDataverseService implements DataverseService {
+    private final DataverseService delegate;
+    private final CircuitBreaker circuitBreaker;
+    private final Semaphore bulkhead;
+    private final long maxWaitMillis;
+    private final Meter circuitOpenRejections;
+    private final Meter bulkheadRejections;
+    private final Meter succeededCalls;
+    private final Meter failedCalls;
+
+    private interface Call<T> {
+        T call() throws DataverseException, IOException;
+    }
+
+    public ResilientDataverseService(DataverseService delegate, CircuitBreaker circuitBreaker, int maxConcurrentCalls, long maxWaitMillis,
+        MetricRegistry metricRegistry) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+        this.bulkhead = new Semaphore(maxConcurrentCalls, true);
+        this.maxWaitMillis = maxWaitMillis;
+
+        circuitOpenRejections = metricRegistry.meter(MetricRegistry.name(ResilientDataverseService.class, "circuitOpenRejections"));
+        bulkheadRejections = metricRegistry.meter(MetricRegistry.name(ResilientDataverseService.class, "bulkheadRejections"));
+        succeededCalls = metricRegistry.meter(MetricRegistry.name(ResilientDataverseService.class, "succeededCalls"));
+        failedCalls = metricRegistry.meter(MetricRegistry.name(ResilientDataverseService.class, "failedCalls"));
+        metricRegistry.register(MetricRegistry.name(ResilientDataverseService.class, "circuitState"), (Gauge<String>) () -> circuitBreaker.getState().name());
+        metricRegistry.register(MetricRegistry.name(ResilientDataverseService.class, "bulkheadAvailable"), (Gauge<Integer>) bulkhead::availablePermits);
+    }
+
+    /**
+     * @return the fraction of the calls of the last minute that succeeded, as an exponentially weighted moving average, or {@code NaN} if there were no calls
+     */
+    public double getSuccessRate() {
+        var succeeded = succeededCalls.getOneMinuteRate();
+        var failed = failedCalls.getOneMinuteRate();
+        return succeeded + failed > 0 ? succeeded / (succeeded + failed) : Double.NaN;
+    }
+
+    @Override
+    public DataverseHttpResponse<Object> resumeWorkflow(StepInvocation stepInvocation, ResumeMessage resumeMessage) throws DataverseException, IOException {
+        return call(() -> delegate.resumeWorkflow(stepInvocation, resumeMessage));
+    }
+
+    @Override
+    public Optional<DatasetVersion> getVersion(StepInvocation stepInvocation, String name) throws DataverseException, IOException {
+        return call(() -> delegate.getVersion(stepInvocation, name));
+    }
+
+    @Override
+    public Collection<DatasetVersion> getVaultMetadataHistory(StepInvocation stepInvocation) throws DataverseException, IOException {
+        return call(() -> delegate.getVaultMetadataHistory(stepInvocation));
+    }
+
+    @Override
+    public void lockDataset(StepInvocation stepInvocation, String workflow) throws DataverseException, IOException {
+        checkLockWaitAllowed(stepInvocation);
+        delegate.lockDataset(stepInvocation, workflow);
+    }
+
+    /**
+     * Refuses to wait for the lock with the given strategy while the breaker is open, like {@link #lockDataset}. Use this for a strategy that is called directly,
+     * e.g. for the asynchronous lock wait.
+     *
+     * @param lockWaitStrategy the strategy to guard
+     * @return the guarded strategy
+     */
+    public LockWaitStrategy guard(LockWaitStrategy lockWaitStrategy) {
+        return new LockWaitStrategy() {
+
+            @Override
+            public void awaitLock(StepInvocation stepInvocation, String lockType) throws DataverseException, IOException {
+                checkLockWaitAllowed(stepInvocation);
+                lockWaitStrategy.awaitLock(stepInvocation, lockType);
+            }
+
+            @Override
+            public CompletableFuture<Void> awaitLockAsync(StepInvocation stepInvocation, String lockType, Executor executor) {
+                try {
+                    checkLockWaitAllowed(stepInvocation);
+                }
+                catch (DataverseUnavailableException e) {
+                    return CompletableFuture.failedFuture(new CompletionException(e));
+                }
+                return lockWaitStrategy.awaitLockAsync(stepInvocation, lockType, executor);
+            }
+        };
+    }
+
+    private void checkLockWaitAllowed(StepInvocation stepInvocation) throws DataverseUnavailableException {
+        if (circuitBreaker.isRefusingCalls()) {
+            circuitOpenRejections.mark();
+            throw new DataverseUnavailableException("Not waiting for the lock on " + stepInvocation.getGlobalId() + ": the circuit breaker for Dataverse is open");
+        }
+    }
+
+    @Override
+    public void editMetadata(StepInvocation stepInvocation, FieldList fieldList) throws DataverseException, IOException {
+        call(() -> {
+            delegate.editMetadata(stepInvocation, fieldList);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteMetadata(StepInvocation stepInvocation, FieldList fieldList) throws DataverseException, IOException {
+        call(() -> {
+            delegate.deleteMetadata(stepInvocation, fieldList);
+            return null;
+        });
+    }
+
+    private <T> T call(Call<T> call) throws DataverseException, IOException {
+        if (!circuitBreaker.tryAcquire()) {
+            circuitOpenRejections.mark();
+            throw new DataverseUnavailableException("The circuit breaker for Dataverse is open");
+        }
+
+        try {
+            if (!bulkhead.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                circuitBreaker.onIgnored();
+                bulkheadRejections.mark();
+                throw new DataverseUnavailableException(String.format("No permit for a call to Dataverse within %d ms", maxWaitMillis));
+            }
+        }
+        catch (InterruptedException e) {
+            circuitBreaker.onIgnored();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a permit for a call to Dataverse");
+        }
+
+        try {
+            var result = call.call();
+            succeeded();
+            return result;
+        }
+        catch (DataverseException | IOException | RuntimeException e) {
+            recordFailure(e);
+            throw e;
+        }
+        finally {
+            bulkhead.release();
+        }
+    }
+
+    private void recordFailure(Exception e) {
+        // DataverseServiceImpl.getVersion wraps errors other than 404 in a RuntimeException
+        Throwable cause = e instanceof RuntimeException && e.getCause() != null ? e.getCause() : e;
+
+        if (cause instanceof DataverseException) {
+            if (((DataverseException) cause).getStatus() >= 500) {
+                failed();
+            }
+            else {
+                succeeded();
+            }
+        }
+        else if (cause instanceof IOException) {
+            failed();
+        }
+        else {
+            circuitBreaker.onIgnored();
+        }
+    }
+
+    private void succeeded() {
+        circuitBreaker.onSuccess();
+        succeededCalls.mark();
+    }
+
+    private void failed() {
+        circuitBreaker.onFailure();
+        failedCalls.mark();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Executes an action and retries it with exponential backoff and jitter when it fails with a retryable error. The first attempt is made on the calling thread; the
+ * retries are timed by a {@link ScheduledExecutorService}, so that the calling thread is released while waiting for the next attempt, and then handed to the
+ * attempt executor. The attempts usually block on I/O, so they do not run on the few scheduler threads, where one slow attempt would delay all other retries.
+ * <p>
+ * For every stage the number of attempts, retries and exhausted retries are counted, and the time spent waiting between attempts is timed.
+ */
+public class RetryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(RetryScheduler.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor attemptExecutor;
+    private final MetricRegistry metricRegistry;
+    private final RetryConfig config;
+    private final Map<String, StageMetrics> stageMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * A single attempt of the action to retry.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Attempt<T> {
+        T call() throws Exception;
+    }
+
+    private class StageMetrics {
+        private final Counter attempts;
+        private final Counter retries;
+        private final Counter exhausted;
+        private final Timer waiting;
+
+        private StageMetrics(String stage) {
+            attempts = metricRegistry.counter(MetricRegistry.name(RetryScheduler.class, stage, "attempts"));
+            retries = metricRegistry.counter(MetricRegistry.name(RetryScheduler.class, stage, "retries"));
+            exhausted = metricRegistry.counter(MetricRegistry.name(RetryScheduler.class, stage, "exhausted"));
+            waiting = metricRegistry.timer(MetricRegistry.name(RetryScheduler.class, stage, "waiting"));
+        }
+    }
+
+    /**
+     * @param scheduler       times the retries
+     * @param attemptExecutor runs the retries
+     */
+    public RetryScheduler(ScheduledExecutorService scheduler, Executor attemptExecutor, MetricRegistry metricRegistry, RetryConfig config) {
+        this.scheduler = scheduler;
+        this.attemptExecutor = attemptExecutor;
+        this.metricRegistry = metricRegistry;
+        this.config = config;
+    }
+
+    /**
+     * Executes the attempt until it succeeds, fails with an error that is not retryable, or the maximum number of attempts is reached.
+     *
+     * @param stage       the name of the stage, used for logging and metrics
+     * @param attempt     the action to execute
+     * @param isRetryable decides whether an error is worth retrying
+     * @param <T>         the type of the result
+     * @return a future that completes with the result of the first successful attempt, or with the error of the last attempt
+     */
+    public <T> CompletableFuture<T> execute(String stage, Attempt<T> attempt, Predicate<Exception> isRetryable) {
+        var result = new CompletableFuture<T>();
+        var metrics = stageMetrics.computeIfAbsent(stage, StageMetrics::new);
+        runAttempt(stage, attempt, isRetryable, result, 1, metrics);
+        return result;
+    }
+
+    private <T> void runAttempt(String stage, Attempt<T> attempt, Predicate<Exception> isRetryable, CompletableFuture<T> result, int attemptNumber, StageMetrics metrics) {
+        metrics.attempts.inc();
+
+        try {
+            result.complete(attempt.call());
+        }
+        catch (Exception e) {
+            if (!isRetryable.test(e)) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            if (attemptNumber >= config.getMaxAttempts()) {
+                log.error("Stage '{}' failed after {} attempts", stage, attemptNumber);
+                metrics.exhausted.inc();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            var delay = getDelayMillis(attemptNumber);
+            log.debug("Attempt {} of stage '{}' failed, next attempt in {} ms", attemptNumber, stage, delay);
+            metrics.retries.inc();
+
+            var scheduledAt = System.nanoTime();
+            try {
+                scheduler.schedule(() -> {
+                    metrics.waiting.update(System.nanoTime() - scheduledAt, TimeUnit.NANOSECONDS);
+                    startAttempt(stage, attempt, isRetryable, result, attemptNumber + 1, metrics, e);
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException re) {
+                log.error("Could not schedule attempt {} of stage '{}'", attemptNumber + 1, stage, re);
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private <T> void startAttempt(String stage, Attempt<T> attempt, Predicate<Exception> isRetryable, CompletableFuture<T> result, int attemptNumber,
+        StageMetrics metrics, Exception previousError) {
+        try {
+            attemptExecutor.execute(() -> runAttempt(stage, attempt, isRetryable, result, attemptNumber, metrics));
+        }
+        catch (RejectedExecutionException re) {
+            log.error("Could not start attempt {} of stage '{}'", attemptNumber, stage, re);
+            result.completeExceptionally(previousError);
+        }
+    }
+
+    long getDelayMillis(int attemptNumber) {
+        var delay = Math.min(config.getInitialDelay().toMilliseconds() * Math.pow(config.getMultiplier(), attemptNumber - 1), config.getMaxDelay().toMilliseconds());
+        var jitterRange = delay * config.getJitter();
+
+        if (jitterRange > 0) {
+            delay += ThreadLocalRandom.current().nextDouble(-jitterRange, jitterRange);
+        }
+
+        return Math.max(0, Math.round(delay));
+    }
+}
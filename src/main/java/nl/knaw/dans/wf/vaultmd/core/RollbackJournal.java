@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers, per invocation, the vault metadata that the draft had before a {@link SetVaultMetadataTask} replaced it, so that a rollback of the invocation can
+ * restore it. The journal holds at most {@code maxEntries} invocations; when it is full the oldest entry is evicted. Entries expire after
+ * {@code expireAfterMillis}.
+ * <p>
+ * With a path, the journal is also kept on disk, as an append-only log with one {@link RollbackJournalEntry} per line, so that invocations can still be rolled
+ * back after a restart. The values are durable before the task edits the draft. As in the {@link TaskJournal}, the lines are written by a single writer thread
+ * using group commit, and the log is rewritten to contain only the current entries at startup and after every {@code maxEntries} written lines. Without a path
+ * the journal is kept in memory only, and earlier invocations can no longer be rolled back after a restart.
+ */
+public class RollbackJournal implements TaskListener, Managed {
+    private static final Logger log = LoggerFactory.getLogger(RollbackJournal.class);
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static final PendingWrite STOP = new PendingWrite(null, null);
+
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private final int maxEntries;
+    private final long expireAfterMillis;
+    private final LongSupplier clock;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    // ordered by the time of recording, so that the entries that expire first are at the head
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private long sequence;
+    private int writtenSinceCompaction;
+    private Thread writer;
+
+    // only accessed by the writer thread while it runs
+    private FileChannel channel;
+
+    /**
+     * The vault metadata of a draft before it was edited.
+     */
+    public static class Entry {
+        private final String globalId;
+        private final long sequence;
+        private final long timestamp;
+        private final VaultFields previous;
+
+        private Entry(String globalId, long sequence, long timestamp, VaultFields previous) {
+            this.globalId = globalId;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.previous = previous;
+        }
+
+        public String getGlobalId() {
+            return globalId;
+        }
+
+        /**
+         * @return the order in which the entries were recorded; of two entries for the same dataset, the one with the lower sequence number was recorded first
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public VaultFields getPrevious() {
+            return previous;
+        }
+    }
+
+    private static class PendingWrite {
+        private final RollbackJournalEntry entry;
+        // for a compaction: the entries to rewrite the log with
+        private final List<RollbackJournalEntry> snapshot;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        private PendingWrite(RollbackJournalEntry entry, List<RollbackJournalEntry> snapshot) {
+            this.entry = entry;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Creates a journal that is kept in memory only.
+     */
+    public RollbackJournal(int maxEntries, long expireAfterMillis) {
+        this(null, null, maxEntries, expireAfterMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a journal that is kept in the given file.
+     */
+    public RollbackJournal(Path path, ObjectMapper objectMapper, int maxEntries, long expireAfterMillis) {
+        this(path, objectMapper, maxEntries, expireAfterMillis, System::currentTimeMillis);
+    }
+
+    RollbackJournal(int maxEntries, long expireAfterMillis, LongSupplier clock) {
+        this(null, null, maxEntries, expireAfterMillis, clock);
+    }
+
+    RollbackJournal(Path path, ObjectMapper objectMapper, int maxEntries, long expireAfterMillis, LongSupplier clock) {
+        this.path = path;
+        this.objectMapper = objectMapper;
+        this.maxEntries = maxEntries;
+        this.expireAfterMillis = expireAfterMillis;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+        if (path == null) {
+            return;
+        }
+
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        if (Files.exists(path)) {
+            load();
+            log.info("Found {} invocation(s) that can be rolled back in rollback journal {}", entries.size(), path);
+        }
+        compact(snapshot());
+
+        channel = openChannel();
+        writer = new Thread(this::writeLoop, "rollback-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        Thread stopping;
+
+        synchronized (this) {
+            stopping = writer;
+            writer = null;
+        }
+
+        if (stopping != null) {
+            queue.put(STOP);
+            stopping.join();
+            channel.close();
+        }
+    }
+
+    @Override
+    public void onEditing(StepInvocation stepInvocation, VaultFields previous) {
+        CompletableFuture<Void> written;
+
+        synchronized (this) {
+            var now = clock.getAsLong();
+            removeExpired(now);
+
+            // a re-run of the same invocation edits a draft that already holds its own values; the values from before the first run must be kept
+            if (entries.containsKey(stepInvocation.getInvocationId())) {
+                return;
+            }
+
+            if (entries.size() >= maxEntries) {
+                var eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+
+            var entry = new Entry(stepInvocation.getGlobalId(), sequence++, now, previous);
+            entries.put(stepInvocation.getInvocationId(), entry);
+            written = append(RollbackJournalEntry.editing(stepInvocation.getInvocationId(), entry));
+        }
+
+        // the draft is edited when this returns, so the values must be durable by then
+        try {
+            written.get();
+        }
+        catch (ExecutionException e) {
+            log.error("Could not write the vault metadata of invocation {} to the rollback journal; it cannot be rolled back after a restart",
+                stepInvocation.getInvocationId(), e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while writing the vault metadata of invocation {} to the rollback journal", stepInvocation.getInvocationId());
+        }
+    }
+
+    /**
+     * @param invocationId the invocation id
+     * @return whether the journal holds the values from before the invocation edited the draft
+     */
+    public synchronized boolean contains(String invocationId) {
+        removeExpired(clock.getAsLong());
+        return entries.containsKey(invocationId);
+    }
+
+    /**
+     * Removes the entry of the invocation from the journal.
+     *
+     * @param invocationId the invocation id
+     * @return the entry, if the invocation edited a draft recently
+     */
+    public synchronized Optional<Entry> take(String invocationId) {
+        removeExpired(clock.getAsLong());
+        var entry = entries.remove(invocationId);
+
+        if (entry != null) {
+            append(RollbackJournalEntry.taken(invocationId)).whenComplete((v, e) -> {
+                if (e != null) {
+                    log.error("Could not write rollback of invocation {} to the rollback journal", invocationId, e);
+                }
+            });
+        }
+        return Optional.ofNullable(entry);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().timestamp < expireAfterMillis) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    // called while holding the lock, so that the lines are queued in the order in which the entries changed
+    private CompletableFuture<Void> append(RollbackJournalEntry entry) {
+        if (path == null) {
+            return DONE;
+        }
+        if (writer == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Rollback journal is not running"));
+        }
+
+        var pendingWrite = new PendingWrite(entry, null);
+        queue.add(pendingWrite);
+
+        if (++writtenSinceCompaction >= maxEntries) {
+            writtenSinceCompaction = 0;
+            queue.add(new PendingWrite(null, snapshot()));
+        }
+        return pendingWrite.written;
+    }
+
+    private List<RollbackJournalEntry> snapshot() {
+        var result = new ArrayList<RollbackJournalEntry>(entries.size());
+        entries.forEach((invocationId, entry) -> result.add(RollbackJournalEntry.editing(invocationId, entry)));
+        return result;
+    }
+
+    private void writeLoop() {
+        var batch = new ArrayList<PendingWrite>(MAX_BATCH_SIZE);
+        var stopped = false;
+
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                log.warn("Rollback journal writer interrupted");
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            stopped = batch.remove(STOP);
+            var lines = new ArrayList<PendingWrite>(batch.size());
+            for (var pendingWrite : batch) {
+                if (pendingWrite.snapshot == null) {
+                    lines.add(pendingWrite);
+                }
+                else {
+                    // the lines queued before the compaction are part of the snapshot, but must be written in case the compaction fails
+                    writeBatch(lines);
+                    lines.clear();
+                    compactWhileRunning(pendingWrite.snapshot);
+                }
+            }
+            writeBatch(lines);
+            batch.clear();
+        }
+
+        // fail anything that was added after the stop request
+        PendingWrite remaining;
+        while ((remaining = queue.poll()) != null) {
+            remaining.written.completeExceptionally(new IllegalStateException("Rollback journal is stopped"));
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long position = -1;
+        try {
+            if (!channel.isOpen()) {
+                channel = openChannel();
+            }
+            position = channel.size();
+
+            var buffer = new ByteArrayOutputStream();
+            for (var pendingWrite : batch) {
+                buffer.write(serialize(pendingWrite.entry));
+            }
+            var bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            // one fsync for the whole batch
+            channel.force(false);
+
+            for (var pendingWrite : batch) {
+                pendingWrite.written.complete(null);
+            }
+        }
+        catch (IOException e) {
+            log.error("Could not write batch of {} entries to rollback journal", batch.size(), e);
+            truncate(position);
+
+            for (var pendingWrite : batch) {
+                pendingWrite.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Removes a partially written batch, so that the next batch does not continue its last line.
+     */
+    private void truncate(long position) {
+        if (position < 0) {
+            return;
+        }
+
+        try {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        catch (IOException e) {
+            log.warn("Could not truncate rollback journal {} to {} bytes", path, position, e);
+        }
+    }
+
+    private void compactWhileRunning(List<RollbackJournalEntry> snapshot) {
+        try {
+            channel.close();
+            compact(snapshot);
+            log.debug("Compacted rollback journal {} to {} entries", path, snapshot.size());
+        }
+        catch (IOException e) {
+            log.error("Could not compact rollback journal {}", path, e);
+        }
+
+        try {
+            channel = openChannel();
+        }
+        catch (IOException e) {
+            // reopening is tried again before the next batch
+            log.error("Could not reopen rollback journal {}", path, e);
+        }
+    }
+
+    private void load() throws IOException {
+        try (var lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                RollbackJournalEntry entry;
+                try {
+                    entry = objectMapper.readValue(line, RollbackJournalEntry.class);
+                }
+                catch (JsonProcessingException e) {
+                    // most likely the last line was only partially written before a crash
+                    log.warn("Skipping unreadable rollback journal entry: {}", line);
+                    continue;
+                }
+
+                if (entry.getType() == RollbackJournalEntry.Type.EDITING) {
+                    entries.putIfAbsent(entry.getInvocationId(),
+                        new Entry(entry.getGlobalId(), entry.getSequence(), entry.getTimestamp(), VaultFields.of(entry.getPrevious())));
+                    sequence = Math.max(sequence, entry.getSequence() + 1);
+                }
+                else {
+                    entries.remove(entry.getInvocationId());
+                }
+            }
+        }
+
+        removeExpired(clock.getAsLong());
+        var eldest = entries.keySet().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Rewrites the log so that it only contains the given entries.
+     */
+    private void compact(List<RollbackJournalEntry> snapshot) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (var tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (var entry : snapshot) {
+                var bytes = ByteBuffer.wrap(serialize(entry));
+                while (bytes.hasRemaining()) {
+                    tmpChannel.write(bytes);
+                }
+            }
+            tmpChannel.force(false);
+        }
+
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileSync.syncDirectory(path);
+    }
+
+    private FileChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private byte[] serialize(RollbackJournalEntry entry) throws JsonProcessingException {
+        return (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+
+/**
+ * A single line in the file of a persistent {@link RollbackJournal}.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RollbackJournalEntry {
+
+    public enum Type {
+        /**
+         * A task is about to edit the draft; the entry holds the values from before the edit.
+         */
+        EDITING,
+        /**
+         * The values were taken by a rollback.
+         */
+        TAKEN
+    }
+
+    private final Type type;
+
+    private final String invocationId;
+
+    private final long timestamp;
+
+    // only present for EDITING entries
+    private final String globalId;
+
+    private final Long sequence;
+
+    private final Map<String, String> previous;
+
+    @JsonCreator
+    public RollbackJournalEntry(@JsonProperty("type") Type type, @JsonProperty("invocationId") String invocationId, @JsonProperty("timestamp") long timestamp,
+        @JsonProperty("globalId") String globalId, @JsonProperty("sequence") Long sequence, @JsonProperty("previous") Map<String, String> previous) {
+        this.type = type;
+        this.invocationId = invocationId;
+        this.timestamp = timestamp;
+        this.globalId = globalId;
+        this.sequence = sequence;
+        this.previous = previous;
+    }
+
+    public static RollbackJournalEntry editing(String invocationId, RollbackJournal.Entry entry) {
+        return new RollbackJournalEntry(Type.EDITING, invocationId, entry.getTimestamp(), entry.getGlobalId(), entry.getSequence(), entry.getPrevious().toMap());
+    }
+
+    public static RollbackJournalEntry taken(String invocationId) {
+        return new RollbackJournalEntry(Type.TAKEN, invocationId, System.currentTimeMillis(), null, null, null);
+    }
+
+    @Override
+    public String toString() {
+        return "RollbackJournalEntry{" + "type=" + type + ", invocationId='" + invocationId + '\'' + ", timestamp=" + timestamp + '}';
+    }
+
+    @JsonProperty
+    public Type getType() {
+        return type;
+    }
+
+    @JsonProperty
+    public String getInvocationId() {
+        return invocationId;
+    }
+
+    @JsonProperty
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @JsonProperty
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    @JsonProperty
+    public Long getSequence() {
+        return sequence;
+    }
+
+    @JsonProperty
+    public Map<String, String> getPrevious() {
+        return previous;
+    }
+}
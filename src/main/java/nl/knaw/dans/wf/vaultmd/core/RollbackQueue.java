@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_BAG_ID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_DATAVERSE_PID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_NBN;
+
+/**
+ * Rolls back the vault metadata of the drafts whose publication failed after a {@link SetVaultMetadataTask} had edited them. The values that the draft had before
+ * the edit are taken from the {@link RollbackJournal} and written back; fields that were empty before are removed again.
+ * <p>
+ * Rollbacks are ordered with the tasks for the same dataset by the {@link KeyedExecutor} of the task queue, so that a rollback never runs at the same time as a task
+ * that edits the same draft. They run on their own executor, so that they do not compete with the tasks for threads. Rollbacks for the same dataset that arrive
+ * while an earlier one is still queued are grouped: the group restores the values from before the first of its invocations with a single edit.
+ * <p>
+ * The number of rollbacks waiting, the time from submission to completion, the time spent restoring the metadata per group, and the numbers of rolled back,
+ * skipped and failed invocations are registered in the metric registry under the name of this class.
+ */
+public class RollbackQueue {
+    private static final Logger log = LoggerFactory.getLogger(RollbackQueue.class);
+    private static final List<String> VAULT_FIELDS = List.of(DANS_DATAVERSE_PID, DANS_DATAVERSE_PID_VERSION, DANS_BAG_ID, DANS_NBN);
+
+    private final DataverseService dataverseService;
+    private final RollbackJournal rollbackJournal;
+    private final KeyedExecutor datasetExecutor;
+    private final Executor executor;
+    private final long retryAfterSeconds;
+
+    // the queued rollbacks per dataset; a group is removed when it starts running
+    private final Map<String, List<Pending>> pendingByDataset = new HashMap<>();
+    private int pendingCount;
+
+    private final Timer latency;
+    private final Timer restore;
+    private final Meter rolledBack;
+    private final Meter skipped;
+    private final Counter failed;
+
+    private static class Pending {
+        private final StepInvocation stepInvocation;
+        private final Timer.Context latency;
+
+        private Pending(StepInvocation stepInvocation, Timer.Context latency) {
+            this.stepInvocation = stepInvocation;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * @param datasetExecutor   the executor that orders the tasks per dataset
+     * @param executor          the executor to run the rollbacks on; it should have a bounded queue
+     * @param retryAfterSeconds the retry-after period to report when the dataset executor rejects a rollback
+     */
+    public RollbackQueue(DataverseService dataverseService, RollbackJournal rollbackJournal, KeyedExecutor datasetExecutor, Executor executor, long retryAfterSeconds,
+        MetricRegistry metricRegistry) {
+        this.dataverseService = dataverseService;
+        this.rollbackJournal = rollbackJournal;
+        this.datasetExecutor = datasetExecutor;
+        this.executor = executor;
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        latency = metricRegistry.timer(MetricRegistry.name(RollbackQueue.class, "latency"));
+        restore = metricRegistry.timer(MetricRegistry.name(RollbackQueue.class, "restore"));
+        rolledBack = metricRegistry.meter(MetricRegistry.name(RollbackQueue.class, "rolledBack"));
+        skipped = metricRegistry.meter(MetricRegistry.name(RollbackQueue.class, "skipped"));
+        failed = metricRegistry.counter(MetricRegistry.name(RollbackQueue.class, "failures"));
+        metricRegistry.register(MetricRegistry.name(RollbackQueue.class, "pending"), (Gauge<Integer>) this::getPendingCount);
+    }
+
+    /**
+     * Queues the rollback of an invocation.
+     *
+     * @param stepInvocation the invocation
+     * @return {@code false}, and nothing is queued, if no values are recorded for the invocation, because it did not edit the draft, or it ran before the service
+     * was restarted or longer than the expiry period ago
+     * @throws TaskQueueFullException if the dataset executor rejected the rollback
+     */
+    public boolean submit(StepInvocation stepInvocation) {
+        var globalId = stepInvocation.getGlobalId();
+
+        if (!rollbackJournal.contains(stepInvocation.getInvocationId())) {
+            log.warn("No vault metadata recorded for invocation {} of dataset {}, cannot roll it back", stepInvocation.getInvocationId(), globalId);
+            skipped.mark();
+            return false;
+        }
+
+        synchronized (this) {
+            var group = pendingByDataset.get(globalId);
+            var isNewGroup = group == null;
+
+            if (isNewGroup) {
+                group = new ArrayList<>();
+                pendingByDataset.put(globalId, group);
+            }
+            group.add(new Pending(stepInvocation, latency.time()));
+            ++pendingCount;
+
+            if (!isNewGroup) {
+                log.debug("Rollback of {} grouped with {} queued rollback(s) for dataset {}", stepInvocation.getInvocationId(), group.size() - 1, globalId);
+                return true;
+            }
+
+            try {
+                datasetExecutor.executeAsync(globalId, () -> startRollBack(globalId));
+            }
+            catch (RejectedExecutionException e) {
+                pendingByDataset.remove(globalId);
+                --pendingCount;
+                throw new TaskQueueFullException("Executor rejected the rollback: " + e.getMessage(), retryAfterSeconds, true);
+            }
+        }
+        return true;
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Hands the rollback to the rollback executor; the dataset is held until it is done.
+     */
+    private CompletableFuture<Void> startRollBack(String globalId) {
+        try {
+            return CompletableFuture.runAsync(() -> rollBack(globalId), executor);
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Rollback executor rejected the rollback for {}, running it on the current thread", globalId);
+            rollBack(globalId);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void rollBack(String globalId) {
+        List<Pending> group;
+
+        synchronized (this) {
+            group = pendingByDataset.remove(globalId);
+            pendingCount -= group.size();
+        }
+
+        var invocations = group.stream().map(p -> p.stepInvocation).collect(Collectors.toList());
+
+        try (var ignored = restore.time()) {
+            restore(globalId, invocations);
+        }
+        catch (Exception e) {
+            log.error("Rollback of {} invocation(s) for dataset {} failed", invocations.size(), globalId, e);
+            failed.inc(invocations.size());
+        }
+        finally {
+            group.forEach(p -> p.latency.stop());
+        }
+    }
+
+    void restore(String globalId, List<StepInvocation> invocations) throws Exception {
+        Optional<RollbackJournal.Entry> first = invocations.stream()
+            .map(inv -> rollbackJournal.take(inv.getInvocationId()))
+            .flatMap(Optional::stream)
+            .min(Comparator.comparingLong(RollbackJournal.Entry::getSequence));
+
+        if (first.isEmpty()) {
+            // the task failed before editing the draft, or the journal no longer holds the values
+            log.info("No vault metadata recorded for {} invocation(s) for dataset {}, nothing to roll back", invocations.size(), globalId);
+            skipped.mark(invocations.size());
+            return;
+        }
+
+        // the most recent invocation belongs to the workflow that currently holds the lock on the dataset
+        var stepInvocation = invocations.get(invocations.size() - 1);
+        var draft = dataverseService.getVersion(stepInvocation, ":draft");
+
+        if (draft.isEmpty()) {
+            log.warn("Dataset {} has no draft anymore, nothing to roll back", globalId);
+            skipped.mark(invocations.size());
+            return;
+        }
+
+        var previous = first.get().getPrevious();
+        var current = VaultFields.of(draft.get());
+        var restored = new FieldList();
+        var removed = new FieldList();
+
+        for (var name : VAULT_FIELDS) {
+            var previousValue = previous.get(name);
+            var currentValue = current.get(name);
+
+            if (Objects.equals(previousValue, currentValue)) {
+                continue;
+            }
+
+            if (previousValue != null) {
+                restored.add(new PrimitiveSingleValueField(name, previousValue));
+            }
+            else {
+                removed.add(new PrimitiveSingleValueField(name, currentValue));
+            }
+        }
+
+        if (!removed.getFields().isEmpty()) {
+            dataverseService.deleteMetadata(stepInvocation, removed);
+        }
+        if (!restored.getFields().isEmpty()) {
+            dataverseService.editMetadata(stepInvocation, restored);
+        }
+
+        log.info("Rolled back vault metadata of dataset {} for {} invocation(s): {} field(s) restored, {} field(s) removed", globalId, invocations.size(),
+            restored.getFields().size(), removed.getFields().size());
+        rolledBack.mark(invocations.size());
+    }
+}
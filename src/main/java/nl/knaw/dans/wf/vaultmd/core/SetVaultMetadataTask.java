@@ -18,19 +18,20 @@ package nl.knaw.dans.wf.vaultmd.core;
 import nl.knaw.dans.lib.dataverse.DataverseException;
 import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
 import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
-import nl.knaw.dans.lib.dataverse.model.dataset.MetadataBlock;
-import nl.knaw.dans.lib.dataverse.model.dataset.MetadataField;
 import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
 import nl.knaw.dans.lib.dataverse.model.workflow.ResumeMessage;
 import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.core.TaskMetrics.Phase;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class SetVaultMetadataTask implements Runnable {
@@ -39,20 +40,31 @@ public class SetVaultMetadataTask implements Runnable {
     public static final String DANS_DATAVERSE_PID = "dansDataversePid";
     public static final String DANS_DATAVERSE_PID_VERSION = "dansDataversePidVersion";
     private static final Logger log = LoggerFactory.getLogger(SetVaultMetadataTask.class);
-    private static final int MAX_RETRIES = 10;
-    private static final int RETRY_DELAY_MS = 1000;
+    static final String RESUME_STAGE = "resume";
+    static final String RESUME_FAILURE_STAGE = "resume-failure";
 
     private final DataverseService dataverseService;
     private final StepInvocation stepInvocation;
 
     private final IdMintingService mintingService;
-    private final IdValidator idValidator;
+    private final VaultMetadataValidator metadataValidator;
+    private final TaskListener taskListener;
+    private final RetryScheduler retryScheduler;
+    private final TaskMetrics metrics;
+    private final IdRegistry idRegistry;
 
-    public SetVaultMetadataTask(StepInvocation stepInvocation, DataverseService dataverseService, IdMintingService mintingService, IdValidator idValidator) {
+    // number of calls made to Dataverse by this task
+    private final AtomicInteger dataverseRoundTrips = new AtomicInteger();
+
+    public SetVaultMetadataTask(StepInvocation stepInvocation, TaskContext context, TaskListener taskListener, TaskMetrics metrics) {
         this.stepInvocation = stepInvocation;
-        this.dataverseService = dataverseService;
-        this.mintingService = mintingService;
-        this.idValidator = idValidator;
+        this.dataverseService = context.getDataverseService();
+        this.mintingService = context.getIdMintingService();
+        this.metadataValidator = new VaultMetadataValidator(context.getIdValidator());
+        this.taskListener = taskListener;
+        this.retryScheduler = context.getRetryScheduler();
+        this.metrics = metrics;
+        this.idRegistry = context.getIdRegistry();
     }
 
     @Override
@@ -60,89 +72,199 @@ public class SetVaultMetadataTask implements Runnable {
         return "SetVaultMetadataTask{" + "invocationId='" + stepInvocation.getInvocationId() + "'}";
     }
 
+    /**
+     * Starts the task without waiting for the workflow to be resumed.
+     */
     @Override
     public void run() {
+        start();
+    }
+
+    /**
+     * Runs the task on the current thread up to the resume of the workflow, which is retried by the {@link RetryScheduler}.
+     *
+     * @return a future that completes when the workflow has been resumed, either with success or with failure; it never completes exceptionally
+     */
+    public CompletableFuture<Void> start() {
         log.info("Running task " + this);
-        runTask();
-        log.info("Completed running task " + this);
+        return runTask().whenComplete((v, e) -> log.info("Completed running task {} ({} Dataverse round trips)", this, dataverseRoundTrips.get()));
+    }
+
+    int getDataverseRoundTrips() {
+        return dataverseRoundTrips.get();
     }
 
-    void runTask() {
+    CompletableFuture<Void> runTask() {
+        started();
+
         try {
             // lock dataset before doing work
             log.info("Locking dataset {}", stepInvocation.getGlobalId());
-            dataverseService.lockDataset(stepInvocation, "Workflow");
+            try (var ignored = metrics.time(Phase.LOCK)) {
+                dataverseRoundTrips.incrementAndGet();
+                dataverseService.lockDataset(stepInvocation, "Workflow");
+            }
+
+            // fetch the version history once, it is used both for generating and for validating the metadata
+            var versionHistory = fetchVersionHistory(stepInvocation);
 
             // update metadata
-            var metadata = getVaultMetadata(stepInvocation);
+            var draftVersion = fetchDraftVersion(stepInvocation);
+            var metadata = generateVaultMetadata(stepInvocation, draftVersion, versionHistory);
 
             log.info("Validating metadata for dataset {}", stepInvocation.getGlobalId());
-            validateBagMetadata(stepInvocation, metadata);
+            try (var ignored = metrics.time(Phase.VALIDATE)) {
+                validateBagMetadata(stepInvocation, metadata, versionHistory);
+            }
 
-            log.info("Updating metadata for dataset {}", stepInvocation.getGlobalId());
-            dataverseService.editMetadata(stepInvocation, metadata);
+            var changedFields = prepareEdit(draftVersion, metadata);
+            if (!changedFields.getFields().isEmpty()) {
+                try (var ignored = metrics.time(Phase.EDIT)) {
+                    dataverseRoundTrips.incrementAndGet();
+                    dataverseService.editMetadata(stepInvocation, changedFields);
+                }
+            }
+            registerIds(metadata);
+
+            // resume workflow; retries are scheduled, so that this thread is not blocked while Dataverse is not ready to resume yet
+            var resumeTimer = metrics.time(Phase.RESUME);
+            return resumeWorkflow(stepInvocation).handle((result, e) -> {
+                resumeTimer.stop();
 
-            // resume workflow
-            resumeWorkflow(stepInvocation);
-            log.info("Vault metadata set for dataset {}. Dataset resume called.", stepInvocation.getGlobalId());
+                if (e == null) {
+                    completed();
+                    return CompletableFuture.<Void> completedFuture(null);
+                }
+                log.error("Workflow could not be resumed for dataset {}", stepInvocation.getGlobalId());
+                return handleFailure(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+            }).thenCompose(f -> f);
         }
         // catch all kinds of exceptions
         catch (Exception e) {
-            log.error("SetVaultMetadataTask for dataset {} failed. Resuming dataset with 'fail=true'", stepInvocation.getGlobalId(), e);
+            return handleFailure(e);
+        }
+    }
 
-            try {
-                dataverseService.resumeWorkflow(stepInvocation,
-                    new ResumeMessage("Failure", e.getMessage(), "Publication failed: pre-publication workflow returned an error"));
-            }
-            catch (IOException | DataverseException ex) {
-                log.error("Error resuming workflow with Failure status", ex);
+    StepInvocation getStepInvocation() {
+        return stepInvocation;
+    }
+
+    TaskMetrics getMetrics() {
+        return metrics;
+    }
+
+    void countDataverseRoundTrip() {
+        dataverseRoundTrips.incrementAndGet();
+    }
+
+    void started() {
+        taskListener.onStarted(stepInvocation);
+    }
+
+    /**
+     * Determines which fields of the metadata have to be written. Fields that already hold the right value in the draft, for example because the invocation is
+     * delivered or run again, are left out, so that Dataverse does not update and reindex the draft for nothing.
+     *
+     * @param draftVersion the draft
+     * @param metadata     the generated vault metadata
+     * @return the fields whose value differs from the draft; empty if no edit is needed
+     */
+    FieldList prepareEdit(DatasetVersion draftVersion, FieldList metadata) {
+        var current = VaultFields.of(draftVersion);
+        var changedFields = new FieldList();
+
+        for (var field : metadata.getFields()) {
+            var value = field instanceof PrimitiveSingleValueField ? ((PrimitiveSingleValueField) field).getValue() : null;
+
+            if (value == null || !value.equals(current.get(field.getTypeName()))) {
+                changedFields.add(field);
             }
         }
+        metrics.unchangedFields(metadata.getFields().size() - changedFields.getFields().size());
+
+        if (changedFields.getFields().isEmpty()) {
+            log.info("Vault metadata of dataset {} is already up to date, not updating it", stepInvocation.getGlobalId());
+            metrics.editSkipped();
+        }
+        else {
+            log.info("Updating {} vault metadata field(s) of dataset {}", changedFields.getFields().size(), stepInvocation.getGlobalId());
+            taskListener.onEditing(stepInvocation, current);
+        }
+        return changedFields;
+    }
+
+    void completed() {
+        log.info("Vault metadata set for dataset {}. Dataset resume called.", stepInvocation.getGlobalId());
+        metrics.succeeded();
+        taskListener.onResumed(stepInvocation);
     }
 
-    Optional<List<MetadataField>> getVaultMetadata(DatasetVersion datasetVersion) {
-        return Optional.ofNullable(datasetVersion.getMetadataBlocks().get("dansDataVaultMetadata")).map(MetadataBlock::getFields);
+    /**
+     * Resumes the workflow with a failure. The resume is retried like the resume with success, so that it is not lost while Dataverse is unavailable. If it cannot
+     * be delivered at all, the invocation is reported as abandoned, which leaves it incomplete in the task journal.
+     *
+     * @param e the error that made the task fail
+     * @return a future that completes when the failure has been reported or abandoned; it never completes exceptionally
+     */
+    CompletableFuture<Void> handleFailure(Exception e) {
+        log.error("SetVaultMetadataTask for dataset {} failed. Resuming dataset with 'fail=true'", stepInvocation.getGlobalId(), e);
+        metrics.failed(e);
+
+        return retryScheduler.execute(RESUME_FAILURE_STAGE, () -> {
+            dataverseRoundTrips.incrementAndGet();
+            dataverseService.resumeWorkflow(stepInvocation,
+                new ResumeMessage("Failure", e.getMessage(), "Publication failed: pre-publication workflow returned an error"));
+            return null;
+        }, this::isResumeRetryable).handle((result, ex) -> {
+            if (ex == null) {
+                taskListener.onFailed(stepInvocation, e);
+            }
+            else {
+                log.error("Error resuming workflow with Failure status, invocation {} is left to be replayed", stepInvocation.getInvocationId(), ex);
+                taskListener.onAbandoned(stepInvocation, e);
+            }
+            return null;
+        });
     }
 
     Optional<String> getVaultMetadataFieldValue(DatasetVersion datasetVersion, String fieldName) {
         // this gets the single value of a field in the metadata, eg dansDataVaultMetadata.fields[1].value
         // where fields[1].typeName equals the fieldName parameter
-        var result = getVaultMetadata(datasetVersion)
-            .map(fields -> fields.stream()
-                .filter(field -> field.getTypeName().equals(fieldName))
-                .findFirst())
-            .flatMap(i -> i)
-            .map(f -> (PrimitiveSingleValueField) f)
-            .map(PrimitiveSingleValueField::getValue);
-
-        if (result.equals(Optional.of(""))) {
-            return Optional.empty();
-        }
-        return result;
+        return Optional.ofNullable(VaultFields.of(datasetVersion).get(fieldName));
     }
 
-    FieldList getVaultMetadata(StepInvocation stepInvocation) throws IOException, DataverseException {
-        var draftVersion = dataverseService.getVersion(stepInvocation, ":draft")
-            .orElseThrow(() -> new IllegalArgumentException("No draft version found"));
+    VersionHistory fetchVersionHistory(StepInvocation stepInvocation) throws IOException, DataverseException {
+        try (var ignored = metrics.time(Phase.FETCH_HISTORY)) {
+            dataverseRoundTrips.incrementAndGet();
+            return VersionHistory.fetch(dataverseService, stepInvocation);
+        }
+    }
 
-        var allVersions = dataverseService.getAllReleasedOrDeaccessionedVersion(stepInvocation);
+    FieldList getVaultMetadata(StepInvocation stepInvocation, VersionHistory versionHistory) throws IOException, DataverseException {
+        return generateVaultMetadata(stepInvocation, fetchDraftVersion(stepInvocation), versionHistory);
+    }
 
+    /**
+     * Generates the vault metadata for the new version from the draft and the previous versions, reusing the bag id of the draft and the NBN of the dataset where
+     * possible and minting new identifiers otherwise.
+     */
+    FieldList generateVaultMetadata(StepInvocation stepInvocation, DatasetVersion draftVersion, VersionHistory versionHistory) {
         // get a list of all published or deaccessioned dataset versions
-        var bagIds = allVersions.stream()
-            .map(datasetVersion -> getVaultMetadataFieldValue(datasetVersion, DANS_BAG_ID))
-            .filter(Optional::isPresent)
-            .map(Optional::get)
+        var bagIds = versionHistory.getVaultFields().stream()
+            .map(VaultFields::getBagId)
+            .filter(Objects::nonNull)
             .collect(Collectors.toSet());
 
         // if the latest version exists, use that to get the bag id
         var bagId = getBagId(draftVersion, bagIds);
 
         // find the latest version
-        var latestVersion = allVersions.stream().findFirst();
+        var latestVersion = versionHistory.getLatestVersion();
 
-        // if the latest version exists, use that to get the NBN
-        var nbn = latestVersion.map(this::getNbn)
-            .orElseGet(() -> getVaultMetadataFieldValue(draftVersion, DANS_NBN).orElseGet(mintingService::mintUrnNbn));
+        // if an NBN was registered for the dataset, use that; otherwise, if the latest version exists, use that to get the NBN
+        var nbn = getRegisteredNbn()
+            .orElseGet(() -> latestVersion.map(this::getNbn)
+                .orElseGet(() -> getVaultMetadataFieldValue(draftVersion, DANS_NBN).orElseGet(mintingService::mintUrnNbn)));
 
         var version = String.format("%s.%s", stepInvocation.getMajorVersion(), stepInvocation.getMinorVersion());
 
@@ -158,128 +280,88 @@ public class SetVaultMetadataTask implements Runnable {
         return fieldList;
     }
 
+    private DatasetVersion fetchDraftVersion(StepInvocation stepInvocation) throws IOException {
+        try (var ignored = metrics.time(Phase.FETCH_DRAFT)) {
+            dataverseRoundTrips.incrementAndGet();
+            return dataverseService.getVersion(stepInvocation, ":draft")
+                .orElseThrow(() -> new IllegalArgumentException("No draft version found"));
+        }
+    }
+
     /**
-     * //@formatter:off
-     * For versions > 1.0:
-     *  - there MUST exist a previous released or deaccessioned version.
-     *  - dansDataversePid, dansDataversePidVersion, dansBagId and dansNbn MUST always be filled in.
-     *  - dansDataversePid and dansNbn must each have the same value for all versions
-     * dansNbn must be an urn:nbn
-     * dansBagId must be an urn:uuid
+     * Validates the vault metadata that is about to be written against the rules of {@link VaultMetadataValidator}.
      *
      * @param stepInvocation
      * @param fieldList
-     * @throws IOException
-     * @throws DataverseException
+     * @param versionHistory the released or deaccessioned versions of the dataset
      * @throws IllegalArgumentException when a validation error occurred
-     * //@formatter:on
      */
-    void validateBagMetadata(StepInvocation stepInvocation, FieldList fieldList) throws IOException, DataverseException {
+    void validateBagMetadata(StepInvocation stepInvocation, FieldList fieldList, VersionHistory versionHistory) {
+        metadataValidator.validate(Integer.parseInt(stepInvocation.getMajorVersion()), Integer.parseInt(stepInvocation.getMinorVersion()), VaultFields.of(fieldList),
+            versionHistory, getRegisteredNbn());
+    }
 
-        var bagId = getRequiredFieldListValue(fieldList, DANS_BAG_ID);
-        var nbn = getRequiredFieldListValue(fieldList, DANS_NBN);
+    CompletableFuture<Void> resumeWorkflow(StepInvocation stepInvocation) {
+        return retryScheduler.execute(RESUME_STAGE, () -> {
+            log.trace("Resuming workflow with id {}", stepInvocation.getGlobalId());
+            dataverseRoundTrips.incrementAndGet();
+            dataverseService.resumeWorkflow(stepInvocation, new ResumeMessage("Success", "", ""));
+            return null;
+        }, this::isResumeRetryable);
+    }
 
-        log.debug("Validating bagId '{}' to be valid urn:uuid", bagId);
-        if (!idValidator.isValidUrnUuid(bagId)) {
-            throw new IllegalArgumentException(String.format("'%s' is not a valid urn:uuid", bagId));
+    private boolean isResumeRetryable(Exception e) {
+        // Dataverse returns 404 while it is not yet waiting for the workflow to be resumed
+        if (e instanceof DataverseException && ((DataverseException) e).getStatus() == 404) {
+            log.warn("Unable to resume workflow for dataset {} yet, Dataverse returned 404", stepInvocation.getGlobalId());
+            return true;
         }
-
-        log.debug("Validating nbn '{}' to be valid urn:nbn", nbn);
-        if (!idValidator.isValidUrnNbn(nbn)) {
-            throw new IllegalArgumentException(String.format("'%s' is not a valid urn:nbn", nbn));
+        if (e instanceof DataverseUnavailableException) {
+            log.warn("Unable to resume workflow for dataset {} yet: {}", stepInvocation.getGlobalId(), e.getMessage());
+            return true;
         }
+        log.warn("Unable to resume workflow due to Dataverse error", e);
+        return false;
+    }
 
-        var majorVersion = Integer.parseInt(stepInvocation.getMajorVersion());
-        var minorVersion = Integer.parseInt(stepInvocation.getMinorVersion());
-
-        // anything greater than 1.0
-        if (majorVersion > 1 || (majorVersion == 1 && minorVersion > 0)) {
-            var pidVersion = getRequiredFieldListValue(fieldList, DANS_DATAVERSE_PID_VERSION);
-            log.trace("Found '{}' property with value '{}'", DANS_DATAVERSE_PID_VERSION, pidVersion);
-            var pid = getRequiredFieldListValue(fieldList, DANS_DATAVERSE_PID);
-            log.trace("Found '{}' property with value '{}'", DANS_DATAVERSE_PID, pid);
-
-            var allVersions = dataverseService.getAllReleasedOrDeaccessionedVersion(stepInvocation);
+    private Optional<String> getRegisteredNbn() {
+        return idRegistry == null ? Optional.empty() : idRegistry.getNbn(stepInvocation.getGlobalId());
+    }
 
-            // if there are no previous versions, it failed to validate
-            if (allVersions.size() == 0) {
-                throw new IllegalArgumentException(String.format(
-                    "Version %s.%s is greater than 1.0, but no previous version found", majorVersion, minorVersion
-                ));
-            }
+    void registerIds(FieldList metadata) {
+        if (idRegistry == null) {
+            return;
+        }
 
-            // now ensure pid and nbn are the same for each version
-            for (var version : allVersions) {
-                var otherPid = getVaultMetadataFieldValue(version, DANS_DATAVERSE_PID)
-                    .orElseThrow(() -> new IllegalStateException(String.format(
-                        "Released or deaccessioned version found without '%s' property (version %s.%s)",
-                        DANS_DATAVERSE_PID, version.getVersionNumber(), version.getVersionMinorNumber()
-                    )));
-
-                var otherNbn = getVaultMetadataFieldValue(version, DANS_NBN)
-                    .orElseThrow(() -> new IllegalStateException(String.format(
-                        "Released or deaccessioned version found without '%s' property (version %s.%s)",
-                        DANS_NBN, version.getVersionNumber(), version.getVersionMinorNumber()
-                    )));
-
-                if (!StringUtils.equals(pid, otherPid)) {
-                    throw new IllegalStateException(String.format(
-                        "Mismatch in '%s' property, expected '%s' in version %s.%s, but instead found '%s'",
-                        DANS_DATAVERSE_PID, pid, version.getVersionNumber(), version.getVersionMinorNumber(), otherPid
-                    ));
-                }
+        var fields = VaultFields.of(metadata);
 
-                if (!StringUtils.equals(nbn, otherNbn)) {
-                    throw new IllegalStateException(String.format(
-                        "Mismatch in '%s' property, expected '%s' in version %s.%s, but instead found '%s'",
-                        DANS_NBN, pid, version.getVersionNumber(), version.getVersionMinorNumber(), otherPid
-                    ));
-                }
-            }
+        try {
+            idRegistry.register(new IdRegistryEntry(stepInvocation.getGlobalId(), fields.getDataversePidVersion(), fields.getNbn(), fields.getBagId()));
+        }
+        catch (IOException e) {
+            // the metadata has been written, so do not fail the workflow; the registry can be rebuilt from Dataverse
+            log.error("Could not register identifiers of dataset {} in id registry", stepInvocation.getGlobalId(), e);
         }
     }
 
-    private String getRequiredFieldListValue(FieldList fieldList, String key) {
-        return fieldList.getFields()
-            .stream()
-            .filter(i -> i.getTypeName().equals(key))
-            .filter(i -> i instanceof PrimitiveSingleValueField)
-            .map(i -> (PrimitiveSingleValueField) i)
-            .map(PrimitiveSingleValueField::getValue)
-            .filter(StringUtils::isNotBlank)
-            .findFirst()
-            .orElseThrow(() -> new IllegalArgumentException(String.format("'%s' missing from metadata", key)));
-    }
+    private boolean isBagIdIssuedElsewhere(String bagId) {
+        if (idRegistry == null) {
+            return false;
+        }
 
-    void resumeWorkflow(StepInvocation stepInvocation) throws IOException, DataverseException, InterruptedException {
-        var tried = 0;
+        var version = String.format("%s.%s", stepInvocation.getMajorVersion(), stepInvocation.getMinorVersion());
+        return idRegistry.findByBagId(bagId)
+            .map(entry -> !(entry.getPid().equals(stepInvocation.getGlobalId()) && entry.getVersion().equals(version)))
+            .orElse(false);
+    }
 
-        DataverseException lastException = null;
+    private String mintBagId() {
+        var bagId = mintingService.mintBagId();
 
-        while (tried++ < MAX_RETRIES) {
-            try {
-                log.trace("Resuming workflow with id {}, attempt {}", stepInvocation.getGlobalId(), tried);
-                dataverseService.resumeWorkflow(stepInvocation, new ResumeMessage("Success", "", ""));
-                return;
-            }
-            catch (DataverseException e) {
-                log.warn("Unable to resume workflow due to Dataverse error", e);
-
-                if (e.getStatus() == 404) {
-                    // retrying
-                    log.debug("Sleeping {} ms before next try", RETRY_DELAY_MS);
-                    Thread.sleep(RETRY_DELAY_MS);
-                    lastException = e;
-                }
-                else {
-                    log.error("Workflow could not be resumed for dataset {}. Number of retries: {}. Time between retries in ms: {}", stepInvocation.getGlobalId(), tried,
-                        RETRY_DELAY_MS);
-                    throw e;
-                }
-            }
+        while (isBagIdIssuedElsewhere(bagId)) {
+            bagId = mintingService.mintBagId();
         }
-
-        throw lastException;
+        return bagId;
     }
 
     String getNbn(DatasetVersion latestPublishedDataset) {
@@ -296,14 +378,15 @@ public class SetVaultMetadataTask implements Runnable {
          * - the draft bag doesn't have a bag id
          * - any of the published or deaccessioned versions have the same bag ID as the draft already
          * - the latest published version does not exist, and the bag id in the draft is also empty
+         * - the bag id in the draft was registered for another dataset or version
          */
         return draftBagId.map(bagId -> {
                 /*
                  * This happens after publishing a new version via the UI. The bagId from the previous version is inherited by the new draft. However, we
                  * want every version to have a unique bagId.
                  */
-                if (StringUtils.isBlank(bagId) || bagIds.contains(bagId)) {
-                    return mintingService.mintBagId();
+                if (StringUtils.isBlank(bagId) || bagIds.contains(bagId) || isBagIdIssuedElsewhere(bagId)) {
+                    return mintBagId();
                 }
 
                 /*
@@ -311,6 +394,6 @@ public class SetVaultMetadataTask implements Runnable {
                  */
                 return bagId;
             })
-            .orElseGet(mintingService::mintBagId);
+            .orElseGet(this::mintBagId);
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for locks by polling the locks of all datasets in one request per lock type, instead of one request per waiting task. The poller only contacts Dataverse
+ * while there are tasks waiting. A failed poll is logged and retried at the next interval; a waiting task gives up when its timeout has passed.
+ */
+public class SharedLockPoller implements LockWaitStrategy, Managed {
+    private static final Logger log = LoggerFactory.getLogger(SharedLockPoller.class);
+
+    private final DatasetLocksClient locksClient;
+    private final ScheduledExecutorService scheduler;
+    private final long pollIntervalMillis;
+    private final long timeoutMillis;
+    private final LockWaitMetrics metrics;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private ScheduledFuture<?> pollTask;
+
+    private static class Waiter {
+        private final String globalId;
+        private final String lockType;
+        private final long deadline;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Waiter(String globalId, String lockType, long deadline) {
+            this.globalId = globalId;
+            this.lockType = lockType;
+            this.deadline = deadline;
+        }
+    }
+
+    public SharedLockPoller(DatasetLocksClient locksClient, ScheduledExecutorService scheduler, long pollIntervalMillis, long timeoutMillis, LockWaitMetrics metrics) {
+        this.locksClient = locksClient;
+        this.scheduler = scheduler;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start() {
+        pollTask = scheduler.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (pollTask != null) {
+            pollTask.cancel(false);
+        }
+
+        synchronized (waiters) {
+            waiters.forEach(w -> w.future.completeExceptionally(new IllegalStateException("Lock poller stopped")));
+            waiters.clear();
+        }
+    }
+
+    @Override
+    public void awaitLock(StepInvocation stepInvocation, String lockType) throws DataverseException, IOException {
+        var waiter = new Waiter(stepInvocation.getGlobalId(), lockType, System.currentTimeMillis() + timeoutMillis);
+
+        synchronized (waiters) {
+            waiters.add(waiter);
+        }
+
+        try (var ignored = metrics.startWaiting()) {
+            waiter.future.get();
+        }
+        catch (InterruptedException e) {
+            synchronized (waiters) {
+                waiters.remove(waiter);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for lock");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Registers the waiter and returns its future, so that no thread is occupied while waiting.
+     */
+    @Override
+    public CompletableFuture<Void> awaitLockAsync(StepInvocation stepInvocation, String lockType, Executor executor) {
+        var waiter = new Waiter(stepInvocation.getGlobalId(), lockType, System.currentTimeMillis() + timeoutMillis);
+
+        synchronized (waiters) {
+            waiters.add(waiter);
+        }
+
+        var timer = metrics.startWaiting();
+        return waiter.future.whenComplete((v, e) -> timer.stop());
+    }
+
+    void poll() {
+        List<Waiter> current;
+
+        synchronized (waiters) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            current = new ArrayList<>(waiters);
+        }
+
+        var lockTypes = new HashSet<String>();
+        current.forEach(w -> lockTypes.add(w.lockType));
+
+        for (var lockType : lockTypes) {
+            try {
+                metrics.polled();
+                var locked = locksClient.getLockedDatasets(lockType);
+                log.trace("{} dataset(s) have a {} lock", locked.size(), lockType);
+
+                current.stream()
+                    .filter(w -> w.lockType.equals(lockType) && locked.contains(w.globalId))
+                    .forEach(w -> w.future.complete(null));
+            }
+            catch (Exception e) {
+                log.warn("Could not list {} locks, retrying in {} ms", lockType, pollIntervalMillis, e);
+            }
+        }
+
+        var now = System.currentTimeMillis();
+
+        for (var waiter : current) {
+            if (!waiter.future.isDone() && now >= waiter.deadline) {
+                metrics.timedOut();
+                waiter.future.completeExceptionally(new IllegalStateException(String.format("Dataset %s did not get a %s lock within %d ms",
+                    waiter.globalId, waiter.lockType, timeoutMillis)));
+            }
+        }
+
+        synchronized (waiters) {
+            waiters.removeIf(w -> w.future.isDone());
+        }
+    }
+
+    int getWaitingCount() {
+        synchronized (waiters) {
+            return waiters.size();
+        }
+    }
+}
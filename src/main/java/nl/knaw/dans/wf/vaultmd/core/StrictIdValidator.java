@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Validates identifiers against their full grammar in a single pass over the characters, ignoring case, without allocating objects or throwing exceptions.
+ *
+ * <ul>
+ *     <li>A URN:NBN is <code>urn:nbn:nl:ui:13-</code> followed by one or more groups of letters and digits separated by single hyphens. This covers both the
+ *     NBNs minted by this service (a UUID after the prefix) and the shorter legacy NBNs, such as <code>urn:nbn:nl:ui:13-2ajw-cq</code>.</li>
+ *     <li>A URN:UUID is <code>urn:uuid:</code> followed by a UUID in canonical form: 8-4-4-4-12 hexadecimal digits.</li>
+ * </ul>
+ */
+public class StrictIdValidator implements IdValidator {
+    private static final String NBN_PREFIX = "urn:nbn:nl:ui:13-";
+    private static final String UUID_PREFIX = "urn:uuid:";
+    private static final int UUID_LENGTH = 36;
+
+    public enum IdType {
+        URN_NBN,
+        URN_UUID
+    }
+
+    @Override
+    public boolean isValidUrnNbn(String id) {
+        if (id == null || id.length() <= NBN_PREFIX.length() || !id.regionMatches(true, 0, NBN_PREFIX, 0, NBN_PREFIX.length())) {
+            return false;
+        }
+
+        var previousWasHyphen = true;
+        for (var i = NBN_PREFIX.length(); i < id.length(); ++i) {
+            var c = id.charAt(i);
+
+            if (c == '-') {
+                if (previousWasHyphen) {
+                    return false;
+                }
+                previousWasHyphen = true;
+            }
+            else if (isLetterOrDigit(c)) {
+                previousWasHyphen = false;
+            }
+            else {
+                return false;
+            }
+        }
+
+        return !previousWasHyphen;
+    }
+
+    @Override
+    public boolean isValidUrnUuid(String id) {
+        if (id == null || id.length() != UUID_PREFIX.length() + UUID_LENGTH || !id.regionMatches(true, 0, UUID_PREFIX, 0, UUID_PREFIX.length())) {
+            return false;
+        }
+
+        for (var i = 0; i < UUID_LENGTH; ++i) {
+            var c = id.charAt(UUID_PREFIX.length() + i);
+
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            }
+            else if (!isHexDigit(c)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Validates a batch of identifiers of the same type, for example when auditing existing datasets.
+     *
+     * @param ids  the identifiers; null elements are invalid
+     * @param type the type of the identifiers
+     * @return the indexes of the invalid identifiers
+     */
+    public BitSet validateAll(List<String> ids, IdType type) {
+        var invalid = new BitSet(ids.size());
+        var i = 0;
+
+        for (var id : ids) {
+            if (!(type == IdType.URN_NBN ? isValidUrnNbn(id) : isValidUrnUuid(id))) {
+                invalid.set(i);
+            }
+            ++i;
+        }
+
+        return invalid;
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
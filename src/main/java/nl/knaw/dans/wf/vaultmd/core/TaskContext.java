@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+/**
+ * The services that the {@link SetVaultMetadataTask}s of one Dataverse instance share.
+ */
+public class TaskContext {
+    private final DataverseService dataverseService;
+    private final AsyncDataverseService asyncDataverseService;
+    private final IdMintingService idMintingService;
+    private final IdValidator idValidator;
+    private final RetryScheduler retryScheduler;
+    private final IdRegistry idRegistry;
+
+    /**
+     * @param dataverseService      the Dataverse service; with the asynchronous pipeline it is still used to resume the workflow
+     * @param asyncDataverseService if not {@code null}, tasks run as {@link AsyncSetVaultMetadataTask}s, which do not occupy a thread while waiting for Dataverse
+     * @param idRegistry            the registry of issued identifiers, or {@code null} if the identifiers are only checked against the version history of the
+     *                              dataset
+     */
+    public TaskContext(DataverseService dataverseService, AsyncDataverseService asyncDataverseService, IdMintingService idMintingService, IdValidator idValidator,
+        RetryScheduler retryScheduler, IdRegistry idRegistry) {
+        this.dataverseService = dataverseService;
+        this.asyncDataverseService = asyncDataverseService;
+        this.idMintingService = idMintingService;
+        this.idValidator = idValidator;
+        this.retryScheduler = retryScheduler;
+        this.idRegistry = idRegistry;
+    }
+
+    public DataverseService getDataverseService() {
+        return dataverseService;
+    }
+
+    public AsyncDataverseService getAsyncDataverseService() {
+        return asyncDataverseService;
+    }
+
+    public IdMintingService getIdMintingService() {
+        return idMintingService;
+    }
+
+    public IdValidator getIdValidator() {
+        return idValidator;
+    }
+
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    public IdRegistry getIdRegistry() {
+        return idRegistry;
+    }
+}
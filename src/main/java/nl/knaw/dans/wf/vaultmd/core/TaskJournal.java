@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Append-only journal of the step invocations that were accepted by this service. Every invocation is recorded when it is accepted, when its task is started and when
+ * the workflow is resumed (successfully or with a failure). Invocations that were accepted but never resumed, because the service was stopped or crashed, are replayed at
+ * startup.
+ * <p>
+ * Entries are written by a single writer thread using group commit: all entries that are waiting when the writer becomes available are written together and made
+ * durable with a single fsync, so that bursts of invocations do not each pay for their own fsync.
+ * <p>
+ * The writer keeps track of the incomplete invocations, and after every {@code compactAfter} completed invocations it rewrites the journal so that it only contains
+ * those, to keep the journal from growing while the service runs.
+ */
+public class TaskJournal implements Managed, TaskListener {
+    private static final Logger log = LoggerFactory.getLogger(TaskJournal.class);
+    private static final PendingWrite STOP = new PendingWrite(null);
+
+    private final Path path;
+    private final int maxBatchSize;
+    private final int compactAfter;
+    private final ObjectMapper objectMapper;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    // only accessed by the writer thread while it runs
+    private final LinkedHashMap<String, StepInvocation> incomplete = new LinkedHashMap<>();
+    private int completedSinceCompaction;
+
+    private Collection<StepInvocation> incompleteInvocations = List.of();
+    private FileChannel channel;
+    private Thread writer;
+    private volatile boolean running;
+
+    private static class PendingWrite {
+        private final TaskJournalEntry entry;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        private PendingWrite(TaskJournalEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    public TaskJournal(Path path, int maxBatchSize, int compactAfter, ObjectMapper objectMapper) {
+        this.path = path;
+        this.maxBatchSize = maxBatchSize;
+        this.compactAfter = compactAfter;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        if (Files.exists(path)) {
+            incompleteInvocations = readIncompleteInvocations();
+            log.info("Found {} incomplete invocation(s) in task journal {}", incompleteInvocations.size(), path);
+            compact(incompleteInvocations);
+            for (var invocation : incompleteInvocations) {
+                incomplete.put(invocation.getInvocationId(), invocation);
+            }
+        }
+
+        channel = openChannel();
+        running = true;
+        writer = new Thread(this::writeLoop, "task-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        queue.put(STOP);
+        writer.join();
+        channel.close();
+    }
+
+    /**
+     * @return the invocations that were accepted but not resumed the last time the service ran
+     */
+    public Collection<StepInvocation> getIncompleteInvocations() {
+        return incompleteInvocations;
+    }
+
+    /**
+     * Records that an invocation was accepted, and waits until the entry is durable.
+     *
+     * @param stepInvocation the accepted invocation
+     * @throws IOException if the entry could not be written
+     */
+    public void accepted(StepInvocation stepInvocation) throws IOException {
+        try {
+            append(TaskJournalEntry.accepted(stepInvocation)).get();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Could not write to task journal", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to task journal", e);
+        }
+    }
+
+    /**
+     * Records that a batch of invocations was accepted, and waits until all entries are durable. The entries are queued together, so that they are written in as
+     * few batches as possible.
+     *
+     * @param stepInvocations the accepted invocations
+     * @throws IOException if any of the entries could not be written
+     */
+    public void acceptedAll(Collection<StepInvocation> stepInvocations) throws IOException {
+        var writes = new ArrayList<CompletableFuture<Void>>(stepInvocations.size());
+        for (var stepInvocation : stepInvocations) {
+            writes.add(append(TaskJournalEntry.accepted(stepInvocation)));
+        }
+
+        try {
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Could not write to task journal", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to task journal", e);
+        }
+    }
+
+    @Override
+    public void onStarted(StepInvocation stepInvocation) {
+        appendInBackground(TaskJournalEntry.of(TaskJournalEntry.Type.STARTED, stepInvocation));
+    }
+
+    @Override
+    public void onResumed(StepInvocation stepInvocation) {
+        appendInBackground(TaskJournalEntry.of(TaskJournalEntry.Type.RESUMED, stepInvocation));
+    }
+
+    @Override
+    public void onFailed(StepInvocation stepInvocation, Exception e) {
+        appendInBackground(TaskJournalEntry.of(TaskJournalEntry.Type.FAILED, stepInvocation));
+    }
+
+    CompletableFuture<Void> append(TaskJournalEntry entry) {
+        if (!running) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Task journal is not running"));
+        }
+
+        var pendingWrite = new PendingWrite(entry);
+        queue.add(pendingWrite);
+        return pendingWrite.written;
+    }
+
+    private void appendInBackground(TaskJournalEntry entry) {
+        append(entry).whenComplete((v, e) -> {
+            if (e != null) {
+                log.error("Could not write {} to task journal", entry, e);
+            }
+        });
+    }
+
+    private void writeLoop() {
+        var batch = new ArrayList<PendingWrite>(maxBatchSize);
+        var stopped = false;
+
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                log.warn("Task journal writer interrupted");
+                break;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+
+            stopped = batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            batch.clear();
+
+            if (completedSinceCompaction >= compactAfter) {
+                compactWhileRunning();
+            }
+        }
+
+        // fail anything that was added after the stop request
+        PendingWrite remaining;
+        while ((remaining = queue.poll()) != null) {
+            remaining.written.completeExceptionally(new IllegalStateException("Task journal is stopped"));
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        long position = -1;
+        try {
+            if (!channel.isOpen()) {
+                channel = openChannel();
+            }
+            position = channel.size();
+
+            var buffer = new ByteArrayOutputStream();
+            for (var pendingWrite : batch) {
+                buffer.write(serialize(pendingWrite.entry));
+            }
+
+            var bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            // one fsync for the whole batch
+            channel.force(false);
+            log.trace("Wrote {} entries to task journal", batch.size());
+
+            for (var pendingWrite : batch) {
+                track(pendingWrite.entry);
+                pendingWrite.written.complete(null);
+            }
+        }
+        catch (IOException e) {
+            log.error("Could not write batch of {} entries to task journal", batch.size(), e);
+            truncate(position);
+
+            for (var pendingWrite : batch) {
+                pendingWrite.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Removes a partially written batch, so that the next batch does not continue its last line.
+     */
+    private void truncate(long position) {
+        if (position < 0) {
+            return;
+        }
+
+        try {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        catch (IOException e) {
+            log.warn("Could not truncate task journal {} to {} bytes", path, position, e);
+        }
+    }
+
+    private void track(TaskJournalEntry entry) {
+        switch (entry.getType()) {
+            case ACCEPTED:
+                incomplete.put(entry.getInvocationId(), entry.getInvocation());
+                break;
+            case RESUMED:
+            case FAILED:
+                if (incomplete.remove(entry.getInvocationId()) != null) {
+                    completedSinceCompaction++;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void compactWhileRunning() {
+        try {
+            channel.close();
+            compact(incomplete.values());
+            log.debug("Compacted task journal {} to {} incomplete invocation(s)", path, incomplete.size());
+        }
+        catch (IOException e) {
+            log.error("Could not compact task journal {}", path, e);
+        }
+        finally {
+            completedSinceCompaction = 0;
+        }
+
+        try {
+            channel = openChannel();
+        }
+        catch (IOException e) {
+            // reopening is tried again before the next batch
+            log.error("Could not reopen task journal {}", path, e);
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private byte[] serialize(TaskJournalEntry entry) throws JsonProcessingException {
+        return (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    Collection<StepInvocation> readIncompleteInvocations() throws IOException {
+        var accepted = new LinkedHashMap<String, StepInvocation>();
+
+        try (var lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                TaskJournalEntry entry;
+                try {
+                    entry = objectMapper.readValue(line, TaskJournalEntry.class);
+                }
+                catch (JsonProcessingException e) {
+                    // most likely the last line was only partially written before a crash
+                    log.warn("Skipping unreadable task journal entry: {}", line);
+                    continue;
+                }
+
+                switch (entry.getType()) {
+                    case ACCEPTED:
+                        accepted.put(entry.getInvocationId(), entry.getInvocation());
+                        break;
+                    case RESUMED:
+                    case FAILED:
+                        accepted.remove(entry.getInvocationId());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        return new ArrayList<>(accepted.values());
+    }
+
+    /**
+     * Rewrites the journal so that it only contains the incomplete invocations, to keep it from growing indefinitely.
+     */
+    private void compact(Collection<StepInvocation> invocations) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (var tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (var invocation : invocations) {
+                var bytes = ByteBuffer.wrap(serialize(TaskJournalEntry.accepted(invocation)));
+                while (bytes.hasRemaining()) {
+                    tmpChannel.write(bytes);
+                }
+            }
+            tmpChannel.force(false);
+        }
+
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileSync.syncDirectory(path);
+    }
+}
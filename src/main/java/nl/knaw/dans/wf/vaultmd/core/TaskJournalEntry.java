@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+/**
+ * A single line in the {@link TaskJournal}.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TaskJournalEntry {
+
+    public enum Type {
+        ACCEPTED,
+        STARTED,
+        RESUMED,
+        FAILED
+    }
+
+    private final Type type;
+
+    private final String invocationId;
+
+    private final long timestamp;
+
+    // only present for ACCEPTED entries, so that the invocation can be replayed
+    private final StepInvocation invocation;
+
+    @JsonCreator
+    public TaskJournalEntry(@JsonProperty("type") Type type, @JsonProperty("invocationId") String invocationId, @JsonProperty("timestamp") long timestamp,
+        @JsonProperty("invocation") StepInvocation invocation) {
+        this.type = type; this.invocationId = invocationId; this.timestamp = timestamp; this.invocation = invocation;
+    }
+
+    public static TaskJournalEntry accepted(StepInvocation invocation) {
+        return new TaskJournalEntry(Type.ACCEPTED, invocation.getInvocationId(), System.currentTimeMillis(), invocation);
+    }
+
+    public static TaskJournalEntry of(Type type, StepInvocation invocation) {
+        return new TaskJournalEntry(type, invocation.getInvocationId(), System.currentTimeMillis(), null);
+    }
+
+    @Override
+    public String toString() {
+        return "TaskJournalEntry{" + "type=" + type + ", invocationId='" + invocationId + '\'' + ", timestamp=" + timestamp + '}';
+    }
+
+    @JsonProperty
+    public Type getType() {
+        return type;
+    }
+
+    @JsonProperty
+    public String getInvocationId() {
+        return invocationId;
+    }
+
+    @JsonProperty
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @JsonProperty
+    public StepInvocation getInvocation() {
+        return invocation;
+    }
+}
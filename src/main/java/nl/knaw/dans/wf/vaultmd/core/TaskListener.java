@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.util.List;
+
+/**
+ * Receives the life cycle events of a {@link SetVaultMetadataTask}.
+ */
+public interface TaskListener {
+    TaskListener NO_OP = new TaskListener() {
+    };
+
+    /**
+     * @param listeners the listeners to notify, in order
+     * @return a listener that forwards every event to all the given listeners
+     */
+    static TaskListener of(List<TaskListener> listeners) {
+        return new TaskListener() {
+
+            @Override
+            public void onStarted(StepInvocation stepInvocation) {
+                listeners.forEach(l -> l.onStarted(stepInvocation));
+            }
+
+            @Override
+            public void onEditing(StepInvocation stepInvocation, VaultFields previous) {
+                listeners.forEach(l -> l.onEditing(stepInvocation, previous));
+            }
+
+            @Override
+            public void onResumed(StepInvocation stepInvocation) {
+                listeners.forEach(l -> l.onResumed(stepInvocation));
+            }
+
+            @Override
+            public void onFailed(StepInvocation stepInvocation, Exception e) {
+                listeners.forEach(l -> l.onFailed(stepInvocation, e));
+            }
+
+            @Override
+            public void onAbandoned(StepInvocation stepInvocation, Exception e) {
+                listeners.forEach(l -> l.onAbandoned(stepInvocation, e));
+            }
+        };
+    }
+
+    default void onStarted(StepInvocation stepInvocation) {
+    }
+
+    /**
+     * Called just before the vault metadata of the draft is replaced.
+     *
+     * @param stepInvocation the invocation
+     * @param previous       the vault metadata of the draft before the edit
+     */
+    default void onEditing(StepInvocation stepInvocation, VaultFields previous) {
+    }
+
+    default void onResumed(StepInvocation stepInvocation) {
+    }
+
+    /**
+     * Called when the task failed and the workflow was resumed with a failure.
+     */
+    default void onFailed(StepInvocation stepInvocation, Exception e) {
+    }
+
+    /**
+     * Called when the task failed and not even the failure could be reported to Dataverse, so that the workflow is still waiting to be resumed.
+     *
+     * @param stepInvocation the invocation
+     * @param e              the error that made the task fail
+     */
+    default void onAbandoned(StepInvocation stepInvocation, Exception e) {
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Timers for the phases of a {@link SetVaultMetadataTask} and counters for its outcome. The metrics are registered under the name of the task class, e.g.
+ * {@code nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.lock}, and failures are also counted per exception type, e.g.
+ * {@code nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.failures.IllegalArgumentException}. Edits that were skipped because the draft already held the
+ * right values, and fields that were left out of an edit for that reason, are counted in {@code edit.skipped} and {@code edit.unchangedFields}.
+ */
+public class TaskMetrics {
+
+    public enum Phase {
+        LOCK("lock"),
+        FETCH_DRAFT("fetchDraft"),
+        FETCH_HISTORY("fetchHistory"),
+        VALIDATE("validate"),
+        EDIT("edit"),
+        RESUME("resume");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private final MetricRegistry metricRegistry;
+    private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+    private final Counter succeeded;
+    private final Counter failed;
+    private final Counter editSkipped;
+    private final Counter unchangedFields;
+
+    public TaskMetrics(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+
+        for (var phase : Phase.values()) {
+            timers.put(phase, metricRegistry.timer(MetricRegistry.name(SetVaultMetadataTask.class, phase.metricName)));
+        }
+
+        succeeded = metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "succeeded"));
+        failed = metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "failures"));
+        editSkipped = metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "edit", "skipped"));
+        unchangedFields = metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "edit", "unchangedFields"));
+    }
+
+    public Timer.Context time(Phase phase) {
+        return timers.get(phase).time();
+    }
+
+    public void succeeded() {
+        succeeded.inc();
+    }
+
+    public void failed(Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        failed.inc();
+        metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "failures", cause.getClass().getSimpleName())).inc();
+    }
+
+    public void editSkipped() {
+        editSkipped.inc();
+    }
+
+    public void unchangedFields(int count) {
+        unchangedFields.inc(count);
+    }
+
+    Timer getTimer(Phase phase) {
+        return timers.get(phase);
+    }
+
+    long getSucceededCount() {
+        return succeeded.getCount();
+    }
+
+    long getFailedCount() {
+        return failed.getCount();
+    }
+
+    long getEditSkippedCount() {
+        return editSkipped.getCount();
+    }
+
+    long getUnchangedFieldsCount() {
+        return unchangedFields.getCount();
+    }
+}
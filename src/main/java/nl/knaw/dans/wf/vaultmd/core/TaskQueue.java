@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.AdmissionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Accepts step invocations and schedules a {@link SetVaultMetadataTask} for each of them. If a {@link TaskJournal} is configured, every invocation is recorded in it
+ * before it is scheduled, and the invocations that were left incomplete the last time the service ran are scheduled again when the queue is started.
+ * <p>
+ * Invocations are only accepted while the number of pending (queued or running) tasks is below the configured high-water mark. Otherwise a
+ * {@link TaskQueueFullException} is thrown, with a retry-after estimate based on the rate at which tasks have been completing. While the circuit breaker for
+ * Dataverse is open, no invocations are accepted at all, since their tasks would fail immediately; the retry-after is then the time until the breaker lets calls
+ * through again.
+ * <p>
+ * An invocation that is in flight or was completed recently is not scheduled again when Dataverse delivers it a second time.
+ * <p>
+ * Tasks for the same dataset are executed one after the other, in the order in which they were accepted, so that they do not compete for the workflow lock on the
+ * dataset. Tasks for different datasets are executed in parallel.
+ */
+public class TaskQueue implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(TaskQueue.class);
+
+    /**
+     * The outcome of submitting one invocation of a batch.
+     */
+    public enum Submission {
+        /**
+         * A task was scheduled.
+         */
+        ACCEPTED,
+        /**
+         * The invocation is already in flight or was completed recently.
+         */
+        DUPLICATE,
+        /**
+         * The invocation did not fit in the queue, or the executor rejected it; it may be submitted again later.
+         */
+        REJECTED
+    }
+
+    private final KeyedExecutor executor;
+    private final TaskContext context;
+    private final TaskJournal taskJournal;
+    private final AdmissionConfig admissionConfig;
+    private final InvocationDeduplicator deduplicator;
+    private final CircuitBreaker circuitBreaker;
+    private final TaskListener taskListener;
+    private final TaskMetrics taskMetrics;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    // the slots taken by admitted invocations, from admission until their task is done or could not be scheduled
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Meter completed = new Meter();
+    private final Meter rejected = new Meter();
+
+    /**
+     * The number of queued, running and pending tasks, the tasks waiting for an earlier task for the same dataset, and the completed and rejected tasks are
+     * registered in the metric registry under the name of this class.
+     *
+     * @param executor        the executor that orders the tasks per dataset; rollbacks for the datasets are ordered with the tasks by the same executor
+     * @param context         the services used by the tasks
+     * @param circuitBreaker  the circuit breaker for the calls to Dataverse, or {@code null} if there is none
+     * @param taskJournal     the journal to record the invocations in, or {@code null} if invocations are not journaled
+     * @param rollbackJournal the journal in which the tasks record the vault metadata of the draft before they edit it, or {@code null} if rollbacks are not
+     *                        supported
+     */
+    public TaskQueue(KeyedExecutor executor, TaskContext context, AdmissionConfig admissionConfig, CircuitBreaker circuitBreaker, InvocationDeduplicator deduplicator,
+        TaskJournal taskJournal, RollbackJournal rollbackJournal, MetricRegistry metricRegistry) {
+        this.executor = executor;
+        this.context = context;
+        this.taskJournal = taskJournal;
+        this.admissionConfig = admissionConfig;
+        this.deduplicator = deduplicator;
+        this.circuitBreaker = circuitBreaker;
+
+        var listeners = new ArrayList<TaskListener>();
+        listeners.add(deduplicator);
+        if (taskJournal != null) {
+            listeners.add(taskJournal);
+        }
+        if (rollbackJournal != null) {
+            listeners.add(rollbackJournal);
+        }
+        this.taskListener = TaskListener.of(listeners);
+        this.taskMetrics = new TaskMetrics(metricRegistry);
+
+        metricRegistry.register(MetricRegistry.name(TaskQueue.class, "queued"), (Gauge<Integer>) this::getQueuedCount);
+        metricRegistry.register(MetricRegistry.name(TaskQueue.class, "running"), (Gauge<Integer>) this::getRunningCount);
+        metricRegistry.register(MetricRegistry.name(TaskQueue.class, "pending"), (Gauge<Integer>) this::getPendingCount);
+        metricRegistry.register(MetricRegistry.name(TaskQueue.class, "waitingForDataset"), (Gauge<Integer>) this.executor::getWaitingCount);
+        metricRegistry.register(MetricRegistry.name(TaskQueue.class, "completed"), completed);
+        metricRegistry.register(MetricRegistry.name(TaskQueue.class, "rejected"), rejected);
+    }
+
+    @Override
+    public void start() {
+        if (taskJournal == null || taskJournal.getIncompleteInvocations().isEmpty()) {
+            return;
+        }
+
+        // replay in the background, so that startup is not blocked while the queue is full
+        var replay = new Thread(this::replayIncompleteInvocations, "task-journal-replay");
+        replay.setDaemon(true);
+        replay.start();
+    }
+
+    private void replayIncompleteInvocations() {
+        for (var stepInvocation : taskJournal.getIncompleteInvocations()) {
+            log.info("Replaying incomplete invocation from task journal: {}", stepInvocation);
+
+            while (true) {
+                try {
+                    // a retry finds the invocation registered already
+                    register(stepInvocation);
+                    checkAdmission();
+                    schedule(stepInvocation);
+                    break;
+                }
+                catch (TaskQueueFullException e) {
+                    try {
+                        Thread.sleep(e.getRetryAfterSeconds() * 1000);
+                    }
+                    catch (InterruptedException ie) {
+                        log.warn("Replay of task journal interrupted");
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules a task for the invocation, unless the same invocation is already in flight or was completed recently.
+     *
+     * @param stepInvocation the invocation
+     * @return true if a task was scheduled, false if the invocation is a duplicate
+     * @throws IOException            if the invocation could not be recorded in the task journal
+     * @throws TaskQueueFullException if too many tasks are pending
+     */
+    public boolean submit(StepInvocation stepInvocation) throws IOException {
+        if (!register(stepInvocation)) {
+            log.info("Invocation {} is already in flight or was completed recently, ignoring duplicate", stepInvocation.getInvocationId());
+            return false;
+        }
+
+        try {
+            checkAdmission();
+        }
+        catch (RuntimeException e) {
+            deduplicator.unregister(stepInvocation.getInvocationId());
+            throw e;
+        }
+
+        try {
+            if (taskJournal != null) {
+                taskJournal.accepted(stepInvocation);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            release(1);
+            deduplicator.unregister(stepInvocation.getInvocationId());
+            throw e;
+        }
+
+        try {
+            schedule(stepInvocation);
+        }
+        catch (TaskQueueFullException e) {
+            deduplicator.unregister(stepInvocation.getInvocationId());
+            if (taskJournal != null) {
+                taskJournal.onFailed(stepInvocation, e);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Schedules tasks for a batch of invocations. Duplicates are filtered out first; then one admission decision is made for the whole batch: as many invocations
+     * as fit below the high-water mark are accepted, in order, and the rest are rejected. The accepted invocations are recorded in the task journal together.
+     *
+     * @param stepInvocations the invocations
+     * @return the outcome for each invocation, in the same order
+     * @throws IOException            if the invocations could not be recorded in the task journal; none of them is scheduled then
+     * @throws TaskQueueFullException if the queue is full, so that none of the invocations can be accepted
+     */
+    public List<Submission> submitAll(List<StepInvocation> stepInvocations) throws IOException {
+        var results = new ArrayList<Submission>(Collections.nCopies(stepInvocations.size(), Submission.DUPLICATE));
+        var fresh = new ArrayList<Integer>(stepInvocations.size());
+
+        for (var i = 0; i < stepInvocations.size(); ++i) {
+            try {
+                if (register(stepInvocations.get(i))) {
+                    fresh.add(i);
+                }
+            }
+            catch (TaskQueueFullException e) {
+                log.warn("Invocation {} of batch rejected: {}", stepInvocations.get(i).getInvocationId(), e.getMessage());
+                results.set(i, Submission.REJECTED);
+            }
+        }
+
+        if (fresh.isEmpty()) {
+            return results;
+        }
+
+        try {
+            checkDataverseAvailable(fresh.size());
+        }
+        catch (TaskQueueFullException e) {
+            fresh.forEach(i -> deduplicator.unregister(stepInvocations.get(i).getInvocationId()));
+            throw e;
+        }
+
+        var reserved = reserve(fresh.size());
+
+        if (reserved == 0) {
+            fresh.forEach(i -> deduplicator.unregister(stepInvocations.get(i).getInvocationId()));
+            rejected.mark(fresh.size());
+            var current = getPendingCount();
+            throw new TaskQueueFullException(String.format("Too many pending tasks (%d)", current), getRetryAfterSeconds(current), false);
+        }
+
+        var admitted = fresh.subList(0, reserved);
+        var excess = fresh.subList(admitted.size(), fresh.size());
+
+        for (var i : excess) {
+            deduplicator.unregister(stepInvocations.get(i).getInvocationId());
+            results.set(i, Submission.REJECTED);
+        }
+        rejected.mark(excess.size());
+
+        var admittedInvocations = admitted.stream().map(stepInvocations::get).collect(Collectors.toList());
+
+        if (taskJournal != null) {
+            try {
+                taskJournal.acceptedAll(admittedInvocations);
+            }
+            catch (IOException | RuntimeException e) {
+                release(reserved);
+                admittedInvocations.forEach(inv -> deduplicator.unregister(inv.getInvocationId()));
+                throw e;
+            }
+        }
+
+        for (var i : admitted) {
+            var stepInvocation = stepInvocations.get(i);
+
+            try {
+                schedule(stepInvocation);
+                results.set(i, Submission.ACCEPTED);
+            }
+            catch (TaskQueueFullException e) {
+                log.warn("Invocation {} of batch rejected: {}", stepInvocation.getInvocationId(), e.getMessage());
+                deduplicator.unregister(stepInvocation.getInvocationId());
+                if (taskJournal != null) {
+                    taskJournal.onFailed(stepInvocation, e);
+                }
+                results.set(i, Submission.REJECTED);
+            }
+        }
+
+        log.info("Batch of {} invocation(s): {} accepted, {} duplicate(s), {} rejected", stepInvocations.size(),
+            Collections.frequency(results, Submission.ACCEPTED), Collections.frequency(results, Submission.DUPLICATE),
+            Collections.frequency(results, Submission.REJECTED));
+        return results;
+    }
+
+    /**
+     * Registers the invocation with the deduplicator.
+     *
+     * @return true if the invocation is new, false if it is a duplicate
+     * @throws TaskQueueFullException if the deduplicator is full of in-flight invocations
+     */
+    private boolean register(StepInvocation stepInvocation) {
+        try {
+            return deduplicator.register(stepInvocation.getInvocationId());
+        }
+        catch (IllegalStateException e) {
+            rejected.mark();
+            throw new TaskQueueFullException(e.getMessage(), getRetryAfterSeconds(), false);
+        }
+    }
+
+    /**
+     * Takes a pending slot for one invocation; the caller must pass the invocation to {@link #schedule}, or give the slot back with {@link #release}.
+     */
+    private void checkAdmission() {
+        checkDataverseAvailable(1);
+
+        if (reserve(1) == 0) {
+            rejected.mark();
+            var current = getPendingCount();
+            throw new TaskQueueFullException(String.format("Too many pending tasks (%d)", current), getRetryAfterSeconds(current), false);
+        }
+    }
+
+    /**
+     * Takes up to the requested number of pending slots at once, so that concurrent submissions and the replay of the journal cannot together exceed the
+     * high-water mark.
+     *
+     * @return the number of slots taken, 0 if the queue is full
+     */
+    private int reserve(int requested) {
+        while (true) {
+            var current = pending.get();
+            var granted = Math.min(requested, admissionConfig.getMaxPendingTasks() - current);
+
+            if (granted <= 0) {
+                return 0;
+            }
+            if (pending.compareAndSet(current, current + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    private void release(int slots) {
+        pending.addAndGet(-slots);
+    }
+
+    private void checkDataverseAvailable(int invocations) {
+        if (circuitBreaker != null && circuitBreaker.isRefusingCalls()) {
+            rejected.mark(invocations);
+            var retryAfter = Math.max(admissionConfig.getMinRetryAfter().toSeconds(), (long) Math.ceil(circuitBreaker.getRemainingOpenMillis() / 1000.0));
+            throw new TaskQueueFullException("Dataverse is unavailable: the circuit breaker is open", retryAfter, true);
+        }
+    }
+
+    /**
+     * Schedules the task of an invocation that holds a pending slot; the slot is released when the task is done or could not be scheduled.
+     */
+    private void schedule(StepInvocation stepInvocation) {
+        var task = createTask(stepInvocation);
+        queued.incrementAndGet();
+
+        try {
+            // a task holds its dataset, and counts as running, until its workflow has been resumed
+            executor.executeAsync(stepInvocation.getGlobalId(), () -> {
+                queued.decrementAndGet();
+                running.incrementAndGet();
+
+                CompletableFuture<Void> done;
+                try {
+                    done = task.start();
+                }
+                catch (RuntimeException e) {
+                    done = CompletableFuture.failedFuture(e);
+                }
+                return done.whenComplete((v, e) -> {
+                    running.decrementAndGet();
+                    release(1);
+                    completed.mark();
+                });
+            });
+        }
+        catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            release(1);
+            rejected.mark();
+            throw new TaskQueueFullException("Task executor rejected the task: " + e.getMessage(), getRetryAfterSeconds(getPendingCount()), true);
+        }
+    }
+
+    /**
+     * Estimates how long it takes before the number of pending tasks drops below the high-water mark, based on the observed rate at which tasks complete.
+     */
+    long getRetryAfterSeconds(int pending) {
+        var min = admissionConfig.getMinRetryAfter().toSeconds();
+        var max = admissionConfig.getMaxRetryAfter().toSeconds();
+        var drainRate = completed.getOneMinuteRate() > 0 ? completed.getOneMinuteRate() : completed.getMeanRate();
+
+        if (drainRate <= 0) {
+            return max;
+        }
+
+        var excess = pending - admissionConfig.getMaxPendingTasks() + 1;
+        var estimate = (long) Math.ceil(excess / drainRate);
+        return Math.max(min, Math.min(max, estimate));
+    }
+
+    /**
+     * @return the current estimate of how long a client should wait before submitting invocations that were rejected
+     */
+    public long getRetryAfterSeconds() {
+        return getRetryAfterSeconds(getPendingCount());
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    /**
+     * @return the number of admitted invocations whose task is not done yet, including those that are being recorded in the journal
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.getCount();
+    }
+
+    SetVaultMetadataTask createTask(StepInvocation stepInvocation) {
+        if (context.getAsyncDataverseService() != null) {
+            return new AsyncSetVaultMetadataTask(stepInvocation, context, taskListener, taskMetrics);
+        }
+        return new SetVaultMetadataTask(stepInvocation, context, taskListener, taskMetrics);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+/**
+ * Thrown when an invocation is not accepted because too many tasks are pending, or because Dataverse is unavailable.
+ */
+public class TaskQueueFullException extends RuntimeException {
+    private final long retryAfterSeconds;
+    private final boolean rejectedByExecutor;
+
+    public TaskQueueFullException(String message, long retryAfterSeconds, boolean rejectedByExecutor) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.rejectedByExecutor = rejectedByExecutor;
+    }
+
+    /**
+     * @return the number of seconds after which the invocation is expected to be accepted
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return true if the executor itself rejected the task or Dataverse is unavailable, false if it was refused because the high-water mark was reached
+     */
+    public boolean isRejectedByExecutor() {
+        return rejectedByExecutor;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataBlock;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataField;
+import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_BAG_ID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_DATAVERSE_PID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_NBN;
+
+/**
+ * The values of the four vault metadata fields of a dataset version or a field list, indexed once into a fixed slot per field, so that looking up a field does
+ * not scan the list of fields. Fields with other type names are ignored. A value that is missing or empty is returned as {@code null}.
+ */
+public final class VaultFields {
+    private static final String VAULT_METADATA_BLOCK = "dansDataVaultMetadata";
+
+    private static final int PID = 0;
+    private static final int PID_VERSION = 1;
+    private static final int BAG_ID = 2;
+    private static final int NBN = 3;
+
+    private final String[] values = new String[4];
+
+    private VaultFields() {
+    }
+
+    /**
+     * Indexes the vault metadata block of the version. As before, the first primitive field with a given type name determines the value, even if it is empty.
+     *
+     * @param datasetVersion the dataset version
+     * @return the indexed fields; all values are {@code null} if the version has no vault metadata block
+     */
+    public static VaultFields of(DatasetVersion datasetVersion) {
+        var result = new VaultFields();
+        var blocks = datasetVersion.getMetadataBlocks();
+        MetadataBlock block = blocks == null ? null : blocks.get(VAULT_METADATA_BLOCK);
+
+        if (block != null && block.getFields() != null) {
+            result.index(block.getFields(), false);
+        }
+        return result;
+    }
+
+    /**
+     * Indexes a field list. The first primitive field with a given type name and a non-blank value determines the value.
+     *
+     * @param fieldList the field list
+     * @return the indexed fields
+     */
+    public static VaultFields of(FieldList fieldList) {
+        var result = new VaultFields();
+        result.index(fieldList.getFields(), true);
+        return result;
+    }
+
+    /**
+     * @param values the values by type name, as returned by {@link #toMap()}
+     * @return the fields with these values; other type names are ignored
+     */
+    public static VaultFields of(Map<String, String> values) {
+        var result = new VaultFields();
+        values.forEach((typeName, value) -> {
+            var slot = slotOf(typeName);
+            if (slot >= 0) {
+                result.values[slot] = StringUtils.isEmpty(value) ? null : value;
+            }
+        });
+        return result;
+    }
+
+    private void index(List<MetadataField> fields, boolean skipBlank) {
+        var seen = new boolean[values.length];
+
+        for (var field : fields) {
+            var slot = slotOf(field.getTypeName());
+
+            if (slot < 0 || seen[slot] || !(field instanceof PrimitiveSingleValueField)) {
+                continue;
+            }
+
+            var value = ((PrimitiveSingleValueField) field).getValue();
+
+            if (skipBlank && StringUtils.isBlank(value)) {
+                continue;
+            }
+
+            seen[slot] = true;
+            values[slot] = StringUtils.isEmpty(value) ? null : value;
+        }
+    }
+
+    private static int slotOf(String typeName) {
+        if (typeName == null) {
+            return -1;
+        }
+
+        switch (typeName) {
+            case DANS_DATAVERSE_PID:
+                return PID;
+            case DANS_DATAVERSE_PID_VERSION:
+                return PID_VERSION;
+            case DANS_BAG_ID:
+                return BAG_ID;
+            case DANS_NBN:
+                return NBN;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @param typeName one of the vault metadata type names
+     * @return the value, or {@code null} if it is missing or empty, or if the type name is not a vault metadata field
+     */
+    public String get(String typeName) {
+        var slot = slotOf(typeName);
+        return slot < 0 ? null : values[slot];
+    }
+
+    /**
+     * @return the values that are present, by type name
+     */
+    public Map<String, String> toMap() {
+        var result = new LinkedHashMap<String, String>();
+        for (var typeName : List.of(DANS_DATAVERSE_PID, DANS_DATAVERSE_PID_VERSION, DANS_BAG_ID, DANS_NBN)) {
+            var value = get(typeName);
+            if (value != null) {
+                result.put(typeName, value);
+            }
+        }
+        return result;
+    }
+
+    public String getDataversePid() {
+        return values[PID];
+    }
+
+    public String getDataversePidVersion() {
+        return values[PID_VERSION];
+    }
+
+    public String getBagId() {
+        return values[BAG_ID];
+    }
+
+    public String getNbn() {
+        return values[NBN];
+    }
+}
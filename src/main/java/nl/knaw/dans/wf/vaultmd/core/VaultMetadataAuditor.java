@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the vault metadata of the released and deaccessioned versions of a dataset. Every version is validated as {@link SetVaultMetadataTask} would have
+ * validated it when it was published, that is, against the versions before it.
+ */
+public class VaultMetadataAuditor {
+    private static final Logger log = LoggerFactory.getLogger(VaultMetadataAuditor.class);
+    private static final Set<String> PUBLISHED_STATES = Set.of("RELEASED", "DEACCESSIONED");
+
+    private final VersionHistorySource historySource;
+    private final VaultMetadataValidator validator;
+    private final VersionComparator versionComparator = new VersionComparator();
+
+    public VaultMetadataAuditor(VersionHistorySource historySource, IdValidator idValidator) {
+        this.historySource = historySource;
+        this.validator = new VaultMetadataValidator(idValidator);
+    }
+
+    /**
+     * Audits one dataset. Never throws; failures to read or check the dataset are reported as {@link AuditResult.Status#ERROR}.
+     *
+     * @param globalId the persistent identifier of the dataset
+     * @return the result
+     */
+    public AuditResult audit(String globalId) {
+        var checked = 0;
+        String current = null;
+
+        try {
+            var versions = historySource.getVersions(globalId, null).stream()
+                .filter(v -> PUBLISHED_STATES.contains(v.getVersionState()))
+                .sorted(versionComparator)
+                .collect(Collectors.toList());
+
+            // the versions before the current one; each version is added once it has been checked
+            var previous = new VersionHistory(List.of());
+
+            for (var version : versions) {
+                current = version.getVersionNumber() + "." + version.getVersionMinorNumber();
+                validator.validate(version.getVersionNumber(), version.getVersionMinorNumber(), VaultFields.of(version), previous, Optional.empty());
+                checked++;
+                previous.add(version);
+            }
+
+            return new AuditResult(globalId, AuditResult.Status.VALID, checked, null, null);
+        }
+        catch (IllegalArgumentException | IllegalStateException e) {
+            log.debug("Version {} of {} is invalid: {}", current, globalId, e.getMessage());
+            return new AuditResult(globalId, AuditResult.Status.INVALID, checked, current, e.getMessage());
+        }
+        catch (IOException | DataverseException e) {
+            log.warn("Could not get versions of {}", globalId, e);
+            return new AuditResult(globalId, AuditResult.Status.ERROR, checked, null, e.getMessage());
+        }
+        catch (RuntimeException e) {
+            // e.g. a version without a version number; reported for this dataset only, so that the rest of the audit continues
+            log.warn("Could not check version {} of {}", current, globalId, e);
+            return new AuditResult(globalId, AuditResult.Status.ERROR, checked, current, String.valueOf(e));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataBlock;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataField;
+import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Retrieves the version history of a dataset, keeping only the version number, the version state and the fields of the vault metadata block. The file listings
+ * are excluded from the response; the response is processed as a stream, so that the other metadata blocks, and the file listings of Dataverse versions that
+ * do not support excluding them, are skipped without ever being deserialized.
+ */
+public class VaultMetadataHistoryClient implements VersionHistorySource {
+    private static final Logger log = LoggerFactory.getLogger(VaultMetadataHistoryClient.class);
+    static final String VAULT_METADATA_BLOCK = "dansDataVaultMetadata";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final CloseableHttpClient httpClient;
+    private final URI baseUrl;
+    private final String apiKey;
+
+    public VaultMetadataHistoryClient(CloseableHttpClient httpClient, URI baseUrl, String apiKey) {
+        this.httpClient = httpClient;
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Gets all versions of a dataset, in the order returned by Dataverse. Only the version number, the version state and the primitive single value fields of the
+     * vault metadata block are filled in.
+     *
+     * @param globalId     the persistent identifier of the dataset
+     * @param invocationId the workflow invocation id, used to get access to the dataset
+     * @return the projected dataset versions
+     * @throws DataverseException if Dataverse returns an error status
+     * @throws IOException        if the request fails or the response cannot be parsed
+     */
+    @Override
+    public List<DatasetVersion> getVersions(String globalId, String invocationId) throws DataverseException, IOException {
+        return fetchVersions(globalId, createVersionsUri(globalId, invocationId));
+    }
+
+    /**
+     * Gets a page of the versions of a dataset, newest first. Requires a Dataverse version that supports paging of the version list.
+     *
+     * @param globalId     the persistent identifier of the dataset
+     * @param invocationId the workflow invocation id, used to get access to the dataset
+     * @param offset       the number of versions to skip
+     * @param limit        the maximum number of versions to return
+     * @return the projected dataset versions
+     * @throws DataverseException if Dataverse returns an error status
+     * @throws IOException        if the request fails or the response cannot be parsed
+     */
+    public List<DatasetVersion> getVersions(String globalId, String invocationId, int offset, int limit) throws DataverseException, IOException {
+        var uri = createVersionsUri(globalId, invocationId);
+        return fetchVersions(globalId, URI.create(uri + "&offset=" + offset + "&limit=" + limit));
+    }
+
+    private List<DatasetVersion> fetchVersions(String globalId, URI uri) throws DataverseException, IOException {
+        var request = new HttpGet(uri);
+
+        if (StringUtils.isNotBlank(apiKey)) {
+            request.addHeader("X-Dataverse-key", apiKey);
+        }
+
+        log.trace("Fetching projected version history for dataset {}", globalId);
+
+        try {
+            return httpClient.execute(request, response -> {
+                if (response.getCode() != HttpStatus.SC_OK) {
+                    throw new HttpResponseException(response.getCode(), response.getReasonPhrase());
+                }
+
+                try (var content = response.getEntity().getContent()) {
+                    return readVersions(content);
+                }
+            });
+        }
+        catch (HttpResponseException e) {
+            throw new DataverseException(e.getStatusCode(), String.format("Could not get versions of dataset %s: %s", globalId, e.getMessage()));
+        }
+    }
+
+    URI createVersionsUri(String globalId, String invocationId) {
+        var query = "persistentId=" + URLEncoder.encode(globalId, StandardCharsets.UTF_8) + "&excludeFiles=true";
+
+        if (invocationId != null) {
+            query += "&invocationID=" + URLEncoder.encode(invocationId, StandardCharsets.UTF_8);
+        }
+
+        return baseUrl.resolve("api/datasets/:persistentId/versions?" + query);
+    }
+
+    static List<DatasetVersion> readVersions(InputStream inputStream) throws IOException {
+        var result = new ArrayList<DatasetVersion>();
+
+        try (var parser = jsonFactory.createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.getCurrentName();
+                var token = parser.nextToken();
+
+                if ("data".equals(name)) {
+                    expect(parser, token, JsonToken.START_ARRAY);
+
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        result.add(readVersion(parser));
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static DatasetVersion readVersion(JsonParser parser) throws IOException {
+        var version = new DatasetVersion();
+        var blocks = new HashMap<String, MetadataBlock>();
+        version.setMetadataBlocks(blocks);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.getCurrentName();
+            var token = parser.nextToken();
+
+            switch (name) {
+                case "versionNumber":
+                    version.setVersionNumber(parser.getIntValue());
+                    break;
+                case "versionMinorNumber":
+                    version.setVersionMinorNumber(parser.getIntValue());
+                    break;
+                case "versionState":
+                    version.setVersionState(parser.getText());
+                    break;
+                case "metadataBlocks":
+                    expect(parser, token, JsonToken.START_OBJECT);
+                    readMetadataBlocks(parser, blocks);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        return version;
+    }
+
+    private static void readMetadataBlocks(JsonParser parser, HashMap<String, MetadataBlock> blocks) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.getCurrentName();
+            var token = parser.nextToken();
+
+            if (VAULT_METADATA_BLOCK.equals(name)) {
+                expect(parser, token, JsonToken.START_OBJECT);
+                blocks.put(VAULT_METADATA_BLOCK, readVaultMetadataBlock(parser));
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static MetadataBlock readVaultMetadataBlock(JsonParser parser) throws IOException {
+        var fields = new ArrayList<MetadataField>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.getCurrentName();
+            var token = parser.nextToken();
+
+            if ("fields".equals(name)) {
+                expect(parser, token, JsonToken.START_ARRAY);
+
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    var field = readPrimitiveSingleValueField(parser);
+
+                    if (field != null) {
+                        fields.add(field);
+                    }
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+
+        var block = new MetadataBlock();
+        block.setFields(fields);
+        return block;
+    }
+
+    private static PrimitiveSingleValueField readPrimitiveSingleValueField(JsonParser parser) throws IOException {
+        String typeName = null;
+        String value = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.getCurrentName();
+            var token = parser.nextToken();
+
+            if ("typeName".equals(name)) {
+                typeName = parser.getText();
+            }
+            else if ("value".equals(name) && token == JsonToken.VALUE_STRING) {
+                value = parser.getText();
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+
+        // compound and multi-value fields are not used in the vault metadata block
+        if (typeName == null || value == null) {
+            return null;
+        }
+
+        return new PrimitiveSingleValueField(typeName, value);
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, String.format("Expected %s but found %s", expected, actual));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_BAG_ID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_DATAVERSE_PID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_NBN;
+
+/**
+ * The rules that the vault metadata of a dataset version must satisfy. They are applied to new versions by {@link SetVaultMetadataTask} and to existing versions
+ * by {@link VaultMetadataAuditor}.
+ */
+public class VaultMetadataValidator {
+    private static final Logger log = LoggerFactory.getLogger(VaultMetadataValidator.class);
+
+    private final IdValidator idValidator;
+
+    public VaultMetadataValidator(IdValidator idValidator) {
+        this.idValidator = idValidator;
+    }
+
+    /**
+     * //@formatter:off
+     * For versions > 1.0:
+     *  - there MUST exist a previous released or deaccessioned version.
+     *  - dansDataversePid, dansDataversePidVersion, dansBagId and dansNbn MUST always be filled in.
+     *  - dansDataversePid and dansNbn must each have the same value for all versions
+     * dansNbn must be an urn:nbn
+     * dansBagId must be an urn:uuid
+     *
+     * @param majorVersion   the major version number of the version to validate
+     * @param minorVersion   the minor version number of the version to validate
+     * @param fields         the vault metadata of the version to validate
+     * @param versionHistory the released or deaccessioned versions of the dataset before this version
+     * @param registeredNbn  the NBN registered for the dataset, if any
+     * @throws IllegalArgumentException when a validation error occurred
+     * //@formatter:on
+     */
+    public void validate(int majorVersion, int minorVersion, VaultFields fields, VersionHistory versionHistory, Optional<String> registeredNbn) {
+        var bagId = getRequiredValue(fields, DANS_BAG_ID);
+        var nbn = getRequiredValue(fields, DANS_NBN);
+
+        log.debug("Validating bagId '{}' to be valid urn:uuid", bagId);
+        if (!idValidator.isValidUrnUuid(bagId)) {
+            throw new IllegalArgumentException(String.format("'%s' is not a valid urn:uuid", bagId));
+        }
+
+        log.debug("Validating nbn '{}' to be valid urn:nbn", nbn);
+        if (!idValidator.isValidUrnNbn(nbn)) {
+            throw new IllegalArgumentException(String.format("'%s' is not a valid urn:nbn", nbn));
+        }
+
+        // anything greater than 1.0
+        if (majorVersion > 1 || (majorVersion == 1 && minorVersion > 0)) {
+            var pidVersion = getRequiredValue(fields, DANS_DATAVERSE_PID_VERSION);
+            log.trace("Found '{}' property with value '{}'", DANS_DATAVERSE_PID_VERSION, pidVersion);
+            var pid = getRequiredValue(fields, DANS_DATAVERSE_PID);
+            log.trace("Found '{}' property with value '{}'", DANS_DATAVERSE_PID, pid);
+
+            // if there are no previous versions, it failed to validate
+            if (versionHistory.isEmpty()) {
+                throw new IllegalArgumentException(String.format(
+                    "Version %s.%s is greater than 1.0, but no previous version found", majorVersion, minorVersion
+                ));
+            }
+
+            // the NBN registered for the dataset was issued for its first version; the versions are still checked below
+            if (registeredNbn.isPresent() && !StringUtils.equals(nbn, registeredNbn.get())) {
+                throw new IllegalStateException(String.format(
+                    "Mismatch in '%s' property, expected registered value '%s', but instead found '%s'", DANS_NBN, registeredNbn.get(), nbn
+                ));
+            }
+
+            // now ensure pid and nbn are the same for each version
+            var versions = versionHistory.getVersions();
+            var versionFields = versionHistory.getVaultFields();
+
+            for (var i = 0; i < versions.size(); ++i) {
+                var version = versions.get(i);
+                var otherPid = versionFields.get(i).getDataversePid();
+
+                if (otherPid == null) {
+                    throw new IllegalStateException(String.format(
+                        "Released or deaccessioned version found without '%s' property (version %s.%s)",
+                        DANS_DATAVERSE_PID, version.getVersionNumber(), version.getVersionMinorNumber()
+                    ));
+                }
+
+                var otherNbn = versionFields.get(i).getNbn();
+
+                if (otherNbn == null) {
+                    throw new IllegalStateException(String.format(
+                        "Released or deaccessioned version found without '%s' property (version %s.%s)",
+                        DANS_NBN, version.getVersionNumber(), version.getVersionMinorNumber()
+                    ));
+                }
+
+                if (!StringUtils.equals(pid, otherPid)) {
+                    throw new IllegalStateException(String.format(
+                        "Mismatch in '%s' property, expected '%s' in version %s.%s, but instead found '%s'",
+                        DANS_DATAVERSE_PID, pid, version.getVersionNumber(), version.getVersionMinorNumber(), otherPid
+                    ));
+                }
+
+                if (!StringUtils.equals(nbn, otherNbn)) {
+                    throw new IllegalStateException(String.format(
+                        "Mismatch in '%s' property, expected '%s' in version %s.%s, but instead found '%s'",
+                        DANS_NBN, pid, version.getVersionNumber(), version.getVersionMinorNumber(), otherPid
+                    ));
+                }
+            }
+        }
+    }
+
+    private String getRequiredValue(VaultFields fields, String key) {
+        var value = fields.get(key);
+
+        if (value == null) {
+            throw new IllegalArgumentException(String.format("'%s' missing from metadata", key));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.RandomAccess;
+
+/**
+ * Snapshot of the released and deaccessioned versions of a dataset. It is fetched once per task and shared between the phase that generates the vault metadata and the
+ * phase that validates it, so that the version history is only downloaded from Dataverse once per invocation. The vault metadata fields of every version are extracted
+ * once, when the snapshot is created, and the versions are indexed by their (major, minor) version number.
+ */
+public class VersionHistory {
+    // stored oldest first, so that the index positions stay stable; exposed newest first through the descending views
+    private final List<DatasetVersion> ascendingVersions = new ArrayList<>();
+    private final List<VaultFields> ascendingVaultFields = new ArrayList<>();
+    private final Map<Long, Integer> positionByVersionNumber = new HashMap<>();
+    private final List<DatasetVersion> versions = new DescendingList<>(ascendingVersions);
+    private final List<VaultFields> vaultFields = new DescendingList<>(ascendingVaultFields);
+
+    /**
+     * @param versions the released or deaccessioned versions, in descending order
+     */
+    public VersionHistory(Collection<DatasetVersion> versions) {
+        var descending = new ArrayList<>(versions);
+        for (var i = descending.size() - 1; i >= 0; --i) {
+            add(descending.get(i));
+        }
+    }
+
+    public static VersionHistory fetch(DataverseService dataverseService, StepInvocation stepInvocation) throws IOException, DataverseException {
+        return new VersionHistory(dataverseService.getVaultMetadataHistory(stepInvocation));
+    }
+
+    /**
+     * @return all versions in descending order
+     */
+    public List<DatasetVersion> getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return the vault metadata fields of all versions, in the same order as {@link #getVersions()}
+     */
+    public List<VaultFields> getVaultFields() {
+        return vaultFields;
+    }
+
+    /**
+     * @param majorVersion the major version number
+     * @param minorVersion the minor version number
+     * @return the version with the given number, if it is in the history
+     */
+    public Optional<DatasetVersion> getVersion(int majorVersion, int minorVersion) {
+        return Optional.ofNullable(positionByVersionNumber.get(key(majorVersion, minorVersion))).map(ascendingVersions::get);
+    }
+
+    /**
+     * @param majorVersion the major version number
+     * @param minorVersion the minor version number
+     * @return the vault metadata fields of the version with the given number, if it is in the history
+     */
+    public Optional<VaultFields> getVaultFields(int majorVersion, int minorVersion) {
+        return Optional.ofNullable(positionByVersionNumber.get(key(majorVersion, minorVersion))).map(ascendingVaultFields::get);
+    }
+
+    public Optional<DatasetVersion> getLatestVersion() {
+        return versions.stream().findFirst();
+    }
+
+    public boolean isEmpty() {
+        return versions.isEmpty();
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    /**
+     * Adds a version that is newer than all versions in the history, so that a history can be built up one version at a time.
+     *
+     * @param version the released or deaccessioned version
+     */
+    void add(DatasetVersion version) {
+        positionByVersionNumber.put(key(version.getVersionNumber(), version.getVersionMinorNumber()), ascendingVersions.size());
+        ascendingVersions.add(version);
+        ascendingVaultFields.add(VaultFields.of(version));
+    }
+
+    private static long key(int majorVersion, int minorVersion) {
+        return ((long) majorVersion << 32) | (minorVersion & 0xffffffffL);
+    }
+
+    private static class DescendingList<T> extends AbstractList<T> implements RandomAccess {
+        private final List<T> ascending;
+
+        DescendingList(List<T> ascending) {
+            this.ascending = ascending;
+        }
+
+        @Override
+        public T get(int index) {
+            return ascending.get(ascending.size() - 1 - index);
+        }
+
+        @Override
+        public int size() {
+            return ascending.size();
+        }
+    }
+}
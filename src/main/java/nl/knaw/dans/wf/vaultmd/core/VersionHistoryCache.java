@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataBlock;
+import nl.knaw.dans.lib.dataverse.model.dataset.MetadataField;
+import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the version numbers, states and vault metadata fields of the released and deaccessioned versions of datasets, so that only the versions that were published since the last invocation for a dataset
+ * have to be fetched from Dataverse.
+ * <p>
+ * On a hit, the versions are fetched page by page, newest first, until the highest cached version is found; the versions above it are added to the cache. If the
+ * highest cached version has changed state, which happens when it is deaccessioned, or is no longer present, the entry for the dataset is invalidated and the
+ * complete history is fetched again. Deaccessioning an older version does not change its vault metadata, but it is not detected either; to bound how long such a
+ * state change goes unnoticed, an entry expires after {@code expireAfterMillis}.
+ * <p>
+ * The cache holds at most {@code maxVersions} versions in total; when it is full, the least recently used datasets are evicted. Only the {@link VaultFields} of a
+ * version are kept, not the projected {@link DatasetVersion}; the versions are rebuilt from them when they are returned.
+ * <p>
+ * Fetching the new versions page by page requires a Dataverse version that supports paging of the version list.
+ */
+public class VersionHistoryCache implements VersionHistorySource {
+    private static final Logger log = LoggerFactory.getLogger(VersionHistoryCache.class);
+    private static final Set<String> PUBLISHED_STATES = Set.of("RELEASED", "DEACCESSIONED");
+
+    private final VaultMetadataHistoryClient client;
+    private final int maxVersions;
+    private final int pageSize;
+    private final long expireAfterMillis;
+    private final LongSupplier clock;
+    private final VersionComparator versionComparator = new VersionComparator();
+
+    // access ordered, so that the least recently used dataset is at the head
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedVersions;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter invalidations;
+    private final Counter evictions;
+
+    private static class Entry {
+        // released or deaccessioned, newest first
+        private final List<CachedVersion> versions;
+        private final long loadedAt;
+
+        private Entry(List<CachedVersion> versions, long loadedAt) {
+            this.versions = versions;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static class CachedVersion {
+        private final int versionNumber;
+        private final int versionMinorNumber;
+        private final String versionState;
+        private final VaultFields vaultFields;
+
+        private CachedVersion(DatasetVersion version) {
+            this.versionNumber = version.getVersionNumber();
+            this.versionMinorNumber = version.getVersionMinorNumber();
+            this.versionState = version.getVersionState();
+            this.vaultFields = VaultFields.of(version);
+        }
+
+        private DatasetVersion toDatasetVersion() {
+            var fields = new ArrayList<MetadataField>();
+            vaultFields.toMap().forEach((typeName, value) -> fields.add(new PrimitiveSingleValueField(typeName, value)));
+            var block = new MetadataBlock();
+            block.setFields(fields);
+            var blocks = new HashMap<String, MetadataBlock>();
+            blocks.put(VaultMetadataHistoryClient.VAULT_METADATA_BLOCK, block);
+
+            var version = new DatasetVersion();
+            version.setVersionNumber(versionNumber);
+            version.setVersionMinorNumber(versionMinorNumber);
+            version.setVersionState(versionState);
+            version.setMetadataBlocks(blocks);
+            return version;
+        }
+    }
+
+    public VersionHistoryCache(VaultMetadataHistoryClient client, int maxVersions, int pageSize, long expireAfterMillis, MetricRegistry metricRegistry) {
+        this(client, maxVersions, pageSize, expireAfterMillis, metricRegistry, System::currentTimeMillis);
+    }
+
+    VersionHistoryCache(VaultMetadataHistoryClient client, int maxVersions, int pageSize, long expireAfterMillis, MetricRegistry metricRegistry, LongSupplier clock) {
+        this.client = client;
+        this.maxVersions = maxVersions;
+        this.pageSize = pageSize;
+        this.expireAfterMillis = expireAfterMillis;
+        this.clock = clock;
+
+        hits = metricRegistry.counter(MetricRegistry.name(VersionHistoryCache.class, "hits"));
+        misses = metricRegistry.counter(MetricRegistry.name(VersionHistoryCache.class, "misses"));
+        invalidations = metricRegistry.counter(MetricRegistry.name(VersionHistoryCache.class, "invalidations"));
+        evictions = metricRegistry.counter(MetricRegistry.name(VersionHistoryCache.class, "evictions"));
+        metricRegistry.register(MetricRegistry.name(VersionHistoryCache.class, "versions"), (Gauge<Integer>) this::getCachedVersions);
+    }
+
+    @Override
+    public List<DatasetVersion> getVersions(String globalId, String invocationId) throws DataverseException, IOException {
+        var entry = lookup(globalId);
+
+        if (entry == null) {
+            misses.inc();
+            return fetchAll(globalId, invocationId);
+        }
+
+        hits.inc();
+        var highest = entry.versions.get(0).toDatasetVersion();
+        var newVersions = new ArrayList<DatasetVersion>();
+        var offset = 0;
+
+        while (true) {
+            var page = client.getVersions(globalId, invocationId, offset, pageSize);
+
+            for (var version : page) {
+                // the draft comes first and has no version number, so it cannot be compared with the cached versions
+                if (!PUBLISHED_STATES.contains(version.getVersionState())) {
+                    continue;
+                }
+
+                var comparison = versionComparator.compare(version, highest);
+
+                if (comparison > 0) {
+                    newVersions.add(version);
+                }
+                else if (comparison == 0 && Objects.equals(version.getVersionState(), highest.getVersionState())) {
+                    log.debug("Fetched {} new version(s) of {}, {} version(s) from cache", newVersions.size(), globalId, entry.versions.size());
+                    entry.versions.forEach(cached -> newVersions.add(cached.toDatasetVersion()));
+                    store(globalId, newVersions, entry.loadedAt);
+                    return newVersions;
+                }
+                else {
+                    return invalidateAndFetchAll(globalId, invocationId, String.format("version %s.%s changed state or is missing",
+                        highest.getVersionNumber(), highest.getVersionMinorNumber()));
+                }
+            }
+
+            if (page.size() < pageSize) {
+                return invalidateAndFetchAll(globalId, invocationId, String.format("version %s.%s not found",
+                    highest.getVersionNumber(), highest.getVersionMinorNumber()));
+            }
+            offset += pageSize;
+        }
+    }
+
+    private List<DatasetVersion> invalidateAndFetchAll(String globalId, String invocationId, String reason) throws DataverseException, IOException {
+        log.info("Invalidating cached version history of {}: {}", globalId, reason);
+        invalidations.inc();
+        invalidate(globalId);
+        return fetchAll(globalId, invocationId);
+    }
+
+    private List<DatasetVersion> fetchAll(String globalId, String invocationId) throws DataverseException, IOException {
+        var versions = client.getVersions(globalId, invocationId).stream()
+            .filter(v -> PUBLISHED_STATES.contains(v.getVersionState()))
+            .sorted((a, b) -> -1 * versionComparator.compare(a, b))
+            .collect(Collectors.toList());
+
+        store(globalId, versions, clock.getAsLong());
+        return versions;
+    }
+
+    private Entry lookup(String globalId) {
+        synchronized (entries) {
+            var entry = entries.get(globalId);
+
+            if (entry != null && clock.getAsLong() - entry.loadedAt >= expireAfterMillis) {
+                remove(globalId);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private void store(String globalId, List<DatasetVersion> versions, long loadedAt) {
+        synchronized (entries) {
+            remove(globalId);
+
+            // a dataset without published versions is cheap to fetch and would only be replaced at the next invocation
+            if (versions.isEmpty()) {
+                return;
+            }
+
+            entries.put(globalId, new Entry(versions.stream().map(CachedVersion::new).collect(Collectors.toUnmodifiableList()), loadedAt));
+            cachedVersions += versions.size();
+
+            var iterator = entries.entrySet().iterator();
+            while (cachedVersions > maxVersions && iterator.hasNext()) {
+                var eldest = iterator.next();
+                cachedVersions -= eldest.getValue().versions.size();
+                iterator.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Removes the cached versions of a dataset.
+     *
+     * @param globalId the persistent identifier of the dataset
+     */
+    public void invalidate(String globalId) {
+        synchronized (entries) {
+            remove(globalId);
+        }
+    }
+
+    private void remove(String globalId) {
+        var removed = entries.remove(globalId);
+
+        if (removed != null) {
+            cachedVersions -= removed.versions.size();
+        }
+    }
+
+    public int getCachedVersions() {
+        synchronized (entries) {
+            return cachedVersions;
+        }
+    }
+
+    int getCachedDatasets() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of the projected version history of a dataset: the version number, the version state and the fields of the vault metadata block of each version.
+ */
+public interface VersionHistorySource {
+
+    /**
+     * @param globalId     the persistent identifier of the dataset
+     * @param invocationId the workflow invocation id, used to get access to the dataset
+     * @return the projected dataset versions, newest first
+     * @throws DataverseException if Dataverse returns an error status
+     * @throws IOException        if the request fails or the response cannot be parsed
+     */
+    List<DatasetVersion> getVersions(String globalId, String invocationId) throws DataverseException, IOException;
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every task on its own virtual thread. Since the tasks mostly wait for Dataverse, a thread per task is much cheaper than a bounded pool of platform threads,
+ * but the number of tasks that run at the same time is still capped by a semaphore. Tasks that are waiting for a permit do not hold a platform thread. The
+ * executor is shared by all Dataverse instances; the {@link QuotaExecutor} of an instance limits how many of the permits it can use.
+ * <p>
+ * Virtual threads require Java 21. On older JVMs the tasks run on a pool of {@code maxConcurrentTasks} platform threads instead.
+ */
+public class VirtualThreadTaskExecutor implements Executor, Managed {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadTaskExecutor.class);
+
+    private final ExecutorService threadPerTaskExecutor;
+    private final int maxConcurrentTasks;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public VirtualThreadTaskExecutor(int maxConcurrentTasks) {
+        this(createThreadPerTaskExecutor(maxConcurrentTasks), maxConcurrentTasks);
+    }
+
+    VirtualThreadTaskExecutor(ExecutorService threadPerTaskExecutor, int maxConcurrentTasks) {
+        this.threadPerTaskExecutor = threadPerTaskExecutor;
+        this.maxConcurrentTasks = maxConcurrentTasks;
+        this.permits = new Semaphore(maxConcurrentTasks, true);
+    }
+
+    static ExecutorService createThreadPerTaskExecutor(int maxConcurrentTasks) {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21 on
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            log.warn("Virtual threads are not supported by this JVM (Java 21 or higher required). Using a pool of {} platform threads instead.", maxConcurrentTasks);
+            // no more threads than permits, so that waiting tasks queue up instead of each holding a platform thread
+            return Executors.newFixedThreadPool(maxConcurrentTasks);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        threadPerTaskExecutor.execute(() -> {
+            waiting.incrementAndGet();
+            try {
+                permits.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting to run {}", command);
+                return;
+            }
+            finally {
+                waiting.decrementAndGet();
+            }
+
+            try {
+                command.run();
+            }
+            finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * @return the number of tasks that are running
+     */
+    public int getActiveCount() {
+        return maxConcurrentTasks - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of tasks that are waiting for one of the running tasks to finish
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        threadPerTaskExecutor.shutdown();
+
+        if (!threadPerTaskExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Not all tasks finished within 30 seconds after shutdown");
+        }
+    }
+}
@@ -15,34 +15,149 @@
  */
 package nl.knaw.dans.wf.vaultmd.health;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.health.HealthCheck;
+import io.dropwizard.lifecycle.Managed;
 import nl.knaw.dans.lib.dataverse.DataverseClient;
-import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.core.CircuitBreaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
 
-public class DataverseResponsiveCheck extends HealthCheck {
+/**
+ * Reports whether Dataverse is responsive. The root dataverse is probed in the background every {@code intervalMillis}; a health check request only reads the
+ * result of the last probe, so that frequent probes by load balancers and monitoring do not put load on Dataverse or block on its timeouts. Dataverse is reported
+ * as unhealthy if:
+ * <ul>
+ *     <li>the circuit breaker of the calls to Dataverse is open;</li>
+ *     <li>the last probe failed, or is older than {@code maxStalenessMillis};</li>
+ *     <li>less than {@code minTrafficSuccessRate} of the recent calls made by the tasks succeeded.</li>
+ * </ul>
+ * The latency of the probes, in milliseconds, is recorded in the histogram {@code nl.knaw.dans.wf.vaultmd.health.DataverseResponsiveCheck.latency}.
+ */
+public class DataverseResponsiveCheck extends HealthCheck implements Managed {
     private static final Logger log = LoggerFactory.getLogger(DataverseResponsiveCheck.class);
 
     private final DataverseClient dataverseClient;
+    private final CircuitBreaker circuitBreaker;
+    private final DoubleSupplier trafficSuccessRate;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalMillis;
+    private final long maxStalenessMillis;
+    private final double minTrafficSuccessRate;
+    private final Histogram latency;
+    private final LongSupplier clock;
+
+    private volatile Probe lastProbe;
+    private ScheduledFuture<?> probeTask;
+
+    private static class Probe {
+        private final Result result;
+        private final long timestamp;
+
+        private Probe(Result result, long timestamp) {
+            this.result = result;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param circuitBreaker     the circuit breaker of the calls to Dataverse
+     * @param trafficSuccessRate the fraction of the recent calls to Dataverse that succeeded, or {@code NaN} if there were none
+     */
+    public DataverseResponsiveCheck(DataverseClient dataverseClient, CircuitBreaker circuitBreaker, DoubleSupplier trafficSuccessRate,
+        ScheduledExecutorService scheduler, long intervalMillis, long maxStalenessMillis, double minTrafficSuccessRate, MetricRegistry metricRegistry) {
+        this(dataverseClient, circuitBreaker, trafficSuccessRate, scheduler, intervalMillis, maxStalenessMillis, minTrafficSuccessRate, metricRegistry,
+            System::currentTimeMillis);
+    }
 
-    public DataverseResponsiveCheck(DataverseClient dataverseClient) {
+    DataverseResponsiveCheck(DataverseClient dataverseClient, CircuitBreaker circuitBreaker, DoubleSupplier trafficSuccessRate, ScheduledExecutorService scheduler,
+        long intervalMillis, long maxStalenessMillis, double minTrafficSuccessRate, MetricRegistry metricRegistry, LongSupplier clock) {
         this.dataverseClient = dataverseClient;
+        this.circuitBreaker = circuitBreaker;
+        this.trafficSuccessRate = trafficSuccessRate;
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.minTrafficSuccessRate = minTrafficSuccessRate;
+        this.latency = metricRegistry.histogram(MetricRegistry.name(DataverseResponsiveCheck.class, "latency"));
+        this.clock = clock;
     }
 
     @Override
-    protected Result check() {
+    public void start() {
+        probeTask = scheduler.scheduleWithFixedDelay(this::probe, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (probeTask != null) {
+            probeTask.cancel(false);
+        }
+    }
+
+    void probe() {
+        var start = System.nanoTime();
+        Result result;
+
         try {
-            log.info("Checking if root dataverse can be reached...");
             dataverseClient.dataverse("root").view();
+            result = Result.healthy();
+        }
+        // catch all kinds of exceptions, so that the scheduled probes continue
+        catch (Exception e) {
+            result = Result.unhealthy("Dataverse could not be reached: " + e.getMessage());
+        }
+        latency.update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        var previous = lastProbe;
+        lastProbe = new Probe(result, clock.getAsLong());
+
+        if (previous != null && previous.result.isHealthy() == result.isHealthy()) {
+            log.debug("Dataverse probe: {}", result.isHealthy() ? "OK" : result.getMessage());
+        }
+        else if (result.isHealthy()) {
             log.info("OK: root dataverse is reachable.");
         }
-        catch (IOException | DataverseException e) {
-            log.warn("Dataverse connection check failed", e);
-            return Result.unhealthy("Dataverse could not be reached: " + e.getMessage(), e);
+        else {
+            log.warn("Dataverse connection check failed: {}", result.getMessage());
+        }
+    }
+
+    @Override
+    protected Result check() {
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            return Result.unhealthy(String.format("Circuit breaker for Dataverse is open after %d consecutive failure(s); next probe in %d ms",
+                circuitBreaker.getConsecutiveFailures(), circuitBreaker.getRemainingOpenMillis()));
+        }
+
+        var probe = lastProbe;
+
+        if (probe == null) {
+            return Result.unhealthy("Dataverse has not been probed yet");
+        }
+
+        var age = clock.getAsLong() - probe.timestamp;
+
+        if (age > maxStalenessMillis) {
+            return Result.unhealthy(String.format("Last probe of Dataverse was %d ms ago", age));
+        }
+
+        if (!probe.result.isHealthy()) {
+            return probe.result;
+        }
+
+        var successRate = trafficSuccessRate.getAsDouble();
+
+        if (!Double.isNaN(successRate) && successRate < minTrafficSuccessRate) {
+            return Result.unhealthy(String.format("Only %.0f%% of the recent calls to Dataverse succeeded", successRate * 100));
         }
-        return Result.healthy();
+        return probe.result;
     }
 }
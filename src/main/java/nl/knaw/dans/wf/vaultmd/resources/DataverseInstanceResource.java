@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.resources;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import java.util.Map;
+
+/**
+ * Routes the invocations and rollbacks of the additional Dataverse instances to the resources of the instance named in the path, e.g.
+ * {@code /instances/other/invoke}. Each instance has its own task queue, HTTP connection pool and metrics. The default instance is served on {@code /invoke} and
+ * {@code /rollback}.
+ */
+@Path("/instances/{instance}")
+public class DataverseInstanceResource {
+
+    /**
+     * The resources of one Dataverse instance.
+     */
+    public static class Instance {
+        private final StepInvocationResource invocationResource;
+        private final StepRollbackResource rollbackResource;
+
+        public Instance(StepInvocationResource invocationResource, StepRollbackResource rollbackResource) {
+            this.invocationResource = invocationResource;
+            this.rollbackResource = rollbackResource;
+        }
+    }
+
+    private final Map<String, Instance> instances;
+
+    public DataverseInstanceResource(Map<String, Instance> instances) {
+        this.instances = instances;
+    }
+
+    @Path("/invoke")
+    public StepInvocationResource invoke(@PathParam("instance") String instance) {
+        return getInstance(instance).invocationResource;
+    }
+
+    @Path("/rollback")
+    public StepRollbackResource rollback(@PathParam("instance") String instance) {
+        return getInstance(instance).rollbackResource;
+    }
+
+    private Instance getInstance(String name) {
+        var instance = instances.get(name);
+
+        if (instance == null) {
+            throw new NotFoundException("Unknown Dataverse instance: " + name);
+        }
+        return instance;
+    }
+}
@@ -15,45 +15,122 @@
  */
 package nl.knaw.dans.wf.vaultmd.resources;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.knaw.dans.wf.vaultmd.api.BatchItemResult;
 import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
-import nl.knaw.dans.wf.vaultmd.core.DataverseService;
-import nl.knaw.dans.wf.vaultmd.core.IdMintingService;
-import nl.knaw.dans.wf.vaultmd.core.IdValidator;
-import nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask;
+import nl.knaw.dans.wf.vaultmd.core.TaskQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-import java.util.concurrent.Executor;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Path("/invoke")
 @Produces(MediaType.APPLICATION_JSON)
 public class StepInvocationResource {
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
 
     private static final Logger log = LoggerFactory.getLogger(StepInvocationResource.class);
 
-    private final Executor executor;
-    private final DataverseService dataverseService;
+    private final TaskQueue taskQueue;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final int maxBatchSize;
 
-    private final IdMintingService idMintingService;
-    private final IdValidator idValidator;
-
-    public StepInvocationResource(Executor executor, DataverseService dataverseService, IdMintingService idMintingService, IdValidator idValidator) {
-        this.executor = executor;
-        this.dataverseService = dataverseService;
-        this.idMintingService = idMintingService;
-        this.idValidator = idValidator;
+    public StepInvocationResource(TaskQueue taskQueue, ObjectMapper objectMapper, Validator validator, int maxBatchSize) {
+        this.taskQueue = taskQueue;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @POST
-    public void run(@Valid StepInvocation inv) {
+    public void run(@Valid StepInvocation inv) throws IOException {
         log.info("Received invocation: {}", inv);
-        executor.execute(new SetVaultMetadataTask(inv, dataverseService, idMintingService, idValidator));
-        log.info("Added new task to queue");
+        if (taskQueue.submit(inv)) {
+            log.info("Added new task to queue");
+        }
+    }
+
+    /**
+     * Accepts a JSON array or a stream of newline-delimited JSON objects of step invocations. The invocations are validated as they are read, and the valid ones
+     * are submitted to the task queue together. The response lists the outcome for every invocation, in the same order; invalid invocations, including
+     * {@code null} elements, are reported as {@link BatchItemResult.Status#INVALID}. If any invocation was rejected because the queue was full, the Retry-After
+     * header is set.
+     */
+    @POST
+    @Path("/batch")
+    @Consumes({ MediaType.APPLICATION_JSON, APPLICATION_NDJSON })
+    public Response runBatch(InputStream body) throws IOException {
+        var invocations = new ArrayList<StepInvocation>();
+        var results = new ArrayList<BatchItemResult>();
+
+        // a root-level array is read element by element, just like a sequence of root-level objects
+        try (var iterator = objectMapper.readerFor(StepInvocation.class).<StepInvocation> readValues(body)) {
+            while (iterator.hasNextValue()) {
+                if (results.size() == maxBatchSize) {
+                    throw new WebApplicationException(String.format("Batch contains more than %d invocations", maxBatchSize), Response.Status.REQUEST_ENTITY_TOO_LARGE);
+                }
+
+                var invocation = iterator.nextValue();
+                if (invocation == null) {
+                    // a JSON null element, which the validator does not accept
+                    results.add(new BatchItemResult(null, BatchItemResult.Status.INVALID, "invocation must not be null"));
+                    continue;
+                }
+
+                var violations = validator.validate(invocation);
+
+                if (violations.isEmpty()) {
+                    invocations.add(invocation);
+                    results.add(null);
+                }
+                else {
+                    results.add(new BatchItemResult(invocation.getInvocationId(), BatchItemResult.Status.INVALID, toMessage(violations)));
+                }
+            }
+        }
+
+        log.info("Received batch of {} invocation(s), {} valid", results.size(), invocations.size());
+        var submissions = invocations.isEmpty() ? List.<TaskQueue.Submission> of() : taskQueue.submitAll(invocations);
+        var next = 0;
+        var anyRejected = false;
+
+        for (var i = 0; i < results.size(); ++i) {
+            if (results.get(i) == null) {
+                var submission = submissions.get(next);
+                anyRejected |= submission == TaskQueue.Submission.REJECTED;
+                results.set(i, new BatchItemResult(invocations.get(next).getInvocationId(), BatchItemResult.Status.valueOf(submission.name()), null));
+                next++;
+            }
+        }
+
+        var response = Response.ok(results);
+        if (anyRejected) {
+            response.header(HttpHeaders.RETRY_AFTER, taskQueue.getRetryAfterSeconds());
+        }
+        return response.build();
     }
 
+    private static String toMessage(Set<ConstraintViolation<StepInvocation>> violations) {
+        return violations.stream()
+            .map(v -> v.getPropertyPath() + " " + v.getMessage())
+            .sorted()
+            .collect(Collectors.joining(", "));
+    }
 }
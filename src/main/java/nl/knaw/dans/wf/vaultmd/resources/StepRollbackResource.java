@@ -15,8 +15,8 @@
  */
 package nl.knaw.dans.wf.vaultmd.resources;
 
-import nl.knaw.dans.lib.dataverse.DataverseClient;
 import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.core.RollbackQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,8 +25,6 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
-import java.io.IOException;
-import java.util.concurrent.Executor;
 
 @Path("/rollback")
 @Produces(MediaType.APPLICATION_JSON)
@@ -34,16 +32,19 @@ public class StepRollbackResource {
 
     private static final Logger log = LoggerFactory.getLogger(StepRollbackResource.class);
 
-    private final Executor executor;
+    private final RollbackQueue rollbackQueue;
 
-    public StepRollbackResource(Executor executor) {
-        this.executor = executor;
+    public StepRollbackResource(RollbackQueue rollbackQueue) {
+        this.rollbackQueue = rollbackQueue;
     }
 
     @POST
-    public void run(@Valid StepInvocation inv) throws IOException {
+    public void run(@Valid StepInvocation inv) {
         log.info("Received rollback request: {}", inv);
-        log.warn("NOT IMPLEMENTED, IGNORING...");
+        // the step did not edit the draft, or its values expired; there is nothing to undo, which is not a failure of the rollback
+        if (!rollbackQueue.submit(inv)) {
+            log.info("Nothing to roll back for invocation {}", inv.getInvocationId());
+        }
     }
 
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.resources;
+
+import io.dropwizard.jersey.errors.ErrorMessage;
+import nl.knaw.dans.wf.vaultmd.core.TaskQueueFullException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+
+/**
+ * Maps a full task queue to 429 Too Many Requests, or to 503 Service Unavailable if the executor itself rejected the task or Dataverse is unavailable, with a
+ * Retry-After header.
+ */
+public class TaskQueueFullExceptionMapper implements ExceptionMapper<TaskQueueFullException> {
+    private static final Logger log = LoggerFactory.getLogger(TaskQueueFullExceptionMapper.class);
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    @Override
+    public Response toResponse(TaskQueueFullException e) {
+        var status = e.isRejectedByExecutor() ? Response.Status.SERVICE_UNAVAILABLE.getStatusCode() : TOO_MANY_REQUESTS;
+        log.warn("Invocation not accepted ({}): {}. Retry after {} seconds", status, e.getMessage(), e.getRetryAfterSeconds());
+
+        return Response.status(status)
+            .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+            .type(MediaType.APPLICATION_JSON_TYPE)
+            .entity(new ErrorMessage(status, e.getMessage()))
+            .build();
+    }
+}
@@ -27,4 +27,6 @@ service_install_systemd_unit "$INSTALL_DIR/install/$MODULE_NAME.service" $MODULE
 service_install_systemd_unit "$INSTALL_DIR/install/$MODULE_NAME.service" $MODULE_NAME "$INSTALL_DIR/install/memusage.conf"
 
 service_create_log_directory $MODULE_NAME
+mkdir -p /var/opt/dans.knaw.nl/tmp/$MODULE_NAME
+chown $MODULE_NAME:$MODULE_NAME /var/opt/dans.knaw.nl/tmp/$MODULE_NAME
 echo "$PHASE: DONE"
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.lib.dataverse.DatasetApi;
+import nl.knaw.dans.lib.dataverse.DataverseClient;
+import nl.knaw.dans.lib.dataverse.DataverseHttpResponse;
+import nl.knaw.dans.lib.dataverse.model.Lock;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.LockWaitConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AdaptiveLockWaitStrategyTest {
+    private final StepInvocation stepInvocation = new StepInvocation("invocation-1", "doi:10.5072/dans-1", "1", "1", "0");
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private DatasetApi dataset;
+    private LockWaitMetrics metrics;
+    private ScheduledExecutorService scheduler;
+    private AdaptiveLockWaitStrategy strategy;
+
+    @BeforeEach
+    void setUp() {
+        var client = Mockito.mock(DataverseClient.class);
+        dataset = Mockito.mock(DatasetApi.class);
+        when(client.dataset(any(), any())).thenReturn(dataset);
+        metrics = new LockWaitMetrics(new MetricRegistry());
+
+        var config = new LockWaitConfig();
+        config.setInitialDelay(Duration.milliseconds(100));
+        config.setMaxDelay(Duration.milliseconds(300));
+        config.setMultiplier(2.0);
+        config.setTimeout(Duration.minutes(1));
+
+        scheduler = Mockito.mock(ScheduledExecutorService.class);
+        strategy = new AdaptiveLockWaitStrategy(client, config, metrics, scheduler) {
+
+            @Override
+            void sleep(long millis) {
+                sleeps.add(millis);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private DataverseHttpResponse<List<Lock>> locks(String... lockTypes) {
+        var result = new ArrayList<Lock>();
+
+        for (var lockType : lockTypes) {
+            var lock = Mockito.mock(Lock.class);
+            when(lock.getLockType()).thenReturn(lockType);
+            result.add(lock);
+        }
+
+        DataverseHttpResponse<List<Lock>> response = Mockito.mock(DataverseHttpResponse.class);
+        when(response.getData()).thenReturn(result);
+        return response;
+    }
+
+    @Test
+    void awaitLock_should_return_after_one_poll_if_lock_is_present() throws Exception {
+        var response = locks("Workflow");
+        when(dataset.getLocks()).thenReturn(response);
+
+        strategy.awaitLock(stepInvocation, "Workflow");
+
+        assertThat(sleeps).isEmpty();
+        assertThat(metrics.getPollCount()).isEqualTo(1);
+        assertThat(metrics.getWaiting().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    void awaitLock_should_back_off_until_lock_is_present() throws Exception {
+        var none = locks();
+        var otherLock = locks("Ingest");
+        var workflow = locks("Workflow");
+        when(dataset.getLocks()).thenReturn(none, otherLock, none, none, workflow);
+
+        strategy.awaitLock(stepInvocation, "Workflow");
+
+        assertThat(sleeps).containsExactly(100L, 200L, 300L, 300L);
+        assertThat(metrics.getPollCount()).isEqualTo(5);
+    }
+
+    @Test
+    void awaitLock_should_fail_when_timeout_has_passed() throws Exception {
+        var client = Mockito.mock(DataverseClient.class);
+        when(client.dataset(any(), any())).thenReturn(dataset);
+        var none = locks();
+        when(dataset.getLocks()).thenReturn(none);
+
+        var config = new LockWaitConfig();
+        config.setInitialDelay(Duration.milliseconds(1));
+        config.setMaxDelay(Duration.milliseconds(5));
+        config.setTimeout(Duration.milliseconds(50));
+        var timingOut = new AdaptiveLockWaitStrategy(client, config, metrics, scheduler);
+
+        assertThatThrownBy(() -> timingOut.awaitLock(stepInvocation, "Workflow"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("doi:10.5072/dans-1");
+        assertThat(metrics.getTimeoutCount()).isEqualTo(1);
+    }
+
+    @Test
+    void awaitLockAsync_should_schedule_the_polls_without_sleeping() throws Exception {
+        var none = locks();
+        var workflow = locks("Workflow");
+        when(dataset.getLocks()).thenReturn(none, none, workflow);
+
+        var future = strategy.awaitLockAsync(stepInvocation, "Workflow", Runnable::run);
+
+        var nextPoll = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(nextPoll.capture(), eq(100L), eq(TimeUnit.MILLISECONDS));
+        assertThat(future).isNotDone();
+        nextPoll.getValue().run();
+
+        verify(scheduler).schedule(nextPoll.capture(), eq(200L), eq(TimeUnit.MILLISECONDS));
+        nextPoll.getValue().run();
+
+        assertThat(future).isCompleted();
+        assertThat(sleeps).isEmpty();
+        assertThat(metrics.getPollCount()).isEqualTo(3);
+        assertThat(metrics.getWaiting().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    void awaitLockAsync_should_fail_when_the_poll_fails() throws Exception {
+        when(dataset.getLocks()).thenThrow(new IOException("connection refused"));
+
+        var future = strategy.awaitLockAsync(stepInvocation, "Workflow", Runnable::run);
+
+        assertThat(future).isCompletedExceptionally();
+        verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any());
+    }
+}
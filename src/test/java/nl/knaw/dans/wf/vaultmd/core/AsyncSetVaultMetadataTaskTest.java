@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static nl.knaw.dans.wf.vaultmd.core.TestUtilities.createDatasetVersion;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+
+class AsyncSetVaultMetadataTaskTest {
+    private static final String BAG_ID = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+    private static final String NBN = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final DataverseService dataverseServiceMock = Mockito.mock(DataverseService.class);
+    private final StepInvocation step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
+
+    // completes the calls only when the test says so
+    private static class ControlledAsyncDataverseService implements AsyncDataverseService {
+        private final CompletableFuture<Void> lock = new CompletableFuture<>();
+        private final CompletableFuture<Optional<DatasetVersion>> draft = new CompletableFuture<>();
+        private final CompletableFuture<Collection<DatasetVersion>> history = new CompletableFuture<>();
+        private final CompletableFuture<Void> edit = new CompletableFuture<>();
+        private volatile boolean draftRequested;
+        private volatile boolean historyRequested;
+        private volatile FieldList editedMetadata;
+
+        @Override
+        public CompletableFuture<Void> lockDataset(StepInvocation stepInvocation, String workflow) {
+            return lock;
+        }
+
+        @Override
+        public CompletableFuture<Optional<DatasetVersion>> getVersion(StepInvocation stepInvocation, String name) {
+            draftRequested = true;
+            return draft;
+        }
+
+        @Override
+        public CompletableFuture<Collection<DatasetVersion>> getVaultMetadataHistory(StepInvocation stepInvocation) {
+            historyRequested = true;
+            return history;
+        }
+
+        @Override
+        public CompletableFuture<Void> editMetadata(StepInvocation stepInvocation, FieldList fieldList) {
+            editedMetadata = fieldList;
+            return edit;
+        }
+    }
+
+    @AfterAll
+    public static void afterAll() {
+        scheduler.shutdownNow();
+    }
+
+    private AsyncSetVaultMetadataTask createTask(AsyncDataverseService asyncDataverseService) {
+        var retryConfig = new RetryConfig();
+        retryConfig.setMaxAttempts(3);
+        retryConfig.setInitialDelay(Duration.milliseconds(1));
+        var metricRegistry = new MetricRegistry();
+        var context = new TaskContext(dataverseServiceMock, asyncDataverseService, new IdMintingServiceImpl(), new IdValidatorImpl(),
+            new RetryScheduler(scheduler, Runnable::run, metricRegistry, retryConfig), null);
+        return new AsyncSetVaultMetadataTask(step, context, TaskListener.NO_OP, new TaskMetrics(metricRegistry));
+    }
+
+    @Test
+    void start_should_fetch_draft_and_history_at_the_same_time_and_resume_after_edit() throws Exception {
+        var service = new ControlledAsyncDataverseService();
+        var result = createTask(service).start();
+
+        assertThat(service.draftRequested).isFalse();
+        service.lock.complete(null);
+
+        // both fetches are in flight before either has completed
+        assertThat(service.draftRequested).isTrue();
+        assertThat(service.historyRequested).isTrue();
+
+        service.history.complete(List.of(createDatasetVersion(BAG_ID, NBN, 1, 0, "RELEASED")));
+        assertThat(service.editedMetadata).isNull();
+        service.draft.complete(Optional.of(createDatasetVersion(BAG_ID, NBN, 1, 1, "DRAFT")));
+
+        assertThat(service.editedMetadata).isNotNull();
+        assertThat(result).isNotDone();
+        service.edit.complete(null);
+
+        result.get(5, TimeUnit.SECONDS);
+        Mockito.verify(dataverseServiceMock).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Success")));
+    }
+
+    @Test
+    void start_should_resume_with_failure_when_a_stage_fails() throws Exception {
+        var service = new ControlledAsyncDataverseService();
+        var result = createTask(service).start();
+
+        service.lock.complete(null);
+        service.history.complete(List.of());
+        service.draft.completeExceptionally(new IllegalStateException("Dataverse error"));
+
+        result.get(5, TimeUnit.SECONDS);
+        assertThat(service.editedMetadata).isNull();
+        Mockito.verify(dataverseServiceMock).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Failure") && r.getReason().contains("Dataverse error")));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.dropwizard.jackson.Jackson;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkAuditTest {
+    private static final String NBN = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+    private static final String OTHER_NBN = "urn:nbn:nl:ui:13-2ajw-cq";
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private ExecutorService executor;
+    private URI baseUrl;
+    private final List<String> datasets = new ArrayList<>();
+    private final Map<String, String> versionsByPid = new HashMap<>();
+    private final Map<String, Integer> versionRequests = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/search", exchange -> {
+            var query = queryParameters(exchange.getRequestURI().getRawQuery());
+            var start = Integer.parseInt(query.get("start"));
+            var perPage = Integer.parseInt(query.get("per_page"));
+            var items = datasets.subList(Math.min(start, datasets.size()), Math.min(start + perPage, datasets.size())).stream()
+                .map(pid -> "{\"name\":\"Dataset\",\"type\":\"dataset\",\"global_id\":\"" + pid + "\"}")
+                .collect(Collectors.joining(","));
+            respond(exchange, 200, "{\"status\":\"OK\",\"data\":{\"total_count\":" + datasets.size() + ",\"items\":[" + items + "]}}");
+        });
+        server.createContext("/api/datasets/:persistentId/versions", exchange -> {
+            var pid = queryParameters(exchange.getRequestURI().getRawQuery()).get("persistentId");
+            versionRequests.merge(pid, 1, Integer::sum);
+            var body = versionsByPid.get(pid);
+            respond(exchange, body == null ? 404 : 200, body == null ? "{\"status\":\"ERROR\"}" : body);
+        });
+        server.start();
+
+        baseUrl = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+        httpClient = HttpClients.createDefault();
+        executor = Executors.newFixedThreadPool(4);
+
+        addDataset("doi:10.5072/valid", version("doi:10.5072/valid", 1, 0, 1, NBN), version("doi:10.5072/valid", 1, 1, 2, NBN));
+        addDataset("doi:10.5072/invalid", version("doi:10.5072/invalid", 1, 0, 3, NBN), version("doi:10.5072/invalid", 2, 0, 4, OTHER_NBN));
+        datasets.add("doi:10.5072/missing");
+        addDataset("doi:10.5072/draft-only", "{\"versionNumber\":0,\"versionMinorNumber\":0,\"versionState\":\"DRAFT\",\"metadataBlocks\":{}}");
+        addDataset("doi:10.5072/bad-bag-id", version("doi:10.5072/bad-bag-id", 1, 0, -1, NBN));
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        executor.shutdownNow();
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void run_should_report_every_dataset_and_checkpoint_the_end() throws Exception {
+        var report = tempDir.resolve("report.ndjson");
+        var checkpoint = tempDir.resolve("report.ndjson.checkpoint");
+
+        var counts = createBulkAudit(report, checkpoint).run(new DatasetSearchClient(httpClient, baseUrl, null).iterator(0, 2), 0);
+
+        assertThat(counts).containsEntry(AuditResult.Status.VALID, 2L).containsEntry(AuditResult.Status.INVALID, 2L).containsEntry(AuditResult.Status.ERROR, 1L);
+        var results = readReport(report);
+        assertThat(results).hasSize(5);
+        assertThat(results.get("doi:10.5072/valid").getVersions()).isEqualTo(2);
+        assertThat(results.get("doi:10.5072/invalid").getVersion()).isEqualTo("2.0");
+        assertThat(results.get("doi:10.5072/invalid").getMessage()).contains("dansNbn");
+        assertThat(results.get("doi:10.5072/missing").getStatus()).isEqualTo(AuditResult.Status.ERROR);
+        assertThat(results.get("doi:10.5072/draft-only").getVersions()).isZero();
+        assertThat(results.get("doi:10.5072/bad-bag-id").getMessage()).contains("urn:uuid");
+        assertThat(BulkAudit.readCheckpoint(checkpoint)).isEqualTo(5);
+    }
+
+    @Test
+    void run_should_resume_from_checkpoint() throws Exception {
+        var report = tempDir.resolve("report.ndjson");
+        var checkpoint = tempDir.resolve("report.ndjson.checkpoint");
+        Files.writeString(checkpoint, "3");
+
+        var start = BulkAudit.readCheckpoint(checkpoint);
+        createBulkAudit(report, checkpoint).run(new DatasetSearchClient(httpClient, baseUrl, null).iterator(start, 2), start);
+
+        assertThat(readReport(report)).containsOnlyKeys("doi:10.5072/draft-only", "doi:10.5072/bad-bag-id");
+        assertThat(versionRequests).containsOnlyKeys("doi:10.5072/draft-only", "doi:10.5072/bad-bag-id");
+        assertThat(BulkAudit.readCheckpoint(checkpoint)).isEqualTo(5);
+    }
+
+    @Test
+    void run_should_audit_datasets_found_twice_once() throws Exception {
+        var report = tempDir.resolve("report.ndjson");
+        var checkpoint = tempDir.resolve("report.ndjson.checkpoint");
+        // the draft card and the published card of the same dataset
+        datasets.add("doi:10.5072/valid");
+
+        createBulkAudit(report, checkpoint).run(new DatasetSearchClient(httpClient, baseUrl, null).iterator(0, 2), 0);
+
+        assertThat(Files.readAllLines(report)).hasSize(5);
+        assertThat(versionRequests).containsEntry("doi:10.5072/valid", 1);
+        assertThat(BulkAudit.readCheckpoint(checkpoint)).isEqualTo(6);
+    }
+
+    @Test
+    void run_should_report_unexpected_failures_per_dataset_and_continue() throws Exception {
+        var report = tempDir.resolve("report.ndjson");
+        var checkpoint = tempDir.resolve("report.ndjson.checkpoint");
+        addDataset("doi:10.5072/unexpected-failure", version("doi:10.5072/unexpected-failure", 1, 0, 5, NBN));
+        addDataset("doi:10.5072/valid-2", version("doi:10.5072/valid-2", 1, 0, 6, NBN));
+        var idValidator = Mockito.spy(new StrictIdValidator());
+        Mockito.doThrow(new UnsupportedOperationException("boom")).when(idValidator).isValidUrnUuid("urn:uuid:00000000-0000-0000-0000-000000000005");
+
+        var auditor = new VaultMetadataAuditor(new VaultMetadataHistoryClient(httpClient, baseUrl, null), idValidator);
+        var counts = new BulkAudit(auditor, executor, 4, report, checkpoint, 2, Jackson.newObjectMapper())
+            .run(new DatasetSearchClient(httpClient, baseUrl, null).iterator(0, 2), 0);
+
+        var results = readReport(report);
+        assertThat(results.get("doi:10.5072/unexpected-failure").getStatus()).isEqualTo(AuditResult.Status.ERROR);
+        assertThat(results.get("doi:10.5072/unexpected-failure").getMessage()).contains("boom");
+        assertThat(results.get("doi:10.5072/valid-2").getStatus()).isEqualTo(AuditResult.Status.VALID);
+        assertThat(counts).containsEntry(AuditResult.Status.ERROR, 2L);
+        assertThat(BulkAudit.readCheckpoint(checkpoint)).isEqualTo(7);
+    }
+
+    private BulkAudit createBulkAudit(Path report, Path checkpoint) {
+        var auditor = new VaultMetadataAuditor(new VaultMetadataHistoryClient(httpClient, baseUrl, null), new StrictIdValidator());
+        return new BulkAudit(auditor, executor, 4, report, checkpoint, 2, Jackson.newObjectMapper());
+    }
+
+    private Map<String, AuditResult> readReport(Path report) throws Exception {
+        var objectMapper = Jackson.newObjectMapper();
+        var results = new HashMap<String, AuditResult>();
+
+        for (var line : Files.readAllLines(report)) {
+            var result = objectMapper.readValue(line, AuditResult.class);
+            results.put(result.getPid(), result);
+        }
+        return results;
+    }
+
+    private void addDataset(String pid, String... versions) {
+        datasets.add(pid);
+        // Dataverse returns the newest version first
+        var newestFirst = new ArrayList<>(List.of(versions));
+        Collections.reverse(newestFirst);
+        versionsByPid.put(pid, "{\"status\":\"OK\",\"data\":[" + String.join(",", newestFirst) + "]}");
+    }
+
+    private static String version(String pid, int major, int minor, int bagNumber, String nbn) {
+        var bagId = bagNumber < 0 ? "urn:uuid:not-a-uuid" : String.format("urn:uuid:00000000-0000-0000-0000-%012d", bagNumber);
+        return "{\"versionNumber\":" + major + ",\"versionMinorNumber\":" + minor + ",\"versionState\":\"RELEASED\",\"metadataBlocks\":{\"dansDataVaultMetadata\":"
+            + "{\"fields\":["
+            + field("dansDataversePid", pid) + ","
+            + field("dansDataversePidVersion", major + "." + minor) + ","
+            + field("dansBagId", bagId) + ","
+            + field("dansNbn", nbn)
+            + "]}}}";
+    }
+
+    private static String field(String typeName, String value) {
+        return "{\"typeName\":\"" + typeName + "\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"" + value + "\"}";
+    }
+
+    private static Map<String, String> queryParameters(String rawQuery) {
+        var result = new HashMap<String, String>();
+        for (var pair : rawQuery.split("&")) {
+            var i = pair.indexOf('=');
+            result.put(pair.substring(0, i), URLDecoder.decode(pair.substring(i + 1), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (var out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+    private final AtomicLong clock = new AtomicLong(1000);
+
+    private void fail(CircuitBreaker breaker, int times) {
+        for (var i = 0; i < times; ++i) {
+            assertThat(breaker.tryAcquire()).isTrue();
+            breaker.onFailure();
+        }
+    }
+
+    @Test
+    void should_open_after_consecutive_failures_and_refuse_calls() {
+        var breaker = new CircuitBreaker(3, 100, 1, clock::get);
+
+        fail(breaker, 2);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        fail(breaker, 1);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(breaker.getRemainingOpenMillis()).isEqualTo(100);
+    }
+
+    @Test
+    void success_should_reset_the_consecutive_failures() {
+        var breaker = new CircuitBreaker(3, 100, 1, clock::get);
+
+        fail(breaker, 2);
+        breaker.tryAcquire();
+        breaker.onSuccess();
+        fail(breaker, 2);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void should_let_a_limited_number_of_probes_through_when_half_open() {
+        var breaker = new CircuitBreaker(1, 100, 1, clock::get);
+        fail(breaker, 1);
+
+        clock.addAndGet(100);
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        breaker.onSuccess();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void failed_probe_should_open_the_breaker_again() {
+        var breaker = new CircuitBreaker(1, 100, 1, clock::get);
+        fail(breaker, 1);
+
+        clock.addAndGet(100);
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        clock.addAndGet(99);
+        assertThat(breaker.tryAcquire()).isFalse();
+    }
+
+    @Test
+    void ignored_probe_should_free_its_slot() {
+        var breaker = new CircuitBreaker(1, 100, 1, clock::get);
+        fail(breaker, 1);
+
+        clock.addAndGet(100);
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.onIgnored();
+
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+}
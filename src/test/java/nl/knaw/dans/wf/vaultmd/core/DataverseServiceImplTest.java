@@ -15,6 +15,7 @@
  */
 package nl.knaw.dans.wf.vaultmd.core;
 
+import nl.knaw.dans.lib.dataverse.DatasetApi;
 import nl.knaw.dans.lib.dataverse.DataverseClient;
 import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
 import org.junit.jupiter.api.Test;
@@ -24,26 +25,42 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 class DataverseServiceImplTest {
 
     @Test
-    void getAllReleasedOrDeaccessionedVersion_should_return_versions_in_descending_order() throws Exception {
-        var service = Mockito.spy(new DataverseServiceImpl(Mockito.mock(DataverseClient.class),null));
-        var step = new StepInvocation("invocationId", "globalId", "datasetId", "1", "5");
-
+    void getVaultMetadataHistory_should_return_published_versions_in_descending_order() throws Exception {
         var version1 = TestUtilities.createDatasetVersion("bagId1", "nbn", 1, 1, "RELEASED");
         var version2 = TestUtilities.createDatasetVersion("bagId2", "nbn", 1, 2, "RELEASED");
         var version3 = TestUtilities.createDatasetVersion("bagId3", "nbn", 1, 3, "RELEASED");
+        var draft = TestUtilities.createDatasetVersion("bagId4", "nbn", 1, 4, "DRAFT");
+        VersionHistorySource historySource = (globalId, invocationId) -> List.of(version1, draft, version3, version2);
+        var service = new DataverseServiceImpl(Mockito.mock(DataverseClient.class), null, historySource, null);
+        var step = new StepInvocation("invocationId", "globalId", "datasetId", "1", "5");
 
-        Mockito.doReturn(List.of(version1, version3, version2))
-            .when(service).getAllDatasetVersions(Mockito.any());
-
-        var result = new ArrayList<>(service.getAllReleasedOrDeaccessionedVersion(step));
+        var result = new ArrayList<>(service.getVaultMetadataHistory(step));
 
+        assertEquals(3, result.size());
         assertEquals(3, result.get(0).getVersionMinorNumber());
         assertEquals(2, result.get(1).getVersionMinorNumber());
         assertEquals(1, result.get(2).getVersionMinorNumber());
     }
 
+    @Test
+    void getDataset_should_reuse_the_handle_for_the_same_invocation() {
+        var client = Mockito.mock(DataverseClient.class);
+        Mockito.when(client.dataset(Mockito.anyString(), Mockito.anyString())).thenAnswer(i -> Mockito.mock(DatasetApi.class));
+        var service = new DataverseServiceImpl(client, null, null, null);
+        var step1 = new StepInvocation("invocationId1", "globalId1", "datasetId1", "1", "0");
+        var step2 = new StepInvocation("invocationId2", "globalId2", "datasetId2", "1", "0");
+
+        var first = service.getDataset(step1);
+
+        assertSame(first, service.getDataset(step1));
+        assertNotSame(first, service.getDataset(step2));
+        Mockito.verify(client, Mockito.times(1)).dataset("globalId1", "invocationId1");
+    }
+
 }
\ No newline at end of file
@@ -23,12 +23,16 @@ import io.dropwizard.configuration.YamlConfigurationFactory;
 import io.dropwizard.jackson.Jackson;
 import io.dropwizard.jersey.validation.Validators;
 import nl.knaw.dans.wf.vaultmd.DdVaultMetadataConfiguration;
+import nl.knaw.dans.wf.vaultmd.config.LockWaitConfig;
+import nl.knaw.dans.wf.vaultmd.config.TaskExecutorConfig;
 import org.junit.jupiter.api.Test;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DdVaultMetadataConfigurationTest {
     private final YamlConfigurationFactory<DdVaultMetadataConfiguration> factory;
@@ -49,4 +53,26 @@ public class DdVaultMetadataConfigurationTest {
         var mdKey = config.getVaultMetadataKey();
         assertEquals("somesecret", mdKey);
     }
+
+    @Test
+    public void defaultLockWaitIsClientLibrary() {
+        var config = new DdVaultMetadataConfiguration();
+        assertEquals(LockWaitConfig.Mode.CLIENT_LIBRARY, config.getLockWait().getMode());
+        assertTrue(config.isLockWaitSupportedByPipeline());
+    }
+
+    @Test
+    public void asyncPipelineRejectsClientLibraryLockWait() {
+        var config = new DdVaultMetadataConfiguration();
+        config.getTaskExecutor().setPipeline(TaskExecutorConfig.Pipeline.ASYNC);
+        config.getLockWait().setMode(LockWaitConfig.Mode.CLIENT_LIBRARY);
+        assertFalse(config.isLockWaitSupportedByPipeline());
+
+        config.getLockWait().setMode(LockWaitConfig.Mode.ADAPTIVE);
+        assertTrue(config.isLockWaitSupportedByPipeline());
+
+        config.getTaskExecutor().setPipeline(TaskExecutorConfig.Pipeline.BLOCKING);
+        config.getLockWait().setMode(LockWaitConfig.Mode.CLIENT_LIBRARY);
+        assertTrue(config.isLockWaitSupportedByPipeline());
+    }
 }
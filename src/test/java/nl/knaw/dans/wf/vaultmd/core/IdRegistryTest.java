@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import io.dropwizard.jackson.Jackson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IdRegistryTest {
+    private static final String NBN = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+    @TempDir
+    Path tempDir;
+
+    private IdRegistry createRegistry() {
+        return new IdRegistry(tempDir.resolve("registry/id-registry.ndjson"), Jackson.newObjectMapper());
+    }
+
+    @Test
+    void registered_ids_should_survive_restart() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-1", "1.0", NBN, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889"));
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-1", "2.0", NBN, "urn:uuid:9d1b4dbb-2a07-4b8c-8f34-66d0e5cf2d0e"));
+        registry.stop();
+
+        var reopened = createRegistry();
+        reopened.start();
+
+        assertThat(reopened.getNbn("doi:10.5072/dans-1")).contains(NBN);
+        assertThat(reopened.getNbn("doi:10.5072/dans-2")).isEmpty();
+        assertThat(reopened.findByBagId("urn:uuid:9d1b4dbb-2a07-4b8c-8f34-66d0e5cf2d0e"))
+            .hasValueSatisfying(e -> assertThat(e.getVersion()).isEqualTo("2.0"));
+        assertThat(reopened.getNumberOfBagIds()).isEqualTo(2);
+        reopened.stop();
+    }
+
+    @Test
+    void register_should_ignore_entry_that_is_already_present() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        var entry = new IdRegistryEntry("doi:10.5072/dans-1", "1.0", NBN, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889");
+
+        registry.register(entry);
+        registry.register(entry);
+        registry.stop();
+
+        assertThat(Files.readAllLines(tempDir.resolve("registry/id-registry.ndjson"))).hasSize(1);
+    }
+
+    @Test
+    void concurrent_registrations_should_all_be_durable() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        var pool = Executors.newFixedThreadPool(8);
+        var registrations = new ArrayList<Future<?>>();
+
+        for (var i = 0; i < 100; ++i) {
+            var entry = new IdRegistryEntry("doi:10.5072/dans-" + i, "1.0", NBN, "urn:uuid:" + UUID.randomUUID());
+            registrations.add(pool.submit(() -> {
+                registry.register(entry);
+                return null;
+            }));
+        }
+        for (var registration : registrations) {
+            registration.get(10, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        registry.stop();
+
+        assertThat(Files.readAllLines(tempDir.resolve("registry/id-registry.ndjson"))).hasSize(100);
+    }
+
+    @Test
+    void concurrent_registrations_of_same_entry_should_be_written_once() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        var pool = Executors.newFixedThreadPool(8);
+        var registrations = new ArrayList<Future<?>>();
+        var entry = new IdRegistryEntry("doi:10.5072/dans-1", "1.0", NBN, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889");
+
+        for (var i = 0; i < 20; ++i) {
+            registrations.add(pool.submit(() -> {
+                registry.register(entry);
+                // a registration returns only when the entry is durable, and then it is indexed
+                assertThat(registry.findByBagId(entry.getBagId())).contains(entry);
+                return null;
+            }));
+        }
+        for (var registration : registrations) {
+            registration.get(10, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        registry.stop();
+
+        assertThat(Files.readAllLines(tempDir.resolve("registry/id-registry.ndjson"))).hasSize(1);
+    }
+
+    @Test
+    void first_registered_nbn_should_win() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-1", "1.0", NBN, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889"));
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-1", "2.0", "urn:nbn:nl:ui:13-other", "urn:uuid:9d1b4dbb-2a07-4b8c-8f34-66d0e5cf2d0e"));
+
+        assertThat(registry.getNbn("doi:10.5072/dans-1")).contains(NBN);
+        registry.stop();
+    }
+
+    @Test
+    void unreadable_last_line_should_be_skipped() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-1", "1.0", NBN, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889"));
+        registry.stop();
+        Files.writeString(tempDir.resolve("registry/id-registry.ndjson"), "{\"pid\":\"doi:10.5072/da", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        var reopened = createRegistry();
+        reopened.start();
+
+        assertThat(reopened.getNumberOfBagIds()).isEqualTo(1);
+        reopened.stop();
+    }
+
+    @Test
+    void rebuild_should_replace_contents() throws Exception {
+        var registry = createRegistry();
+        registry.start();
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-1", "1.0", NBN, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889"));
+
+        registry.rebuild(List.of(new IdRegistryEntry("doi:10.5072/dans-2", "1.0", NBN, "urn:uuid:9d1b4dbb-2a07-4b8c-8f34-66d0e5cf2d0e")));
+        registry.register(new IdRegistryEntry("doi:10.5072/dans-2", "2.0", NBN, "urn:uuid:0b9bd5f6-1c7e-4b0e-9a59-3e4e1b1f2a3c"));
+        registry.stop();
+
+        var reopened = createRegistry();
+        reopened.start();
+        assertThat(reopened.getNbn("doi:10.5072/dans-1")).isEmpty();
+        assertThat(reopened.getNbn("doi:10.5072/dans-2")).contains(NBN);
+        assertThat(reopened.getNumberOfBagIds()).isEqualTo(2);
+        reopened.stop();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvocationDeduplicatorTest {
+    private final AtomicLong clock = new AtomicLong(1000);
+
+    private StepInvocation createInvocation(String id) {
+        return new StepInvocation(id, "doi:10.5072/" + id, "1", "1", "0");
+    }
+
+    @Test
+    void register_should_refuse_in_flight_invocation() {
+        var deduplicator = new InvocationDeduplicator(10, 100, clock::get);
+
+        assertTrue(deduplicator.register("1"));
+        assertFalse(deduplicator.register("1"));
+
+        // in-flight invocations do not expire
+        clock.addAndGet(1000);
+        assertFalse(deduplicator.register("1"));
+    }
+
+    @Test
+    void register_should_refuse_recently_completed_invocation_until_it_expires() {
+        var deduplicator = new InvocationDeduplicator(10, 100, clock::get);
+
+        deduplicator.register("1");
+        deduplicator.onResumed(createInvocation("1"));
+        clock.addAndGet(99);
+        assertFalse(deduplicator.register("1"));
+
+        clock.addAndGet(1);
+        assertTrue(deduplicator.register("1"));
+    }
+
+    @Test
+    void register_should_evict_eldest_completed_entry_when_full() {
+        var deduplicator = new InvocationDeduplicator(3, 100, clock::get);
+
+        deduplicator.register("1");
+        deduplicator.register("2");
+        deduplicator.register("3");
+        deduplicator.onResumed(createInvocation("3"));
+        deduplicator.onResumed(createInvocation("2"));
+        deduplicator.register("4");
+
+        assertEquals(3, deduplicator.size());
+        // the in-flight invocation was not evicted, the invocation that completed first was
+        assertFalse(deduplicator.register("1"));
+        assertFalse(deduplicator.register("2"));
+        assertFalse(deduplicator.register("4"));
+        deduplicator.onResumed(createInvocation("4"));
+        assertTrue(deduplicator.register("3"));
+    }
+
+    @Test
+    void register_should_refuse_new_invocation_when_full_of_in_flight_invocations() {
+        var deduplicator = new InvocationDeduplicator(2, 100, clock::get);
+
+        deduplicator.register("1");
+        deduplicator.register("2");
+
+        assertThrows(IllegalStateException.class, () -> deduplicator.register("3"));
+        assertFalse(deduplicator.register("1"));
+        assertEquals(2, deduplicator.size());
+    }
+
+    @Test
+    void completed_invocation_should_expire_behind_in_flight_invocation() {
+        var deduplicator = new InvocationDeduplicator(10, 100, clock::get);
+
+        deduplicator.register("1");
+        deduplicator.register("2");
+        deduplicator.onResumed(createInvocation("2"));
+        clock.addAndGet(100);
+
+        assertTrue(deduplicator.register("2"));
+        assertFalse(deduplicator.register("1"));
+    }
+
+    @Test
+    void unregister_should_allow_invocation_again() {
+        var deduplicator = new InvocationDeduplicator(10, 100, clock::get);
+
+        deduplicator.register("1");
+        deduplicator.unregister("1");
+
+        assertTrue(deduplicator.register("1"));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeyedExecutorTest {
+
+    @Test
+    void tasks_with_same_key_should_run_in_submission_order() throws Exception {
+        var pool = Executors.newFixedThreadPool(4);
+        var executor = new KeyedExecutor(pool);
+        var order = Collections.synchronizedList(new ArrayList<Integer>());
+        var done = new CountDownLatch(50);
+
+        for (var i = 0; i < 50; ++i) {
+            var n = i;
+            executor.execute("doi:10.5072/dans-1", () -> {
+                order.add(n);
+                done.countDown();
+            });
+        }
+
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        pool.shutdown();
+        assertThat(order).isSorted().hasSize(50);
+        assertThat(executor.getActiveKeyCount()).isZero();
+        assertThat(executor.getWaitingCount()).isZero();
+    }
+
+    @Test
+    void tasks_with_different_keys_should_run_in_parallel() throws Exception {
+        var pool = Executors.newFixedThreadPool(2);
+        var executor = new KeyedExecutor(pool);
+        var bothStarted = new CountDownLatch(2);
+        var done = new CountDownLatch(2);
+
+        for (var key : List.of("doi:10.5072/dans-1", "doi:10.5072/dans-2")) {
+            executor.execute(key, () -> {
+                bothStarted.countDown();
+                try {
+                    // would time out if the tasks were executed one after the other
+                    if (bothStarted.await(5, TimeUnit.SECONDS)) {
+                        done.countDown();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        pool.shutdown();
+    }
+
+    @Test
+    void second_task_for_key_should_wait_without_being_submitted() {
+        var submitted = new ArrayList<Runnable>();
+        var executor = new KeyedExecutor(submitted::add);
+        var ran = new ArrayList<String>();
+
+        executor.execute("a", () -> ran.add("a1"));
+        executor.execute("a", () -> ran.add("a2"));
+        executor.execute("b", () -> ran.add("b1"));
+
+        assertThat(submitted).hasSize(2);
+        assertThat(executor.getWaitingCount()).isEqualTo(1);
+
+        submitted.remove(0).run();
+        assertThat(ran).containsExactly("a1");
+        // the next task for "a" is handed back to the executor
+        assertThat(submitted).hasSize(2);
+
+        submitted.remove(0).run();
+        submitted.remove(0).run();
+        assertThat(ran).containsExactly("a1", "b1", "a2");
+        assertThat(executor.getActiveKeyCount()).isZero();
+    }
+
+    @Test
+    void rejected_task_should_release_its_key() {
+        Executor rejecting = command -> {
+            throw new RejectedExecutionException("full");
+        };
+        var executor = new KeyedExecutor(rejecting);
+
+        assertThatThrownBy(() -> executor.execute("a", () -> {}))
+            .isInstanceOf(RejectedExecutionException.class);
+        assertThat(executor.getActiveKeyCount()).isZero();
+    }
+
+    @Test
+    void rejected_next_task_should_stay_queued_until_another_task_completes() {
+        var submitted = new ArrayList<Runnable>();
+        var ran = new ArrayList<String>();
+        var full = new boolean[] { false };
+        var executor = new KeyedExecutor(command -> {
+            if (full[0]) {
+                throw new RejectedExecutionException("full");
+            }
+            submitted.add(command);
+        });
+
+        executor.execute("a", () -> ran.add("a1"));
+        executor.execute("a", () -> ran.add("a2"));
+        executor.execute("b", () -> ran.add("b1"));
+        full[0] = true;
+        submitted.remove(0).run();
+
+        // the rejected task is not run on the thread that completed a1
+        assertThat(ran).containsExactly("a1");
+        assertThat(executor.getWaitingCount()).isEqualTo(1);
+        assertThat(executor.getActiveKeyCount()).isEqualTo(2);
+
+        full[0] = false;
+        submitted.remove(0).run();
+        assertThat(ran).containsExactly("a1", "b1");
+        assertThat(submitted).hasSize(1);
+        submitted.remove(0).run();
+
+        assertThat(ran).containsExactly("a1", "b1", "a2");
+        assertThat(executor.getActiveKeyCount()).isZero();
+        assertThat(executor.getWaitingCount()).isZero();
+    }
+
+    @Test
+    void failing_task_should_not_block_the_next_task_for_its_key() {
+        var submitted = new ArrayList<Runnable>();
+        var executor = new KeyedExecutor(submitted::add);
+        var ran = new ArrayList<String>();
+
+        executor.execute("a", () -> {
+            throw new IllegalStateException("failed");
+        });
+        executor.execute("a", () -> ran.add("a2"));
+
+        submitted.remove(0).run();
+        assertThat(submitted).hasSize(1);
+        submitted.remove(0).run();
+
+        assertThat(ran).containsExactly("a2");
+        assertThat(executor.getActiveKeyCount()).isZero();
+        assertThat(executor.getWaitingCount()).isZero();
+    }
+
+    @Test
+    void async_task_should_hold_its_key_until_its_stage_completes() {
+        var submitted = new ArrayList<Runnable>();
+        var executor = new KeyedExecutor(submitted::add);
+        var ran = new ArrayList<String>();
+        var firstDone = new CompletableFuture<Void>();
+
+        executor.executeAsync("a", () -> {
+            ran.add("a1");
+            return firstDone;
+        });
+        executor.execute("a", () -> ran.add("a2"));
+
+        submitted.remove(0).run();
+        assertThat(ran).containsExactly("a1");
+        // the first task has returned, but its stage is not complete yet
+        assertThat(submitted).isEmpty();
+        assertThat(executor.getWaitingCount()).isEqualTo(1);
+
+        firstDone.complete(null);
+        assertThat(submitted).hasSize(1);
+        submitted.remove(0).run();
+        assertThat(ran).containsExactly("a1", "a2");
+        assertThat(executor.getActiveKeyCount()).isZero();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PooledIdMintingServiceTest {
+    private final IdValidator idValidator = new IdValidatorImpl();
+
+    @Test
+    void ring_should_return_values_in_order_and_refuse_when_full() {
+        var ring = new IdRing(4);
+
+        assertThat(ring.poll()).isNull();
+        for (var i = 0; i < 4; ++i) {
+            assertThat(ring.offer("id-" + i)).isTrue();
+        }
+        assertThat(ring.offer("id-4")).isFalse();
+        assertThat(ring.poll()).isEqualTo("id-0");
+        assertThat(ring.offer("id-4")).isTrue();
+        assertThat(ring.size()).isEqualTo(4);
+        assertThat(List.of(ring.poll(), ring.poll(), ring.poll(), ring.poll())).containsExactly("id-1", "id-2", "id-3", "id-4");
+        assertThat(ring.poll()).isNull();
+    }
+
+    @Test
+    void should_mint_directly_when_pool_is_empty() {
+        var service = new PooledIdMintingService(new IdMintingServiceImpl(), 16, 4, new MetricRegistry());
+
+        assertThat(idValidator.isValidUrnNbn(service.mintUrnNbn())).isTrue();
+        assertThat(idValidator.isValidUrnUuid(service.mintBagId())).isTrue();
+        assertThat(service.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    void should_fill_pool_after_start() throws Exception {
+        var service = new PooledIdMintingService(new IdMintingServiceImpl(), 16, 4, new MetricRegistry());
+        service.start();
+        try {
+            awaitFull(service, 16);
+            assertThat(idValidator.isValidUrnNbn(service.mintUrnNbn())).isTrue();
+            assertThat(idValidator.isValidUrnUuid(service.mintBagId())).isTrue();
+            assertThat(service.getMissCount()).isZero();
+        }
+        finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    void should_hand_out_unique_ids_to_concurrent_callers() throws Exception {
+        var service = new PooledIdMintingService(new IdMintingServiceImpl(), 64, 16, new MetricRegistry());
+        var pool = Executors.newFixedThreadPool(8);
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        service.start();
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (var t = 0; t < 8; ++t) {
+                futures.add(pool.submit(() -> {
+                    for (var i = 0; i < 1000; ++i) {
+                        ids.add(service.mintBagId());
+                        ids.add(service.mintUrnNbn());
+                    }
+                }));
+            }
+            for (var future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            pool.shutdown();
+            service.stop();
+        }
+
+        assertThat(ids).hasSize(16000);
+    }
+
+    private void awaitFull(PooledIdMintingService service, int capacity) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 10000;
+        while (service.getAvailableNbns() < capacity || service.getAvailableBagIds() < capacity) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+}
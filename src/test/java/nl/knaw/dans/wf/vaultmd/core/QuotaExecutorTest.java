@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QuotaExecutorTest {
+
+    /**
+     * Runs the submitted tasks only when asked to, so that the tests can control the order.
+     */
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean rejecting;
+
+        @Override
+        public void execute(Runnable task) {
+            if (rejecting) {
+                throw new RejectedExecutionException("full");
+            }
+            tasks.add(task);
+        }
+
+        void runNext() {
+            tasks.remove().run();
+        }
+    }
+
+    @Test
+    void should_hold_back_tasks_beyond_the_quota() {
+        var shared = new ManualExecutor();
+        var executor = new QuotaExecutor(shared, 2);
+        List<Integer> ran = new ArrayList<>();
+
+        for (var i = 0; i < 4; ++i) {
+            var n = i;
+            executor.execute(() -> ran.add(n));
+        }
+
+        assertThat(shared.tasks).hasSize(2);
+        assertThat(executor.getRunningCount()).isEqualTo(2);
+        assertThat(executor.getWaitingCount()).isEqualTo(2);
+    }
+
+    @Test
+    void should_hand_the_next_waiting_task_to_the_shared_executor_when_a_task_finishes() {
+        var shared = new ManualExecutor();
+        var executor = new QuotaExecutor(shared, 1);
+        List<Integer> ran = new ArrayList<>();
+
+        executor.execute(() -> ran.add(1));
+        executor.execute(() -> ran.add(2));
+        shared.runNext();
+
+        assertThat(ran).containsExactly(1);
+        assertThat(shared.tasks).hasSize(1);
+        assertThat(executor.getRunningCount()).isEqualTo(1);
+        assertThat(executor.getWaitingCount()).isEqualTo(0);
+
+        shared.runNext();
+
+        assertThat(ran).containsExactly(1, 2);
+        assertThat(executor.getRunningCount()).isEqualTo(0);
+    }
+
+    @Test
+    void failing_task_should_not_stop_the_waiting_tasks() {
+        var shared = new ManualExecutor();
+        var executor = new QuotaExecutor(shared, 1);
+        List<Integer> ran = new ArrayList<>();
+
+        executor.execute(() -> {
+            throw new IllegalStateException("failed");
+        });
+        executor.execute(() -> ran.add(2));
+        shared.runNext();
+        shared.runNext();
+
+        assertThat(ran).containsExactly(2);
+        assertThat(executor.getRunningCount()).isEqualTo(0);
+    }
+
+    @Test
+    void should_keep_the_next_task_waiting_if_the_shared_executor_rejects_it() {
+        var shared = new ManualExecutor();
+        var executor = new QuotaExecutor(shared, 1);
+        List<Integer> ran = new ArrayList<>();
+
+        executor.execute(() -> ran.add(1));
+        executor.execute(() -> ran.add(2));
+        shared.rejecting = true;
+        shared.runNext();
+
+        // the rejected task is not run on the thread that finished the first one
+        assertThat(ran).containsExactly(1);
+        assertThat(executor.getRunningCount()).isEqualTo(0);
+        assertThat(executor.getWaitingCount()).isEqualTo(1);
+
+        shared.rejecting = false;
+        executor.execute(() -> ran.add(3));
+        assertThat(shared.tasks).hasSize(1);
+        shared.runNext();
+        shared.runNext();
+
+        assertThat(ran).containsExactly(1, 2, 3);
+        assertThat(executor.getRunningCount()).isEqualTo(0);
+        assertThat(executor.getWaitingCount()).isEqualTo(0);
+    }
+
+    @Test
+    void should_release_the_slot_if_the_shared_executor_rejects_a_new_task() {
+        var shared = new ManualExecutor();
+        shared.rejecting = true;
+        var executor = new QuotaExecutor(shared, 1);
+
+        assertThatThrownBy(() -> executor.execute(() -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+        assertThat(executor.getRunningCount()).isEqualTo(0);
+    }
+}
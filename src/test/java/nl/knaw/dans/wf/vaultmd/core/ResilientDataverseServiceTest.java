@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ResilientDataverseServiceTest {
+    private final DataverseService delegate = Mockito.mock(DataverseService.class);
+    private final StepInvocation step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
+
+    @Test
+    void should_fail_fast_once_the_breaker_is_open() throws Exception {
+        var breaker = new CircuitBreaker(2, 60_000, 1);
+        var service = new ResilientDataverseService(delegate, breaker, 10, 1000, new MetricRegistry());
+        Mockito.when(delegate.getVaultMetadataHistory(step)).thenThrow(new IOException("connection refused"));
+
+        assertThatThrownBy(() -> service.getVaultMetadataHistory(step)).hasMessage("connection refused");
+        assertThatThrownBy(() -> service.getVaultMetadataHistory(step)).hasMessage("connection refused");
+        assertThatThrownBy(() -> service.getVaultMetadataHistory(step)).isInstanceOf(DataverseUnavailableException.class);
+        assertThatThrownBy(() -> service.lockDataset(step, "Workflow")).isInstanceOf(DataverseUnavailableException.class);
+        var lockWaitStrategy = Mockito.mock(LockWaitStrategy.class);
+        assertThatThrownBy(() -> service.guard(lockWaitStrategy).awaitLockAsync(step, "Workflow", Runnable::run).join())
+            .hasCauseInstanceOf(DataverseUnavailableException.class);
+
+        Mockito.verify(delegate, Mockito.times(2)).getVaultMetadataHistory(step);
+        Mockito.verify(delegate, Mockito.never()).lockDataset(Mockito.any(), Mockito.any());
+        Mockito.verifyNoInteractions(lockWaitStrategy);
+    }
+
+    @Test
+    void client_errors_should_not_open_the_breaker() throws Exception {
+        var breaker = new CircuitBreaker(1, 60_000, 1);
+        var service = new ResilientDataverseService(delegate, breaker, 10, 1000, new MetricRegistry());
+        Mockito.when(delegate.resumeWorkflow(Mockito.eq(step), Mockito.any())).thenThrow(new DataverseException(404, "not found"));
+
+        assertThatThrownBy(() -> service.resumeWorkflow(step, null)).isInstanceOf(DataverseException.class);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void should_refuse_calls_beyond_the_bulkhead_limit() throws Exception {
+        var service = new ResilientDataverseService(delegate, new CircuitBreaker(5, 60_000, 1), 1, 10, new MetricRegistry());
+        var inCall = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Mockito.when(delegate.getVaultMetadataHistory(step)).thenAnswer(i -> {
+            inCall.countDown();
+            release.await();
+            return List.of();
+        });
+
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var first = executor.submit(() -> service.getVaultMetadataHistory(step));
+            assertThat(inCall.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> service.getVaultMetadataHistory(step)).isInstanceOf(DataverseUnavailableException.class);
+
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEmpty();
+            assertThat(service.getVaultMetadataHistory(step)).isEmpty();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
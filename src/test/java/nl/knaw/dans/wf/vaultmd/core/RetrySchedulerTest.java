@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RetrySchedulerTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "retry-scheduler"));
+    private final ExecutorService attemptExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "retry-attempt"));
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    @AfterEach
+    void afterEach() {
+        scheduler.shutdownNow();
+        attemptExecutor.shutdownNow();
+    }
+
+    private RetryScheduler createRetryScheduler(int maxAttempts) {
+        var config = new RetryConfig();
+        config.setMaxAttempts(maxAttempts);
+        config.setInitialDelay(Duration.milliseconds(1));
+        config.setMaxDelay(Duration.milliseconds(5));
+        return new RetryScheduler(scheduler, attemptExecutor, metricRegistry, config);
+    }
+
+    private long getCount(String name) {
+        return metricRegistry.counter(MetricRegistry.name(RetryScheduler.class, "test", name)).getCount();
+    }
+
+    @Test
+    void first_attempt_should_run_on_calling_thread() throws Exception {
+        var callingThread = Thread.currentThread();
+        var result = createRetryScheduler(3).execute("test", () -> Thread.currentThread() == callingThread, e -> true);
+
+        assertThat(result.isDone()).isTrue();
+        assertThat(result.get()).isTrue();
+        assertEquals(1, getCount("attempts"));
+        assertEquals(0, getCount("retries"));
+    }
+
+    @Test
+    void retryable_errors_should_be_retried_until_success() throws Exception {
+        var calls = new AtomicInteger();
+        var result = createRetryScheduler(5).execute("test", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IllegalStateException("not yet");
+            }
+            return "done";
+        }, e -> e instanceof IllegalStateException);
+
+        assertEquals("done", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, calls.get());
+        assertEquals(3, getCount("attempts"));
+        assertEquals(2, getCount("retries"));
+        assertEquals(2, metricRegistry.timer(MetricRegistry.name(RetryScheduler.class, "test", "waiting")).getCount());
+    }
+
+    @Test
+    void retries_should_run_on_attempt_executor() throws Exception {
+        var threads = new ArrayList<String>();
+        var result = createRetryScheduler(3).execute("test", () -> {
+            threads.add(Thread.currentThread().getName());
+            if (threads.size() < 3) {
+                throw new IllegalStateException("not yet");
+            }
+            return "done";
+        }, e -> true);
+
+        assertEquals("done", result.get(5, TimeUnit.SECONDS));
+        assertThat(threads.subList(1, 3)).containsOnly("retry-attempt");
+    }
+
+    @Test
+    void should_give_up_after_max_attempts() {
+        var calls = new AtomicInteger();
+        var result = createRetryScheduler(3).execute("test", () -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("never");
+        }, e -> true);
+
+        var e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        assertEquals(3, calls.get());
+        assertEquals(1, getCount("exhausted"));
+    }
+
+    @Test
+    void non_retryable_errors_should_fail_immediately() {
+        var calls = new AtomicInteger();
+        var result = createRetryScheduler(3).execute("test", () -> {
+            calls.incrementAndGet();
+            throw new IllegalArgumentException("fatal");
+        }, e -> e instanceof IllegalStateException);
+
+        assertThat(result.isCompletedExceptionally()).isTrue();
+        assertEquals(1, calls.get());
+        assertEquals(0, getCount("retries"));
+    }
+
+    @Test
+    void delay_should_grow_exponentially_and_be_capped() {
+        var config = new RetryConfig();
+        config.setInitialDelay(Duration.milliseconds(100));
+        config.setMaxDelay(Duration.milliseconds(1000));
+        config.setMultiplier(2.0);
+        config.setJitter(0.1);
+        var retryScheduler = new RetryScheduler(scheduler, attemptExecutor, metricRegistry, config);
+
+        assertThat(retryScheduler.getDelayMillis(1)).isBetween(90L, 110L);
+        assertThat(retryScheduler.getDelayMillis(3)).isBetween(360L, 440L);
+        assertThat(retryScheduler.getDelayMillis(10)).isBetween(900L, 1100L);
+    }
+}
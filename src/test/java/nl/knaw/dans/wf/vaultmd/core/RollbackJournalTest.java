@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import io.dropwizard.jackson.Jackson;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_BAG_ID;
+import static nl.knaw.dans.wf.vaultmd.core.SetVaultMetadataTask.DANS_NBN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RollbackJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private RollbackJournal createJournal(int maxEntries) {
+        return new RollbackJournal(tempDir.resolve("journal/rollback-journal.ndjson"), Jackson.newObjectMapper(), maxEntries, 60_000, now::get);
+    }
+
+    private StepInvocation createInvocation(String id) {
+        return new StepInvocation(id, "doi:10.5072/" + id, "1", "1", "0");
+    }
+
+    private VaultFields createFields(String bagId) {
+        return VaultFields.of(Map.of(DANS_BAG_ID, bagId, DANS_NBN, "urn:nbn:nl:ui:13-test"));
+    }
+
+    @Test
+    void recorded_values_should_survive_restart() throws Exception {
+        var journal = createJournal(100);
+        journal.start();
+        journal.onEditing(createInvocation("first"), createFields("urn:uuid:first"));
+        journal.onEditing(createInvocation("second"), createFields("urn:uuid:second"));
+        journal.stop();
+
+        var restarted = createJournal(100);
+        restarted.start();
+
+        var entry = restarted.take("second");
+        assertThat(entry).isPresent();
+        assertThat(entry.get().getGlobalId()).isEqualTo("doi:10.5072/second");
+        assertThat(entry.get().getPrevious().getBagId()).isEqualTo("urn:uuid:second");
+        assertThat(entry.get().getPrevious().getNbn()).isEqualTo("urn:nbn:nl:ui:13-test");
+        assertThat(entry.get().getSequence()).isGreaterThan(restarted.take("first").orElseThrow().getSequence());
+        restarted.stop();
+    }
+
+    @Test
+    void taken_values_should_not_survive_restart() throws Exception {
+        var journal = createJournal(100);
+        journal.start();
+        journal.onEditing(createInvocation("taken"), createFields("urn:uuid:taken"));
+        journal.onEditing(createInvocation("kept"), createFields("urn:uuid:kept"));
+        assertThat(journal.take("taken")).isPresent();
+        journal.stop();
+
+        var restarted = createJournal(100);
+        restarted.start();
+
+        assertThat(restarted.contains("taken")).isFalse();
+        assertThat(restarted.contains("kept")).isTrue();
+        restarted.stop();
+    }
+
+    @Test
+    void new_entries_should_get_later_sequence_numbers_after_restart() throws Exception {
+        var journal = createJournal(100);
+        journal.start();
+        journal.onEditing(createInvocation("before"), createFields("urn:uuid:before"));
+        journal.stop();
+
+        var restarted = createJournal(100);
+        restarted.start();
+        restarted.onEditing(createInvocation("after"), createFields("urn:uuid:after"));
+
+        assertThat(restarted.take("after").orElseThrow().getSequence()).isGreaterThan(restarted.take("before").orElseThrow().getSequence());
+        restarted.stop();
+    }
+
+    @Test
+    void expired_values_should_not_be_loaded() throws Exception {
+        var journal = createJournal(100);
+        journal.start();
+        journal.onEditing(createInvocation("old"), createFields("urn:uuid:old"));
+        journal.stop();
+
+        now.addAndGet(60_000);
+        var restarted = createJournal(100);
+        restarted.start();
+
+        assertThat(restarted.size()).isZero();
+        restarted.stop();
+    }
+
+    @Test
+    void partially_written_last_line_should_be_skipped() throws Exception {
+        var journal = createJournal(100);
+        journal.start();
+        journal.onEditing(createInvocation("inv-1"), createFields("urn:uuid:inv-1"));
+        journal.stop();
+
+        Files.writeString(tempDir.resolve("journal/rollback-journal.ndjson"), "{\"type\":\"TAKEN\",\"invocationId\":\"inv", StandardCharsets.UTF_8,
+            StandardOpenOption.APPEND);
+
+        var restarted = createJournal(100);
+        restarted.start();
+
+        assertThat(restarted.contains("inv-1")).isTrue();
+        restarted.stop();
+    }
+
+    @Test
+    void journal_should_be_compacted_while_running() throws Exception {
+        var journal = createJournal(3);
+        journal.start();
+        for (var i = 0; i < 10; i++) {
+            journal.onEditing(createInvocation("inv-" + i), createFields("urn:uuid:" + i));
+        }
+        journal.stop();
+
+        // at most the entries held when the log was last rewritten, plus those written after it
+        assertThat(Files.readAllLines(tempDir.resolve("journal/rollback-journal.ndjson"))).hasSizeLessThan(10);
+
+        var restarted = createJournal(3);
+        restarted.start();
+        assertThat(restarted.size()).isEqualTo(3);
+        assertThat(restarted.contains("inv-9")).isTrue();
+        restarted.stop();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RollbackQueueTest {
+    private static final String GLOBAL_ID = "doi:10.5072/FK2/ROLLBACK";
+
+    private final DataverseService dataverseService = Mockito.mock(DataverseService.class);
+    private final RollbackJournal journal = new RollbackJournal(100, 60_000);
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final KeyedExecutor datasetExecutor = new KeyedExecutor(Runnable::run);
+    private final RollbackQueue queue = new RollbackQueue(dataverseService, journal, datasetExecutor, scheduled::add, 1, new MetricRegistry());
+
+    private StepInvocation createInvocation(String invocationId, String minorVersion) {
+        return new StepInvocation(invocationId, GLOBAL_ID, "1", "1", minorVersion);
+    }
+
+    private VaultFields vaultFields(String bagId, String nbn) {
+        return VaultFields.of(TestUtilities.createDatasetVersion(bagId, nbn, 1, 0, "DRAFT"));
+    }
+
+    private void runScheduled() {
+        var runnables = new ArrayList<>(scheduled);
+        scheduled.clear();
+        runnables.forEach(Runnable::run);
+    }
+
+    @Test
+    void rollbacks_for_the_same_dataset_should_restore_the_values_from_before_the_first_invocation_in_one_edit() throws Exception {
+        var first = createInvocation("1", "1");
+        var second = createInvocation("2", "2");
+        journal.onEditing(first, vaultFields("urn:uuid:original", "urn:nbn:nl:ui:13-original"));
+        journal.onEditing(second, vaultFields("urn:uuid:first", "urn:nbn:nl:ui:13-original"));
+        Mockito.when(dataverseService.getVersion(Mockito.any(), Mockito.eq(":draft")))
+            .thenReturn(Optional.of(TestUtilities.createDatasetVersion("urn:uuid:second", "urn:nbn:nl:ui:13-original", 1, 2, "DRAFT")));
+
+        queue.submit(first);
+        queue.submit(second);
+
+        assertThat(scheduled).hasSize(1);
+        assertThat(queue.getPendingCount()).isEqualTo(2);
+        runScheduled();
+
+        var captor = ArgumentCaptor.forClass(FieldList.class);
+        Mockito.verify(dataverseService).editMetadata(Mockito.eq(second), captor.capture());
+        assertThat(VaultFields.of(captor.getValue()).getBagId()).isEqualTo("urn:uuid:original");
+        assertThat(captor.getValue().getFields()).hasSize(1);
+        Mockito.verify(dataverseService, Mockito.never()).deleteMetadata(Mockito.any(), Mockito.any());
+        assertThat(queue.getPendingCount()).isZero();
+        assertThat(journal.size()).isZero();
+    }
+
+    @Test
+    void fields_that_were_empty_before_the_edit_should_be_removed() throws Exception {
+        var invocation = createInvocation("1", "0");
+        journal.onEditing(invocation, vaultFields(null, null));
+        Mockito.when(dataverseService.getVersion(invocation, ":draft"))
+            .thenReturn(Optional.of(TestUtilities.createDatasetVersion("urn:uuid:minted", "urn:nbn:nl:ui:13-minted", 1, 0, "DRAFT")));
+
+        queue.submit(invocation);
+        runScheduled();
+
+        var captor = ArgumentCaptor.forClass(FieldList.class);
+        Mockito.verify(dataverseService).deleteMetadata(Mockito.eq(invocation), captor.capture());
+        var removed = VaultFields.of(captor.getValue());
+        assertThat(removed.getBagId()).isEqualTo("urn:uuid:minted");
+        assertThat(removed.getNbn()).isEqualTo("urn:nbn:nl:ui:13-minted");
+        Mockito.verify(dataverseService, Mockito.never()).editMetadata(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    void rollback_without_recorded_values_should_not_be_queued() {
+        assertThat(queue.submit(createInvocation("1", "0"))).isFalse();
+
+        assertThat(scheduled).isEmpty();
+        assertThat(queue.getPendingCount()).isZero();
+        Mockito.verifyNoInteractions(dataverseService);
+    }
+
+    @Test
+    void rollback_should_wait_for_the_running_task_for_its_dataset() throws Exception {
+        var invocation = createInvocation("1", "0");
+        journal.onEditing(invocation, vaultFields(null, null));
+        Mockito.when(dataverseService.getVersion(invocation, ":draft"))
+            .thenReturn(Optional.of(TestUtilities.createDatasetVersion("urn:uuid:minted", null, 1, 0, "DRAFT")));
+        var task = new CompletableFuture<Void>();
+        datasetExecutor.executeAsync(GLOBAL_ID, () -> task);
+
+        assertThat(queue.submit(invocation)).isTrue();
+        assertThat(scheduled).isEmpty();
+
+        task.complete(null);
+        assertThat(scheduled).hasSize(1);
+        runScheduled();
+
+        Mockito.verify(dataverseService).deleteMetadata(Mockito.eq(invocation), Mockito.any());
+        assertThat(datasetExecutor.getActiveKeyCount()).isZero();
+    }
+
+    @Test
+    void re_run_of_an_invocation_should_keep_the_values_from_before_the_first_run() {
+        var invocation = createInvocation("1", "0");
+        journal.onEditing(invocation, vaultFields("urn:uuid:original", null));
+        journal.onEditing(invocation, vaultFields("urn:uuid:minted", null));
+
+        assertThat(journal.take("1")).map(e -> e.getPrevious().getBagId()).contains("urn:uuid:original");
+    }
+
+    @Test
+    void submit_should_throw_when_the_executor_rejects_the_rollback() {
+        var rejecting = new RollbackQueue(dataverseService, journal, new KeyedExecutor(r -> {
+            throw new RejectedExecutionException("full");
+        }), scheduled::add, 5, new MetricRegistry());
+        journal.onEditing(createInvocation("1", "0"), vaultFields(null, null));
+
+        assertThatThrownBy(() -> rejecting.submit(createInvocation("1", "0")))
+            .isInstanceOf(TaskQueueFullException.class)
+            .matches(e -> ((TaskQueueFullException) e).getRetryAfterSeconds() == 5);
+        assertThat(rejecting.getPendingCount()).isZero();
+    }
+}
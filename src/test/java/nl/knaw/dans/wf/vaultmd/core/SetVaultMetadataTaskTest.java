@@ -15,11 +15,15 @@
  */
 package nl.knaw.dans.wf.vaultmd.core;
 
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
 import nl.knaw.dans.lib.dataverse.DataverseException;
 import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
 import nl.knaw.dans.lib.dataverse.model.dataset.MetadataField;
 import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
 import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import org.junit.jupiter.api.AfterAll;
 import org.assertj.core.api.AbstractStringAssert;
 import org.assertj.core.api.InstanceOfAssertFactories;
 import org.junit.jupiter.api.BeforeEach;
@@ -29,6 +33,9 @@ import org.mockito.Mockito;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -48,6 +55,9 @@ class SetVaultMetadataTaskTest {
     private final IdMintingService mintingServiceMock = Mockito.spy(new IdMintingServiceImpl());
     private final IdValidator idValidator = new IdValidatorImpl();
 
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
     private static AbstractStringAssert<?> assertThatMetadataField(FieldList fieldList, String property) {
         return assertThat(fieldList.getFields())
             .filteredOn("typeName", property)
@@ -61,8 +71,21 @@ class SetVaultMetadataTaskTest {
         Mockito.reset(mintingServiceMock);
     }
 
+    @AfterAll
+    public static void afterAll() {
+        scheduler.shutdownNow();
+    }
+
     SetVaultMetadataTask createTask(StepInvocation step) {
-        return new SetVaultMetadataTask(step, dataverseServiceMock, mintingServiceMock, idValidator);
+        return createTask(step, TaskListener.NO_OP);
+    }
+
+    SetVaultMetadataTask createTask(StepInvocation step, TaskListener taskListener) {
+        var retryConfig = new RetryConfig();
+        retryConfig.setMaxAttempts(3);
+        retryConfig.setInitialDelay(Duration.milliseconds(1));
+        return new SetVaultMetadataTask(step, new TaskContext(dataverseServiceMock, null, mintingServiceMock, idValidator,
+            new RetryScheduler(scheduler, Runnable::run, metricRegistry, retryConfig), null), taskListener, new TaskMetrics(metricRegistry));
     }
 
     @Test
@@ -75,7 +98,7 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
@@ -84,6 +107,125 @@ class SetVaultMetadataTaskTest {
         Mockito.verify(dataverseServiceMock).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Success")));
     }
 
+    @Test
+    void runTask_should_fetch_version_history_only_once() throws IOException, DataverseException {
+        final var previousBagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+        var draft = createDatasetVersion(previousBagId, nbn, 1, 2, "DRAFT");
+        var previous1 = createDatasetVersion(previousBagId, nbn, 1, 1, "RELEASED");
+        var previous2 = createDatasetVersion(previousBagId, nbn, 1, 0, "RELEASED");
+
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.of(draft));
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
+            .thenReturn(List.of(previous1, previous2));
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "2");
+        var task = createTask(step);
+        task.runTask();
+
+        Mockito.verify(dataverseServiceMock, Mockito.times(1)).getVaultMetadataHistory(step);
+        Mockito.verify(dataverseServiceMock).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Success")));
+        // lock, fetch history, fetch draft, edit and resume
+        assertThat(task.getDataverseRoundTrips()).isEqualTo(5);
+    }
+
+    @Test
+    void runTask_should_retry_resume_when_dataverse_returns_404() throws Exception {
+        final var previousBagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+        var draft = createDatasetVersion(previousBagId, nbn, 1, 1, "DRAFT");
+        var previous = createDatasetVersion(previousBagId, nbn, 1, 0, "RELEASED");
+
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.of(draft));
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
+            .thenReturn(List.of(previous));
+        Mockito.when(dataverseServiceMock.resumeWorkflow(Mockito.any(), argThat(r -> r.getStatus().equals("Success"))))
+            .thenThrow(new DataverseException(404, "Not found"))
+            .thenReturn(null);
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
+        var task = createTask(step);
+        task.runTask();
+
+        Mockito.verify(dataverseServiceMock, Mockito.timeout(5000).times(2)).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Success")));
+        Mockito.verify(dataverseServiceMock, Mockito.after(100).never()).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Failure")));
+        assertThat(metricRegistry.counter(MetricRegistry.name(RetryScheduler.class, SetVaultMetadataTask.RESUME_STAGE, "retries")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    void runTask_should_time_every_phase() throws IOException, DataverseException {
+        final var previousBagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+        var draft = createDatasetVersion(previousBagId, nbn, 1, 1, "DRAFT");
+        var previous = createDatasetVersion(previousBagId, nbn, 1, 0, "RELEASED");
+
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.of(draft));
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
+            .thenReturn(List.of(previous));
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
+        createTask(step).runTask();
+
+        for (var phase : List.of("lock", "fetchDraft", "fetchHistory", "validate", "edit", "resume")) {
+            assertThat(metricRegistry.timer(MetricRegistry.name(SetVaultMetadataTask.class, phase)).getCount()).as(phase).isEqualTo(1);
+        }
+        assertThat(metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "succeeded")).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "failures")).getCount()).isZero();
+    }
+
+    @Test
+    void runTask_should_count_failures_by_exception_type() throws IOException, DataverseException {
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.empty());
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
+        createTask(step).runTask();
+
+        Mockito.verify(dataverseServiceMock).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Failure")));
+        assertThat(metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "failures")).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.counter(MetricRegistry.name(SetVaultMetadataTask.class, "failures", "IllegalArgumentException")).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.timer(MetricRegistry.name(SetVaultMetadataTask.class, "edit")).getCount()).isZero();
+    }
+
+    @Test
+    void runTask_should_retry_failure_resume_while_dataverse_is_unavailable() throws Exception {
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.empty());
+        Mockito.when(dataverseServiceMock.resumeWorkflow(Mockito.any(), argThat(r -> r.getStatus().equals("Failure"))))
+            .thenThrow(new DataverseUnavailableException("The circuit breaker for Dataverse is open"))
+            .thenReturn(null);
+        var listener = Mockito.mock(TaskListener.class);
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
+        createTask(step, listener).runTask().get(5, TimeUnit.SECONDS);
+
+        Mockito.verify(dataverseServiceMock, Mockito.times(2)).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Failure")));
+        Mockito.verify(listener).onFailed(eq(step), Mockito.any());
+        Mockito.verify(listener, Mockito.never()).onAbandoned(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    void runTask_should_abandon_invocation_when_failure_cannot_be_reported() throws Exception {
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.empty());
+        Mockito.when(dataverseServiceMock.resumeWorkflow(Mockito.any(), argThat(r -> r.getStatus().equals("Failure"))))
+            .thenThrow(new DataverseUnavailableException("The circuit breaker for Dataverse is open"));
+        var listener = Mockito.mock(TaskListener.class);
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
+        createTask(step, listener).runTask().get(5, TimeUnit.SECONDS);
+
+        Mockito.verify(dataverseServiceMock, Mockito.times(3)).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Failure")));
+        Mockito.verify(listener).onAbandoned(eq(step), Mockito.any());
+        Mockito.verify(listener, Mockito.never()).onFailed(Mockito.any(), Mockito.any());
+    }
+
     @Test
     void getVaultMetadata_with_inherited_bagId_and_nbn() throws IOException, DataverseException {
         final var previousBagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
@@ -95,13 +237,13 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
         Mockito.when(mintingServiceMock.mintBagId()).thenReturn(newBagId);
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         assertThatMetadataField(metadata, "dansDataversePid").isEqualTo("globalId");
         assertThatMetadataField(metadata, "dansDataversePidVersion").isEqualTo("1.1");
@@ -118,14 +260,14 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of());
         Mockito.when(mintingServiceMock.mintBagId()).thenReturn(newBagId);
         Mockito.when(mintingServiceMock.mintUrnNbn()).thenReturn(newNbn);
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         assertThatMetadataField(metadata, "dansDataversePid").isEqualTo("globalId");
         assertThatMetadataField(metadata, "dansDataversePidVersion").isEqualTo("1.0");
@@ -144,12 +286,12 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         assertThatMetadataField(metadata, "dansDataversePid").isEqualTo("globalId");
         assertThatMetadataField(metadata, "dansDataversePidVersion").isEqualTo("1.1");
@@ -157,6 +299,37 @@ class SetVaultMetadataTaskTest {
         assertThatMetadataField(metadata, "dansNbn").isEqualTo(nbn);
     }
 
+    @Test
+    void getVaultMetadata_should_mint_new_bagId_if_draft_bagId_is_registered_for_other_dataset() throws IOException, DataverseException {
+        final var previousBagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+        final var draftBagId = "urn:uuid:cbdf4d18-65af-42d2-baf3-6ca07ddfd3b2";
+        final var mintedBagId = "urn:uuid:9d1b4dbb-2a07-4b8c-8f34-66d0e5cf2d0e";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+        final var registeredNbn = "urn:nbn:nl:ui:13-registered";
+
+        var draft = createDatasetVersion(draftBagId, nbn, 1, 1, "DRAFT");
+        var previous = createDatasetVersion(previousBagId, nbn, 1, 0, "RELEASED");
+
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.of(draft));
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
+            .thenReturn(List.of(previous));
+        Mockito.when(mintingServiceMock.mintBagId()).thenReturn(mintedBagId);
+
+        var idRegistry = Mockito.mock(IdRegistry.class);
+        Mockito.when(idRegistry.findByBagId(draftBagId))
+            .thenReturn(Optional.of(new IdRegistryEntry("otherGlobalId", "1.0", nbn, draftBagId)));
+        Mockito.when(idRegistry.getNbn("globalId")).thenReturn(Optional.of(registeredNbn));
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
+        var task = new SetVaultMetadataTask(step, new TaskContext(dataverseServiceMock, null, mintingServiceMock, idValidator, null, idRegistry),
+            TaskListener.NO_OP, new TaskMetrics(metricRegistry));
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
+
+        assertThatMetadataField(metadata, "dansBagId").isEqualTo(mintedBagId);
+        assertThatMetadataField(metadata, "dansNbn").isEqualTo(registeredNbn);
+    }
+
     @Test
     void getVaultMetadata_without_previous_version_and_null_bagId_and_nbn() throws IOException, DataverseException {
         final var newBagId = "urn:uuid:cbdf4d18-65af-42d2-baf3-6ca07ddfd3b2";
@@ -166,14 +339,14 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of());
         Mockito.when(mintingServiceMock.mintBagId()).thenReturn(newBagId);
         Mockito.when(mintingServiceMock.mintUrnNbn()).thenReturn(newNbn);
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         assertThatMetadataField(metadata, "dansDataversePid").isEqualTo("globalId");
         assertThatMetadataField(metadata, "dansDataversePidVersion").isEqualTo("1.0");
@@ -190,14 +363,14 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of());
         Mockito.when(mintingServiceMock.mintBagId()).thenReturn(newBagId);
         Mockito.when(mintingServiceMock.mintUrnNbn()).thenReturn(newNbn);
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         assertThatMetadataField(metadata, "dansDataversePid").isEqualTo("globalId");
         assertThatMetadataField(metadata, "dansDataversePidVersion").isEqualTo("1.0");
@@ -216,14 +389,14 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
         Mockito.when(mintingServiceMock.mintBagId())
             .thenReturn(newBagId);
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         // the draft does not have a bag ID, but the previous version has, so it should mint a new bag ID
         assertThatMetadataField(metadata, "dansDataversePid").isEqualTo("globalId");
@@ -245,14 +418,14 @@ class SetVaultMetadataTaskTest {
 
         Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
             .thenReturn(Optional.of(draft));
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(deaccessioned, previous));
         Mockito.when(mintingServiceMock.mintBagId())
             .thenReturn(newBagId);
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
-        var metadata = task.getVaultMetadata(step);
+        var metadata = task.getVaultMetadata(step, task.fetchVersionHistory(step));
 
         // the draft has the same ID as the previously published version, but different from the latest version which is deaccessioned
         // see https://drivenbydata.atlassian.net/browse/DD-1211 for more details
@@ -270,12 +443,13 @@ class SetVaultMetadataTaskTest {
 
         var previous = createDatasetVersion(bagId, nbn, 1, 0, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
-        assertDoesNotThrow(() -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.0")));
+        var history = task.fetchVersionHistory(step);
+        assertDoesNotThrow(() -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.0"), history));
     }
 
     @Test
@@ -286,13 +460,14 @@ class SetVaultMetadataTaskTest {
 
         var previous = createDatasetVersion(bagId, nbn, 1, 0, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
         assertThrows(IllegalArgumentException.class,
-            () -> task.validateBagMetadata(step, createFieldList(null, nbn, "globalId", "1.0")));
+            () -> task.validateBagMetadata(step, createFieldList(null, nbn, "globalId", "1.0"), history));
     }
 
     @Test
@@ -303,13 +478,14 @@ class SetVaultMetadataTaskTest {
 
         var previous = createDatasetVersion(bagId, nbn, 1, 0, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
         assertThrows(IllegalArgumentException.class,
-            () -> task.validateBagMetadata(step, createFieldList(newBagId, null, "globalId", "1.0")));
+            () -> task.validateBagMetadata(step, createFieldList(newBagId, null, "globalId", "1.0"), history));
     }
 
     @Test
@@ -320,13 +496,14 @@ class SetVaultMetadataTaskTest {
 
         var previous = createDatasetVersion(bagId, nbn, 1, 0, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
         assertThrows(IllegalArgumentException.class,
-            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, null, "1.0")));
+            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, null, "1.0"), history));
     }
 
     @Test
@@ -334,12 +511,13 @@ class SetVaultMetadataTaskTest {
         final var newBagId = "urn:uuid:cbdf4d18-65af-42d2-baf3-6ca07ddfd3b2";
         final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of());
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
         var task = createTask(step);
-        assertDoesNotThrow(() -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, null, "1.0")));
+        var history = task.fetchVersionHistory(step);
+        assertDoesNotThrow(() -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, null, "1.0"), history));
     }
 
     @Test
@@ -350,14 +528,15 @@ class SetVaultMetadataTaskTest {
 
         var previous = createDatasetVersion(bagId, nbn, 1, 0, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
 
         assertThrows(IllegalArgumentException.class,
-            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", null)));
+            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", null), history));
     }
 
     @Test
@@ -365,13 +544,14 @@ class SetVaultMetadataTaskTest {
         final var newBagId = "urn:uuid:cbdf4d18-65af-42d2-baf3-6ca07ddfd3b2";
         final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of());
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
 
-        assertDoesNotThrow(() -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", null)));
+        assertDoesNotThrow(() -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", null), history));
     }
 
     @Test
@@ -379,14 +559,15 @@ class SetVaultMetadataTaskTest {
         final var newBagId = "urn:uuid:cbdf4d18-65af-42d2-baf3-6ca07ddfd3b2";
         final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of());
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
 
         assertThrows(IllegalArgumentException.class,
-            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.1")));
+            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.1"), history));
     }
 
     @Test
@@ -397,14 +578,15 @@ class SetVaultMetadataTaskTest {
 
         var previous = createDatasetVersion(bagId, null, 1, 0, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
 
         assertThrows(IllegalStateException.class,
-            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.1")));
+            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.1"), history));
     }
 
     @Test
@@ -417,14 +599,73 @@ class SetVaultMetadataTaskTest {
         var previous1 = createDatasetVersion(bagId, nbn, 1, 0, "RELEASED");
         var previous2 = createDatasetVersion(bagId, otherNbn, 1, 1, "RELEASED");
 
-        Mockito.when(dataverseServiceMock.getAllReleasedOrDeaccessionedVersion(Mockito.any()))
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
             .thenReturn(List.of(previous1, previous2));
 
         var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "2");
         var task = createTask(step);
+        var history = task.fetchVersionHistory(step);
 
         assertThrows(IllegalStateException.class,
-            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.2")));
+            () -> task.validateBagMetadata(step, createFieldList(newBagId, nbn, "globalId", "1.2"), history));
+    }
+
+    @Test
+    void validateBagMetadata_should_check_older_versions_also_when_nbn_is_registered() throws Exception {
+        final var bagId = "urn:uuid:cbdf4d18-65af-42d2-baf3-6ca07ddfd3b2";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+        var previous = createDatasetVersion(bagId, null, 1, 0, "RELEASED");
+        var idRegistry = Mockito.mock(IdRegistry.class);
+        Mockito.when(idRegistry.getNbn("globalId")).thenReturn(Optional.of(nbn));
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "1");
+        var task = new SetVaultMetadataTask(step, new TaskContext(dataverseServiceMock, null, mintingServiceMock, idValidator, null, idRegistry),
+            TaskListener.NO_OP, new TaskMetrics(metricRegistry));
+
+        assertThrows(IllegalStateException.class,
+            () -> task.validateBagMetadata(step, createFieldList(bagId, nbn, "globalId", "1.1"), new VersionHistory(List.of(previous))));
+    }
+
+    @Test
+    void runTask_should_skip_edit_when_draft_already_holds_the_generated_values() throws IOException, DataverseException {
+        final var bagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+        // the draft was already edited by an earlier run of the same invocation
+        var draft = createDatasetVersion(bagId, nbn, 1, 0, "DRAFT");
+        draft.getMetadataBlocks().get("dansDataVaultMetadata").getFields()
+            .add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION, "1.0"));
+
+        Mockito.when(dataverseServiceMock.getVersion(Mockito.any(), Mockito.any()))
+            .thenReturn(Optional.of(draft));
+        Mockito.when(dataverseServiceMock.getVaultMetadataHistory(Mockito.any()))
+            .thenReturn(List.of());
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
+        var metrics = new TaskMetrics(metricRegistry);
+        var task = new SetVaultMetadataTask(step, new TaskContext(dataverseServiceMock, null, mintingServiceMock, idValidator,
+            new RetryScheduler(scheduler, Runnable::run, metricRegistry, new RetryConfig()), null), TaskListener.NO_OP, metrics);
+        task.runTask();
+
+        Mockito.verify(dataverseServiceMock, Mockito.never()).editMetadata(Mockito.any(), Mockito.any());
+        Mockito.verify(dataverseServiceMock).resumeWorkflow(eq(step), argThat(r -> r.getStatus().equals("Success")));
+        assertThat(metrics.getEditSkippedCount()).isEqualTo(1);
+        assertThat(metrics.getUnchangedFieldsCount()).isEqualTo(4);
+    }
+
+    @Test
+    void prepareEdit_should_only_return_the_fields_that_differ_from_the_draft() {
+        final var bagId = "urn:uuid:530dc968-4430-4186-bf58-08d98d717889";
+        final var nbn = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+        var step = new StepInvocation("invokeId", "globalId", "datasetId", "1", "0");
+        var draft = createDatasetVersion(bagId, nbn, 1, 0, "DRAFT");
+
+        var changed = createTask(step).prepareEdit(draft, createFieldList(bagId, nbn, "globalId", "1.0"));
+
+        assertThat(changed.getFields()).extracting("typeName").containsExactly(SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION);
+        assertThatMetadataField(changed, SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION).isEqualTo("1.0");
     }
 
     FieldList createFieldList(String bagId, String nbn, String pid, String version) {
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SharedLockPollerTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final DatasetLocksClient locksClient = Mockito.mock(DatasetLocksClient.class);
+    private final LockWaitMetrics metrics = new LockWaitMetrics(new MetricRegistry());
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private StepInvocation stepInvocation(String globalId) {
+        return new StepInvocation("invocation-" + globalId, globalId, "1", "1", "0");
+    }
+
+    private CompletableFuture<Void> awaitAsync(SharedLockPoller poller, String globalId) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                poller.awaitLock(stepInvocation(globalId), "Workflow");
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    void poll_should_release_all_waiters_with_one_request() throws Exception {
+        when(locksClient.getLockedDatasets("Workflow")).thenReturn(Set.of("doi:10.5072/dans-1", "doi:10.5072/dans-2"));
+        var poller = new SharedLockPoller(locksClient, scheduler, 10, 10_000, metrics);
+
+        var first = awaitAsync(poller, "doi:10.5072/dans-1");
+        var second = awaitAsync(poller, "doi:10.5072/dans-2");
+
+        while (poller.getWaitingCount() < 2) {
+            Thread.sleep(1);
+        }
+        poller.poll();
+
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        verify(locksClient, atMost(1)).getLockedDatasets("Workflow");
+        assertThat(metrics.getPollCount()).isEqualTo(1);
+        assertThat(poller.getWaitingCount()).isZero();
+    }
+
+    @Test
+    void waiter_should_keep_waiting_after_failed_poll_and_time_out() throws Exception {
+        when(locksClient.getLockedDatasets("Workflow")).thenThrow(new DataverseException(403, "Forbidden"));
+        var poller = new SharedLockPoller(locksClient, scheduler, 5, 50, metrics);
+        poller.start();
+
+        assertThatThrownBy(() -> poller.awaitLock(stepInvocation("doi:10.5072/dans-1"), "Workflow"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("doi:10.5072/dans-1");
+        assertThat(metrics.getTimeoutCount()).isEqualTo(1);
+        poller.stop();
+    }
+
+    @Test
+    void poll_should_not_contact_dataverse_when_nobody_is_waiting() throws Exception {
+        var poller = new SharedLockPoller(locksClient, scheduler, 10, 10_000, metrics);
+
+        poller.poll();
+
+        verify(locksClient, Mockito.never()).getLockedDatasets(Mockito.any());
+    }
+
+    @Test
+    void readLockedDatasets_should_return_the_dataset_of_every_lock() throws Exception {
+        var json = "{\"status\":\"OK\",\"data\":["
+            + "{\"lockType\":\"Workflow\",\"date\":\"2023-01-01T00:00:00Z\",\"user\":\"dataverseAdmin\",\"dataset\":\"doi:10.5072/dans-1\"},"
+            + "{\"lockType\":\"Workflow\",\"date\":\"2023-01-01T00:00:01Z\",\"user\":\"dataverseAdmin\",\"dataset\":\"doi:10.5072/dans-2\"}]}";
+
+        var result = DatasetLocksClient.readLockedDatasets(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(result).containsExactlyInAnyOrder("doi:10.5072/dans-1", "doi:10.5072/dans-2");
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StrictIdValidatorTest {
+    private final StrictIdValidator validator = new StrictIdValidator();
+
+    @Test
+    void isValidUrnUuid_should_accept_canonical_uuids_in_any_case() {
+        assertThat(validator.isValidUrnUuid("urn:uuid:06aeda5a-c0b1-4612-ae9a-43d682c51e1e")).isTrue();
+        assertThat(validator.isValidUrnUuid("URN:UUID:06AEDA5A-C0B1-4612-AE9A-43D682C51E1E")).isTrue();
+    }
+
+    @Test
+    void isValidUrnUuid_should_reject_everything_else() {
+        assertThat(validator.isValidUrnUuid(null)).isFalse();
+        assertThat(validator.isValidUrnUuid("")).isFalse();
+        assertThat(validator.isValidUrnUuid("urn:nbn:06aeda5a-c0b1-4612-ae9a-43d682c51e1e")).isFalse();
+        assertThat(validator.isValidUrnUuid("urn:uuid:nonuuid:06aeda5a-c0b1-4612-ae9a-43d682c51e1e")).isFalse();
+        assertThat(validator.isValidUrnUuid("urn:uuid:06aeda5a-c0b1-4612-ae9a-43d682c51e1g")).isFalse();
+        assertThat(validator.isValidUrnUuid("urn:uuid:06aeda5ac-0b1-4612-ae9a-43d682c51e1e")).isFalse();
+        assertThat(validator.isValidUrnUuid("urn:uuid:06aeda5a-c0b1-4612-ae9a-43d682c51e1e ")).isFalse();
+        // accepted by UUID.fromString, but not canonical
+        assertThat(validator.isValidUrnUuid("urn:uuid:1-1-1-1-1")).isFalse();
+    }
+
+    @Test
+    void isValidUrnNbn_should_accept_minted_and_legacy_nbns() {
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13-06aeda5a-c0b1-4612-ae9a-43d682c51e1e")).isTrue();
+        assertThat(validator.isValidUrnNbn("URN:NBN:NL:UI:13-06aeda5a-c0b1-4612-ae9a-43d682c51e1e")).isTrue();
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13-2ajw-cq")).isTrue();
+    }
+
+    @Test
+    void isValidUrnNbn_should_reject_everything_else() {
+        assertThat(validator.isValidUrnNbn(null)).isFalse();
+        assertThat(validator.isValidUrnNbn("")).isFalse();
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13-")).isFalse();
+        assertThat(validator.isValidUrnNbn("   urn:nbn:nl:ui:13-2ajw-cq")).isFalse();
+        assertThat(validator.isValidUrnNbn("urn:uuid:nl:ui:13-2ajw-cq")).isFalse();
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13-2ajw--cq")).isFalse();
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13--2ajw")).isFalse();
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13-2ajw-")).isFalse();
+        assertThat(validator.isValidUrnNbn("urn:nbn:nl:ui:13-2ajw cq")).isFalse();
+    }
+
+    @Test
+    void validateAll_should_return_indexes_of_invalid_ids() {
+        var ids = Arrays.asList(
+            "urn:uuid:06aeda5a-c0b1-4612-ae9a-43d682c51e1e",
+            "urn:uuid:06aeda5a",
+            null,
+            "URN:UUID:530dc968-4430-4186-bf58-08d98d717889");
+
+        var invalid = validator.validateAll(ids, StrictIdValidator.IdType.URN_UUID);
+
+        assertThat(invalid.stream().toArray()).containsExactly(1, 2);
+        assertThat(validator.validateAll(ids, StrictIdValidator.IdType.URN_NBN).cardinality()).isEqualTo(4);
+    }
+}
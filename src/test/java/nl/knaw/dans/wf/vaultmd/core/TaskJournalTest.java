@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import io.dropwizard.jackson.Jackson;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TaskJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private TaskJournal createJournal() {
+        return createJournal(1000);
+    }
+
+    private TaskJournal createJournal(int compactAfter) {
+        return new TaskJournal(tempDir.resolve("journal/task-journal.ndjson"), 16, compactAfter, Jackson.newObjectMapper());
+    }
+
+    private StepInvocation createInvocation(String id) {
+        return new StepInvocation(id, "doi:10.5072/" + id, "1", "1", "0");
+    }
+
+    @Test
+    void incomplete_invocations_should_be_replayed_after_restart() throws Exception {
+        var journal = createJournal();
+        journal.start();
+
+        var completed = createInvocation("completed");
+        var failed = createInvocation("failed");
+        var running = createInvocation("running");
+        var queued = createInvocation("queued");
+
+        journal.accepted(completed);
+        journal.accepted(failed);
+        journal.accepted(running);
+        journal.accepted(queued);
+        journal.onStarted(completed);
+        journal.onResumed(completed);
+        journal.onStarted(failed);
+        journal.onFailed(failed, new RuntimeException("test"));
+        journal.onStarted(running);
+        journal.stop();
+
+        var restarted = createJournal();
+        restarted.start();
+
+        assertThat(restarted.getIncompleteInvocations())
+            .extracting(StepInvocation::getInvocationId)
+            .containsExactly("running", "queued");
+        assertThat(restarted.getIncompleteInvocations())
+            .extracting(StepInvocation::getGlobalId)
+            .containsExactly("doi:10.5072/running", "doi:10.5072/queued");
+        restarted.stop();
+    }
+
+    @Test
+    void journal_should_be_compacted_at_startup() throws Exception {
+        var journal = createJournal();
+        journal.start();
+
+        for (var i = 0; i < 10; ++i) {
+            var invocation = createInvocation("inv-" + i);
+            journal.accepted(invocation);
+            journal.onStarted(invocation);
+            if (i > 0) {
+                journal.onResumed(invocation);
+            }
+        }
+        journal.stop();
+
+        var restarted = createJournal();
+        restarted.start();
+        restarted.stop();
+
+        var lines = Files.readAllLines(tempDir.resolve("journal/task-journal.ndjson"), StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(1);
+        assertThat(lines.get(0)).contains("\"type\":\"ACCEPTED\"", "\"invocationId\":\"inv-0\"");
+    }
+
+    @Test
+    void journal_should_be_compacted_while_running() throws Exception {
+        var journal = createJournal(5);
+        journal.start();
+
+        for (var i = 0; i < 10; ++i) {
+            journal.accepted(createInvocation("inv-" + i));
+        }
+        for (var i = 1; i <= 5; ++i) {
+            journal.append(TaskJournalEntry.of(TaskJournalEntry.Type.RESUMED, createInvocation("inv-" + i))).get();
+        }
+        journal.accepted(createInvocation("inv-10"));
+        journal.stop();
+
+        var lines = Files.readAllLines(tempDir.resolve("journal/task-journal.ndjson"), StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(6).allMatch(line -> line.contains("\"type\":\"ACCEPTED\""));
+
+        var restarted = createJournal(5);
+        restarted.start();
+        assertThat(restarted.getIncompleteInvocations())
+            .extracting(StepInvocation::getInvocationId)
+            .containsExactly("inv-0", "inv-6", "inv-7", "inv-8", "inv-9", "inv-10");
+        restarted.stop();
+    }
+
+    @Test
+    void partially_written_last_line_should_be_skipped() throws Exception {
+        var journal = createJournal();
+        journal.start();
+        journal.accepted(createInvocation("inv-1"));
+        journal.stop();
+
+        Files.writeString(tempDir.resolve("journal/task-journal.ndjson"), "{\"type\":\"RESUMED\",\"invocationId\":\"inv", StandardCharsets.UTF_8,
+            StandardOpenOption.APPEND);
+
+        var restarted = createJournal();
+        restarted.start();
+
+        assertThat(restarted.getIncompleteInvocations())
+            .extracting(StepInvocation::getInvocationId)
+            .containsExactly("inv-1");
+        restarted.stop();
+    }
+
+    @Test
+    void concurrent_appends_should_all_be_written() throws Exception {
+        var journal = createJournal();
+        journal.start();
+
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (var i = 0; i < 1000; ++i) {
+            futures.add(journal.append(TaskJournalEntry.accepted(createInvocation("inv-" + i))));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        journal.stop();
+
+        var lines = Files.readAllLines(tempDir.resolve("journal/task-journal.ndjson"), StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(1000);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.wf.vaultmd.api.StepInvocation;
+import nl.knaw.dans.wf.vaultmd.config.AdmissionConfig;
+import nl.knaw.dans.wf.vaultmd.config.RetryConfig;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskQueueTest {
+    private final DataverseService dataverseServiceMock = Mockito.mock(DataverseService.class);
+
+    private final List<Runnable> scheduled = new ArrayList<>();
+
+    // an executor that only collects the tasks, so that they stay pending until run by the test
+    private final Executor collectingExecutor = scheduled::add;
+
+    private TaskQueue createTaskQueue(Executor executor, int maxPendingTasks) {
+        var admissionConfig = new AdmissionConfig();
+        admissionConfig.setMaxPendingTasks(maxPendingTasks);
+        admissionConfig.setMinRetryAfter(Duration.seconds(2));
+        admissionConfig.setMaxRetryAfter(Duration.seconds(20));
+        return new TaskQueue(new KeyedExecutor(executor), createContext(), admissionConfig, null, new InvocationDeduplicator(100, 60_000), null, null,
+            new MetricRegistry());
+    }
+
+    private TaskContext createContext() {
+        var retryScheduler = new RetryScheduler(Mockito.mock(ScheduledExecutorService.class), Runnable::run, new MetricRegistry(), new RetryConfig());
+        return new TaskContext(dataverseServiceMock, null, new IdMintingServiceImpl(), new IdValidatorImpl(), retryScheduler, null);
+    }
+
+    private StepInvocation createInvocation(String id) {
+        return new StepInvocation(id, "doi:10.5072/" + id, "1", "1", "0");
+    }
+
+    @Test
+    void submit_should_refuse_invocations_above_high_water_mark() throws Exception {
+        var taskQueue = createTaskQueue(collectingExecutor, 2);
+
+        taskQueue.submit(createInvocation("1"));
+        taskQueue.submit(createInvocation("2"));
+        assertEquals(2, taskQueue.getQueuedCount());
+
+        var e = assertThrows(TaskQueueFullException.class, () -> taskQueue.submit(createInvocation("3")));
+        assertFalse(e.isRejectedByExecutor());
+        // nothing has completed yet, so the drain rate is unknown
+        assertEquals(20, e.getRetryAfterSeconds());
+        assertEquals(1, taskQueue.getRejectedCount());
+    }
+
+    @Test
+    void submit_should_accept_invocations_again_after_tasks_complete() throws Exception {
+        var taskQueue = createTaskQueue(collectingExecutor, 1);
+
+        taskQueue.submit(createInvocation("1"));
+        assertThrows(TaskQueueFullException.class, () -> taskQueue.submit(createInvocation("2")));
+
+        scheduled.remove(0).run();
+        assertEquals(0, taskQueue.getPendingCount());
+
+        taskQueue.submit(createInvocation("3"));
+        assertEquals(1, taskQueue.getPendingCount());
+        // a task has completed, so the retry after is based on the drain rate, but at least the minimum
+        assertThat(taskQueue.getRetryAfterSeconds(1)).isBetween(2L, 20L);
+    }
+
+    @Test
+    void task_should_hold_its_dataset_until_the_workflow_is_resumed() throws Exception {
+        var resumed = new CompletableFuture<Void>();
+        var admissionConfig = new AdmissionConfig();
+        admissionConfig.setMaxPendingTasks(10);
+        var taskQueue = new TaskQueue(new KeyedExecutor(collectingExecutor), createContext(), admissionConfig, null, new InvocationDeduplicator(100, 60_000), null,
+            null, new MetricRegistry()) {
+
+            @Override
+            SetVaultMetadataTask createTask(StepInvocation stepInvocation) {
+                var task = Mockito.mock(SetVaultMetadataTask.class);
+                Mockito.when(task.start()).thenReturn(resumed);
+                return task;
+            }
+        };
+
+        taskQueue.submit(new StepInvocation("1", "doi:10.5072/same", "1", "1", "0"));
+        taskQueue.submit(new StepInvocation("2", "doi:10.5072/same", "1", "2", "0"));
+        scheduled.remove(0).run();
+
+        // the first task has returned, but its resume is still in flight
+        assertEquals(1, taskQueue.getRunningCount());
+        assertEquals(0, scheduled.size());
+
+        resumed.complete(null);
+        assertEquals(1, scheduled.size());
+    }
+
+    @Test
+    void submit_should_refuse_invocations_while_circuit_breaker_is_open() {
+        var now = new AtomicLong();
+        var circuitBreaker = new CircuitBreaker(1, 30_000, 1, now::get);
+        circuitBreaker.tryAcquire();
+        circuitBreaker.onFailure();
+        var admissionConfig = new AdmissionConfig();
+        admissionConfig.setMinRetryAfter(Duration.seconds(2));
+        var taskQueue = new TaskQueue(new KeyedExecutor(collectingExecutor), createContext(), admissionConfig, circuitBreaker,
+            new InvocationDeduplicator(100, 60_000), null, null, new MetricRegistry());
+
+        var e = assertThrows(TaskQueueFullException.class, () -> taskQueue.submit(createInvocation("1")));
+        assertTrue(e.isRejectedByExecutor());
+        assertEquals(30, e.getRetryAfterSeconds());
+        assertEquals(0, scheduled.size());
+
+        // the breaker lets a probe through after the open period, so invocations are accepted again
+        now.addAndGet(30_000);
+        assertDoesNotThrow(() -> taskQueue.submit(createInvocation("1")));
+        assertEquals(1, scheduled.size());
+    }
+
+    @Test
+    void submit_should_ignore_duplicate_invocation() throws Exception {
+        var taskQueue = createTaskQueue(collectingExecutor, 10);
+
+        assertTrue(taskQueue.submit(createInvocation("1")));
+        assertFalse(taskQueue.submit(createInvocation("1")));
+        assertEquals(1, scheduled.size());
+
+        // a completed invocation is still recognized as a duplicate
+        scheduled.remove(0).run();
+        assertFalse(taskQueue.submit(createInvocation("1")));
+        assertEquals(0, scheduled.size());
+    }
+
+    @Test
+    void concurrent_submits_should_not_exceed_high_water_mark() throws Exception {
+        var collected = Collections.synchronizedList(new ArrayList<Runnable>());
+        var taskQueue = createTaskQueue(collected::add, 5);
+        var threads = Executors.newFixedThreadPool(8);
+        var start = new CountDownLatch(1);
+        var accepted = new AtomicInteger();
+
+        for (var i = 0; i < 100; ++i) {
+            var invocation = createInvocation(String.valueOf(i));
+            threads.execute(() -> {
+                try {
+                    start.await();
+                    if (taskQueue.submit(invocation)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+                catch (TaskQueueFullException e) {
+                    // expected for all but the first five
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        start.countDown();
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(5, accepted.get());
+        assertEquals(5, taskQueue.getPendingCount());
+        assertEquals(95, taskQueue.getRejectedCount());
+    }
+
+    @Test
+    void submit_should_report_executor_rejection() {
+        Executor rejectingExecutor = command -> {
+            throw new RejectedExecutionException("queue full");
+        };
+        var taskQueue = createTaskQueue(rejectingExecutor, 10);
+
+        var e = assertThrows(TaskQueueFullException.class, () -> taskQueue.submit(createInvocation("1")));
+        assertTrue(e.isRejectedByExecutor());
+        assertEquals(0, taskQueue.getPendingCount());
+    }
+
+    @Test
+    void submitAll_should_accept_what_fits_and_reject_the_rest() throws Exception {
+        var taskQueue = createTaskQueue(collectingExecutor, 3);
+        taskQueue.submit(createInvocation("1"));
+
+        var results = taskQueue.submitAll(List.of(createInvocation("1"), createInvocation("2"), createInvocation("3"), createInvocation("4")));
+
+        assertThat(results).containsExactly(TaskQueue.Submission.DUPLICATE, TaskQueue.Submission.ACCEPTED, TaskQueue.Submission.ACCEPTED,
+            TaskQueue.Submission.REJECTED);
+        assertEquals(3, taskQueue.getPendingCount());
+        assertEquals(1, taskQueue.getRejectedCount());
+
+        // the rejected invocation is not remembered as a duplicate, so it can be submitted again
+        scheduled.remove(0).run();
+        assertThat(taskQueue.submitAll(List.of(createInvocation("4")))).containsExactly(TaskQueue.Submission.ACCEPTED);
+    }
+
+    @Test
+    void submitAll_should_throw_when_queue_is_full() throws Exception {
+        var taskQueue = createTaskQueue(collectingExecutor, 1);
+        taskQueue.submit(createInvocation("1"));
+
+        assertThrows(TaskQueueFullException.class, () -> taskQueue.submitAll(List.of(createInvocation("2"), createInvocation("3"))));
+        assertEquals(2, taskQueue.getRejectedCount());
+
+        scheduled.remove(0).run();
+        assertThat(taskQueue.submitAll(List.of(createInvocation("2")))).containsExactly(TaskQueue.Submission.ACCEPTED);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import nl.knaw.dans.lib.dataverse.model.dataset.FieldList;
+import nl.knaw.dans.lib.dataverse.model.dataset.PrimitiveSingleValueField;
+import org.junit.jupiter.api.Test;
+
+import static nl.knaw.dans.wf.vaultmd.core.TestUtilities.createDatasetVersion;
+import static nl.knaw.dans.wf.vaultmd.core.TestUtilities.createDatasetVersionWithoutVaultMetadataBlock;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VaultFieldsTest {
+
+    @Test
+    void of_dataset_version_should_index_all_vault_fields() {
+        var version = createDatasetVersion("urn:uuid:530dc968-4430-4186-bf58-08d98d717889", "urn:nbn:nl:ui:13-1", 1, 0, "RELEASED");
+
+        var fields = VaultFields.of(version);
+
+        assertThat(fields.getBagId()).isEqualTo("urn:uuid:530dc968-4430-4186-bf58-08d98d717889");
+        assertThat(fields.getNbn()).isEqualTo("urn:nbn:nl:ui:13-1");
+        assertThat(fields.getDataversePid()).isEqualTo("globalId");
+        assertThat(fields.getDataversePidVersion()).isNull();
+        assertThat(fields.get(SetVaultMetadataTask.DANS_NBN)).isEqualTo("urn:nbn:nl:ui:13-1");
+        assertThat(fields.get("title")).isNull();
+    }
+
+    @Test
+    void of_dataset_version_should_return_null_for_empty_value() {
+        var version = createDatasetVersion("", "urn:nbn:nl:ui:13-1", 1, 0, "RELEASED");
+
+        assertThat(VaultFields.of(version).getBagId()).isNull();
+    }
+
+    @Test
+    void of_dataset_version_without_vault_metadata_block_should_have_no_values() {
+        var fields = VaultFields.of(createDatasetVersionWithoutVaultMetadataBlock(1, 0, "RELEASED"));
+
+        assertThat(fields.getBagId()).isNull();
+        assertThat(fields.getNbn()).isNull();
+        assertThat(fields.getDataversePid()).isNull();
+    }
+
+    @Test
+    void of_field_list_should_skip_blank_values() {
+        var fieldList = new FieldList();
+        fieldList.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_BAG_ID, " "));
+        fieldList.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_BAG_ID, "urn:uuid:530dc968-4430-4186-bf58-08d98d717889"));
+        fieldList.add(new PrimitiveSingleValueField(SetVaultMetadataTask.DANS_DATAVERSE_PID_VERSION, "1.0"));
+
+        var fields = VaultFields.of(fieldList);
+
+        assertThat(fields.getBagId()).isEqualTo("urn:uuid:530dc968-4430-4186-bf58-08d98d717889");
+        assertThat(fields.getDataversePidVersion()).isEqualTo("1.0");
+        assertThat(fields.getNbn()).isNull();
+    }
+}
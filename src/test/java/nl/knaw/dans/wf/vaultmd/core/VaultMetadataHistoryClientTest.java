@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.sun.net.httpserver.HttpServer;
+import nl.knaw.dans.lib.dataverse.DataverseException;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VaultMetadataHistoryClientTest {
+    private static final int NUMBER_OF_VERSIONS = 50;
+    private static final int FILES_PER_VERSION = 2000;
+
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private VaultMetadataHistoryClient client;
+    private final AtomicReference<byte[]> responseBody = new AtomicReference<>();
+    private final AtomicReference<String> requestQuery = new AtomicReference<>();
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/datasets/:persistentId/versions", exchange -> {
+            requestQuery.set(exchange.getRequestURI().getRawQuery());
+            var body = responseBody.get();
+
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            else {
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (var out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        httpClient = HttpClients.createDefault();
+        client = new VaultMetadataHistoryClient(httpClient, URI.create("http://localhost:" + server.getAddress().getPort() + "/"), null);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void readVersions_should_only_keep_version_number_state_and_vault_fields() throws Exception {
+        var json = createVersionsJson(2, 3);
+        var versions = VaultMetadataHistoryClient.readVersions(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(versions).hasSize(3);
+        var draft = versions.get(0);
+        assertEquals("DRAFT", draft.getVersionState());
+
+        var latest = versions.get(1);
+        assertEquals(1, latest.getVersionNumber());
+        assertEquals(1, latest.getVersionMinorNumber());
+        assertEquals("RELEASED", latest.getVersionState());
+        assertThat(latest.getMetadataBlocks()).containsOnlyKeys("dansDataVaultMetadata");
+        assertThat(latest.getMetadataBlocks().get("dansDataVaultMetadata").getFields())
+            .extracting("typeName")
+            .containsExactly("dansDataversePid", "dansDataversePidVersion", "dansBagId", "dansNbn");
+        assertThat(latest.getMetadataBlocks().get("dansDataVaultMetadata").getFields())
+            .extracting("value")
+            .containsExactly("doi:10.5072/FK2/ABCDEF", "1.1", "urn:uuid:00000000-0000-0000-0000-000000000001", "urn:nbn:nl:ui:13-00000000-0000-0000-0000-000000000000");
+    }
+
+    @Test
+    void getVersions_should_send_persistentId_and_invocationId() throws Exception {
+        responseBody.set(createVersionsJson(1, 0).getBytes(StandardCharsets.UTF_8));
+
+        client.getVersions("doi:10.5072/FK2/ABCDEF", "invocation-1");
+
+        assertEquals("persistentId=doi%3A10.5072%2FFK2%2FABCDEF&excludeFiles=true&invocationID=invocation-1", requestQuery.get());
+    }
+
+    @Test
+    void getVersions_should_throw_DataverseException_with_status_on_error() {
+        var e = assertThrows(DataverseException.class, () -> client.getVersions("doi:10.5072/FK2/ABCDEF", "invocation-1"));
+        assertEquals(404, e.getStatus());
+    }
+
+    @Test
+    void getVersions_should_skip_file_listings_of_large_version_list() throws Exception {
+        // Dataverse versions that ignore excludeFiles still send the file listings
+        responseBody.set(createVersionsJson(NUMBER_OF_VERSIONS, FILES_PER_VERSION).getBytes(StandardCharsets.UTF_8));
+
+        var versions = client.getVersions("doi:10.5072/FK2/ABCDEF", "invocation-1");
+
+        assertThat(versions).hasSize(NUMBER_OF_VERSIONS + 1);
+        assertThat(versions.subList(1, versions.size()))
+            .allSatisfy(version -> {
+                assertEquals("RELEASED", version.getVersionState());
+                assertThat(version.getMetadataBlocks()).containsOnlyKeys("dansDataVaultMetadata");
+            });
+        var oldest = versions.get(NUMBER_OF_VERSIONS);
+        assertEquals(1, oldest.getVersionNumber());
+        assertEquals(0, oldest.getVersionMinorNumber());
+        assertThat(oldest.getMetadataBlocks().get("dansDataVaultMetadata").getFields())
+            .extracting("value")
+            .containsExactly("doi:10.5072/FK2/ABCDEF", "1.0", "urn:uuid:00000000-0000-0000-0000-000000000000", "urn:nbn:nl:ui:13-00000000-0000-0000-0000-000000000000");
+    }
+
+    private static String createVersionsJson(int numberOfVersions, int filesPerVersion) {
+        var json = new StringBuilder("{\"status\":\"OK\",\"data\":[");
+        json.append("{\"id\":0,\"versionState\":\"DRAFT\",\"metadataBlocks\":{},\"files\":[]}");
+
+        for (var v = numberOfVersions - 1; v >= 0; --v) {
+            var major = 1 + v / 2;
+            var minor = v % 2;
+            json.append(",{\"id\":").append(v + 1)
+                .append(",\"datasetPersistentId\":\"doi:10.5072/FK2/ABCDEF\"")
+                .append(",\"versionNumber\":").append(major)
+                .append(",\"versionMinorNumber\":").append(minor)
+                .append(",\"versionState\":\"RELEASED\"")
+                .append(",\"license\":{\"name\":\"CC0 1.0\",\"uri\":\"http://creativecommons.org/publicdomain/zero/1.0\"}")
+                .append(",\"metadataBlocks\":{")
+                .append("\"citation\":{\"displayName\":\"Citation Metadata\",\"fields\":[")
+                .append("{\"typeName\":\"title\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"A dataset with many files\"},")
+                .append("{\"typeName\":\"author\",\"multiple\":true,\"typeClass\":\"compound\",\"value\":[{\"authorName\":{\"typeName\":\"authorName\",\"multiple\":false,")
+                .append("\"typeClass\":\"primitive\",\"value\":\"Doe, John\"}}]}]},")
+                .append("\"dansDataVaultMetadata\":{\"displayName\":\"Data Vault Metadata\",\"fields\":[")
+                .append("{\"typeName\":\"dansDataversePid\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"doi:10.5072/FK2/ABCDEF\"},")
+                .append("{\"typeName\":\"dansDataversePidVersion\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"").append(major).append('.').append(minor).append("\"},")
+                .append("{\"typeName\":\"dansBagId\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"urn:uuid:00000000-0000-0000-0000-")
+                .append(String.format("%012d", v)).append("\"},")
+                .append("{\"typeName\":\"dansNbn\",\"multiple\":false,\"typeClass\":\"primitive\",\"value\":\"urn:nbn:nl:ui:13-00000000-0000-0000-0000-000000000000\"}]}}")
+                .append(",\"files\":[");
+
+            for (var f = 0; f < filesPerVersion; ++f) {
+                if (f > 0) {
+                    json.append(',');
+                }
+                json.append("{\"label\":\"file-").append(f).append(".txt\",\"restricted\":false,\"version\":1,\"datasetVersionId\":").append(v + 1)
+                    .append(",\"dataFile\":{\"id\":").append(f).append(",\"persistentId\":\"\",\"filename\":\"file-").append(f)
+                    .append(".txt\",\"contentType\":\"text/plain\",\"filesize\":1024,\"storageIdentifier\":\"file://18b2e8c3e29-d5fdb2bf2d47\",")
+                    .append("\"checksum\":{\"type\":\"SHA-1\",\"value\":\"da39a3ee5e6b4b0d3255bfef95601890afd80709\"}}}");
+            }
+            json.append("]}");
+        }
+
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.model.dataset.DatasetVersion;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static nl.knaw.dans.wf.vaultmd.core.TestUtilities.createDatasetVersion;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VersionHistoryCacheTest {
+    private static final String GLOBAL_ID = "doi:10.5072/dans-1";
+
+    private final VaultMetadataHistoryClient client = Mockito.mock(VaultMetadataHistoryClient.class);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private VersionHistoryCache createCache(int maxVersions) {
+        return new VersionHistoryCache(client, maxVersions, 2, 60_000, metricRegistry, now::get);
+    }
+
+    private static DatasetVersion version(int major, String state) {
+        return createDatasetVersion("urn:uuid:00000000-0000-0000-0000-00000000000" + major, "urn:nbn:nl:ui:13-1", major, 0, state);
+    }
+
+    private static DatasetVersion draft() {
+        var draft = new DatasetVersion();
+        draft.setVersionState("DRAFT");
+        return draft;
+    }
+
+    private static List<Integer> majors(List<DatasetVersion> versions) {
+        var result = new ArrayList<Integer>();
+        versions.forEach(v -> result.add(v.getVersionNumber()));
+        return result;
+    }
+
+    private long counter(String name) {
+        return metricRegistry.counter(MetricRegistry.name(VersionHistoryCache.class, name)).getCount();
+    }
+
+    @Test
+    void getVersions_should_fetch_only_new_versions_on_hit() throws Exception {
+        var cache = createCache(100);
+        when(client.getVersions(GLOBAL_ID, "inv-1")).thenReturn(List.of(draft(), version(1, "RELEASED")));
+        assertThat(majors(cache.getVersions(GLOBAL_ID, "inv-1"))).containsExactly(1);
+
+        when(client.getVersions(GLOBAL_ID, "inv-2", 0, 2)).thenReturn(List.of(draft(), version(3, "RELEASED")));
+        when(client.getVersions(GLOBAL_ID, "inv-2", 2, 2)).thenReturn(List.of(version(2, "RELEASED"), version(1, "RELEASED")));
+
+        assertThat(majors(cache.getVersions(GLOBAL_ID, "inv-2"))).containsExactly(3, 2, 1);
+        verify(client, never()).getVersions(GLOBAL_ID, "inv-2");
+        assertThat(counter("hits")).isEqualTo(1);
+        assertThat(counter("misses")).isEqualTo(1);
+        assertThat(cache.getCachedVersions()).isEqualTo(3);
+    }
+
+    @Test
+    void cached_versions_should_keep_their_vault_metadata() throws Exception {
+        var cache = createCache(100);
+        when(client.getVersions(GLOBAL_ID, "inv-1")).thenReturn(List.of(draft(), version(2, "DEACCESSIONED"), version(1, "RELEASED")));
+        cache.getVersions(GLOBAL_ID, "inv-1");
+
+        when(client.getVersions(GLOBAL_ID, "inv-2", 0, 2)).thenReturn(List.of(draft(), version(2, "DEACCESSIONED")));
+        var cached = cache.getVersions(GLOBAL_ID, "inv-2");
+
+        assertThat(cached).extracting(DatasetVersion::getVersionState).containsExactly("DEACCESSIONED", "RELEASED");
+        var fields = VaultFields.of(cached.get(1));
+        assertThat(fields.getBagId()).isEqualTo("urn:uuid:00000000-0000-0000-0000-000000000001");
+        assertThat(fields.getNbn()).isEqualTo("urn:nbn:nl:ui:13-1");
+        assertThat(cached.get(1).getVersionMinorNumber()).isEqualTo(0);
+    }
+
+    @Test
+    void getVersions_should_fetch_one_page_on_hit_without_new_versions() throws Exception {
+        var cache = createCache(100);
+        when(client.getVersions(GLOBAL_ID, "inv-1")).thenReturn(List.of(draft(), version(2, "RELEASED"), version(1, "RELEASED")));
+        cache.getVersions(GLOBAL_ID, "inv-1");
+
+        when(client.getVersions(GLOBAL_ID, "inv-2", 0, 2)).thenReturn(List.of(draft(), version(2, "RELEASED")));
+
+        assertThat(majors(cache.getVersions(GLOBAL_ID, "inv-2"))).containsExactly(2, 1);
+        verify(client, times(1)).getVersions(GLOBAL_ID, "inv-2", 0, 2);
+        verify(client, never()).getVersions(GLOBAL_ID, "inv-2");
+        assertThat(counter("invalidations")).isZero();
+    }
+
+    @Test
+    void getVersions_should_refetch_history_when_newest_cached_version_was_deaccessioned() throws Exception {
+        var cache = createCache(100);
+        when(client.getVersions(GLOBAL_ID, "inv-1")).thenReturn(List.of(version(2, "RELEASED"), version(1, "RELEASED")));
+        cache.getVersions(GLOBAL_ID, "inv-1");
+
+        when(client.getVersions(GLOBAL_ID, "inv-2", 0, 2)).thenReturn(List.of(draft(), version(2, "DEACCESSIONED")));
+        when(client.getVersions(GLOBAL_ID, "inv-2")).thenReturn(List.of(draft(), version(2, "DEACCESSIONED"), version(1, "RELEASED")));
+
+        var result = cache.getVersions(GLOBAL_ID, "inv-2");
+
+        assertThat(majors(result)).containsExactly(2, 1);
+        assertThat(result.get(0).getVersionState()).isEqualTo("DEACCESSIONED");
+        verify(client, times(1)).getVersions(GLOBAL_ID, "inv-2");
+        assertThat(counter("invalidations")).isEqualTo(1);
+    }
+
+    @Test
+    void getVersions_should_refetch_history_when_entry_has_expired() throws Exception {
+        var cache = createCache(100);
+        when(client.getVersions(Mockito.eq(GLOBAL_ID), Mockito.anyString())).thenReturn(List.of(version(1, "RELEASED")));
+        cache.getVersions(GLOBAL_ID, "inv-1");
+
+        now.addAndGet(60_000);
+        cache.getVersions(GLOBAL_ID, "inv-2");
+
+        assertThat(counter("misses")).isEqualTo(2);
+        assertThat(counter("hits")).isZero();
+    }
+
+    @Test
+    void store_should_evict_least_recently_used_datasets_when_full() throws Exception {
+        var cache = createCache(3);
+        when(client.getVersions("doi:a", "inv-a")).thenReturn(List.of(version(2, "RELEASED"), version(1, "RELEASED")));
+        when(client.getVersions("doi:b", "inv-b")).thenReturn(List.of(version(2, "RELEASED"), version(1, "RELEASED")));
+
+        cache.getVersions("doi:a", "inv-a");
+        cache.getVersions("doi:b", "inv-b");
+
+        assertThat(cache.getCachedDatasets()).isEqualTo(1);
+        assertThat(cache.getCachedVersions()).isEqualTo(2);
+        assertThat(counter("evictions")).isEqualTo(1);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static nl.knaw.dans.wf.vaultmd.core.TestUtilities.createDatasetVersion;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VersionHistoryTest {
+    private static final String NBN = "urn:nbn:nl:ui:13-73750978-5587-4e2b-937f-6b190e44fcae";
+
+    private final VersionHistory history = new VersionHistory(List.of(
+        createDatasetVersion("urn:uuid:00000000-0000-0000-0000-000000000003", NBN, 2, 0, "RELEASED"),
+        createDatasetVersion("urn:uuid:00000000-0000-0000-0000-000000000002", NBN, 1, 1, "DEACCESSIONED"),
+        createDatasetVersion("urn:uuid:00000000-0000-0000-0000-000000000001", NBN, 1, 0, "RELEASED")));
+
+    @Test
+    void getVersion_should_find_versions_by_major_and_minor_number() {
+        assertThat(history.getVersion(1, 1)).hasValueSatisfying(v -> assertThat(v.getVersionState()).isEqualTo("DEACCESSIONED"));
+        assertThat(history.getVaultFields(1, 0)).hasValueSatisfying(f -> assertThat(f.getBagId()).isEqualTo("urn:uuid:00000000-0000-0000-0000-000000000001"));
+        assertThat(history.getVersion(1, 2)).isEmpty();
+        assertThat(history.getVaultFields(3, 0)).isEmpty();
+    }
+
+    @Test
+    void getVersions_should_keep_the_descending_order() {
+        assertThat(history.getVersions()).extracting(v -> v.getVersionNumber() + "." + v.getVersionMinorNumber()).containsExactly("2.0", "1.1", "1.0");
+        assertThat(history.getVaultFields()).extracting(VaultFields::getBagId).containsExactly(
+            "urn:uuid:00000000-0000-0000-0000-000000000003", "urn:uuid:00000000-0000-0000-0000-000000000002", "urn:uuid:00000000-0000-0000-0000-000000000001");
+        assertThat(history.getLatestVersion()).hasValueSatisfying(v -> assertThat(v.getVersionNumber()).isEqualTo(2));
+    }
+}
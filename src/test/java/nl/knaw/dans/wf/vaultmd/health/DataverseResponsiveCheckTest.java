@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.wf.vaultmd.health;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.lib.dataverse.DataverseClient;
+import nl.knaw.dans.wf.vaultmd.core.CircuitBreaker;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DataverseResponsiveCheckTest {
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final DataverseClient client = Mockito.mock(DataverseClient.class, Mockito.RETURNS_DEEP_STUBS);
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60_000, 1);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private DataverseResponsiveCheck createCheck(DoubleSupplier trafficSuccessRate) {
+        return new DataverseResponsiveCheck(client, circuitBreaker, trafficSuccessRate, null, 1000, 5000, 0.5, metricRegistry, clock::get);
+    }
+
+    @Test
+    void check_should_return_the_cached_probe_result_without_calling_dataverse() throws Exception {
+        var check = createCheck(() -> Double.NaN);
+        check.probe();
+
+        assertThat(check.execute().isHealthy()).isTrue();
+        assertThat(check.execute().isHealthy()).isTrue();
+
+        Mockito.verify(client.dataverse("root"), Mockito.times(1)).view();
+        assertThat(metricRegistry.histogram(MetricRegistry.name(DataverseResponsiveCheck.class, "latency")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    void check_should_be_unhealthy_before_the_first_probe_and_when_the_probe_is_stale() {
+        var check = createCheck(() -> Double.NaN);
+        assertThat(check.execute().isHealthy()).isFalse();
+
+        check.probe();
+        clock.addAndGet(5001);
+
+        assertThat(check.execute().getMessage()).startsWith("Last probe of Dataverse was");
+    }
+
+    @Test
+    void check_should_be_unhealthy_when_the_probe_failed() throws Exception {
+        Mockito.when(client.dataverse("root").view()).thenThrow(new IOException("connection refused"));
+        var check = createCheck(() -> Double.NaN);
+        check.probe();
+
+        assertThat(check.execute().getMessage()).contains("connection refused");
+    }
+
+    @Test
+    void check_should_be_unhealthy_when_most_task_calls_fail() {
+        var check = createCheck(() -> 0.2);
+        check.probe();
+
+        assertThat(check.execute().getMessage()).isEqualTo("Only 20% of the recent calls to Dataverse succeeded");
+    }
+
+    @Test
+    void check_should_be_unhealthy_while_the_circuit_breaker_is_open() {
+        var check = createCheck(() -> 1.0);
+        check.probe();
+        circuitBreaker.tryAcquire();
+        circuitBreaker.onFailure();
+
+        assertThat(check.execute().getMessage()).startsWith("Circuit breaker for Dataverse is open");
+    }
+}